@@ -36,6 +36,12 @@ public interface DcpConfig {
 
   ByteSizeValue flowControlBuffer();
 
+  /**
+   * Whether to copy each event into a right-sized buffer and acknowledge
+   * the DCP message immediately, instead of when the event has been written.
+   */
+  boolean compactEvents();
+
   default TimeValue connectTimeout() {
     return new TimeValue(10, TimeUnit.SECONDS);
   }
@@ -45,6 +51,7 @@ public interface DcpConfig {
         .compression(config.getBoolean("compression", () -> true) ? CompressionMode.ENABLED : CompressionMode.DISABLED)
         .persistencePollingInterval(getTime(config, "persistencePollingInterval").orElse(new TimeValue(100, TimeUnit.MILLISECONDS)))
         .flowControlBuffer(getSize(config, "flowControlBuffer").orElse(new ByteSizeValue(128, MB)))
+        .compactEvents(config.getBoolean("compactEvents", () -> false))
         .build();
   }
 }
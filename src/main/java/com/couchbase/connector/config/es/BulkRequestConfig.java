@@ -16,17 +16,22 @@
 
 package com.couchbase.connector.config.es;
 
+import com.couchbase.connector.config.ConfigException;
+import com.google.common.collect.ImmutableMap;
 import net.consensys.cava.toml.TomlTable;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.immutables.value.Value;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import static com.couchbase.connector.config.ConfigHelper.expectOnly;
 import static com.couchbase.connector.config.ConfigHelper.getInt;
 import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
 import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static com.couchbase.connector.config.ConfigHelper.getStrings;
 import static com.couchbase.connector.config.ConfigHelper.getTime;
 import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
 
@@ -40,20 +45,94 @@ public interface BulkRequestConfig {
 
   TimeValue timeout();
 
+  /**
+   * Maximum number of bulk requests a single worker may have in flight.
+   * A value of 1 means each worker waits for a bulk request to complete
+   * before sending the next one.
+   */
+  int pipelineDepth();
+
+  /**
+   * If true, the effective bulk request limits are adjusted based on how quickly
+   * Elasticsearch processes requests, using the configured limits as upper bounds.
+   */
+  boolean adaptive();
+
+  /**
+   * When adaptive sizing is enabled, bulk requests that take longer than this
+   * for Elasticsearch to process cause the limits to shrink.
+   */
+  TimeValue adaptiveTargetTook();
+
+  /**
+   * Limits the total size of events waiting to be processed by the workers.
+   * Negative means unlimited.
+   */
+  ByteSizeValue maxQueuedBytes();
+
+  /**
+   * How long to wait for more events before sending a bulk request that isn't full.
+   * Zero means send as soon as there are no more events waiting to be processed.
+   */
+  TimeValue linger();
+
+  /**
+   * A bulk request that isn't full is sent without further lingering once its oldest
+   * event has been waiting this long since the connector received it.
+   */
+  TimeValue lingerMaxLatency();
+
+  /**
+   * If true, requests for different indexes are buffered and sent separately,
+   * so a slow index doesn't hold up writes to the others.
+   */
+  boolean indexIsolation();
+
+  /**
+   * When index isolation is enabled, indexes that map to the same group name
+   * share a buffer instead of each having their own. Keys are index names.
+   */
+  ImmutableMap<String, String> indexGroups();
+
   @Value.Check
   default void check() {
     if (concurrentRequests() <= 0) {
       throw new IllegalArgumentException("concurrentRequests must be > 0");
     }
+    if (pipelineDepth() <= 0) {
+      throw new IllegalArgumentException("pipelineDepth must be > 0");
+    }
   }
 
   static ImmutableBulkRequestConfig from(TomlTable config) {
-    expectOnly(config, "actions", "bytes", "timeout", "concurrentRequests");
+    expectOnly(config, "actions", "bytes", "timeout", "concurrentRequests", "pipelineDepth", "adaptive", "adaptiveTargetTook", "maxQueuedBytes", "linger", "lingerMaxLatency", "indexIsolation", "indexGroups");
     return ImmutableBulkRequestConfig.builder()
         .maxActions(getInt(config, "actions").orElse(1000))
         .maxBytes(getSize(config, "bytes").orElse(new ByteSizeValue(10, MB)))
         .timeout(getTime(config, "timeout").orElse(new TimeValue(1, TimeUnit.MINUTES)))
         .concurrentRequests(getIntInRange(config, "concurrentRequests", 1, 16).orElse(2))
+        .pipelineDepth(getIntInRange(config, "pipelineDepth", 1, 16).orElse(1))
+        .adaptive(config.getBoolean("adaptive", () -> false))
+        .adaptiveTargetTook(getTime(config, "adaptiveTargetTook").orElse(new TimeValue(1, TimeUnit.SECONDS)))
+        .maxQueuedBytes(getSize(config, "maxQueuedBytes").orElse(new ByteSizeValue(-1)))
+        .linger(getTime(config, "linger").orElse(new TimeValue(0, TimeUnit.MILLISECONDS)))
+        .lingerMaxLatency(getTime(config, "lingerMaxLatency").orElse(new TimeValue(100, TimeUnit.MILLISECONDS)))
+        .indexIsolation(config.getBoolean("indexIsolation", () -> false))
+        .indexGroups(parseIndexGroups(config.getTableOrEmpty("indexGroups")))
         .build();
   }
+
+  static Map<String, String> parseIndexGroups(TomlTable groups) {
+    final Map<String, String> indexToGroup = new HashMap<>();
+    for (String group : groups.keySet()) {
+      for (String index : getStrings(groups, group)) {
+        final String previousGroup = indexToGroup.put(index, group);
+        if (previousGroup != null) {
+          throw new ConfigException("Index '" + index + "' at " + groups.inputPositionOf(group) +
+              " is already a member of index group '" + previousGroup + "'");
+        }
+      }
+    }
+    return indexToGroup;
+  }
 }
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+@Value.Immutable
+public interface ClusterPressureConfig {
+  /**
+   * If true, the connector monitors Elasticsearch node stats and slows down
+   * when the cluster shows signs of being overloaded.
+   */
+  boolean enabled();
+
+  TimeValue pollInterval();
+
+  /**
+   * A node is considered overloaded if its write thread pool queue is longer than this.
+   */
+  int maxWriteQueue();
+
+  /**
+   * A node is considered overloaded if its JVM heap usage is at least this percentage.
+   */
+  int maxHeapPercent();
+
+  /**
+   * The write rate (actions per second, across all workers) is never limited below this value.
+   */
+  int minRate();
+
+  static ImmutableClusterPressureConfig from(TomlTable config) {
+    expectOnly(config, "enabled", "pollInterval", "maxWriteQueue", "maxHeapPercent", "minRate");
+    return ImmutableClusterPressureConfig.builder()
+        .enabled(config.getBoolean("enabled", () -> false))
+        .pollInterval(getTime(config, "pollInterval").orElse(new TimeValue(5, TimeUnit.SECONDS)))
+        .maxWriteQueue(getIntInRange(config, "maxWriteQueue", 0, Integer.MAX_VALUE).orElse(100))
+        .maxHeapPercent(getIntInRange(config, "maxHeapPercent", 1, 100).orElse(90))
+        .minRate(getIntInRange(config, "minRate", 1, Integer.MAX_VALUE).orElse(100))
+        .build();
+  }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+@Value.Immutable
+public interface ConnectionPoolConfig {
+  /**
+   * Max number of connections to a single Elasticsearch node.
+   */
+  int maxPerRoute();
+
+  /**
+   * Max number of connections to all Elasticsearch nodes combined.
+   */
+  int maxTotal();
+
+  /**
+   * Idle connections are closed after this long (or sooner, if the server asks).
+   * Negative means keep them open for as long as the server allows.
+   */
+  TimeValue keepAlive();
+
+  /**
+   * Number of threads handling network IO. Zero means one per available processor.
+   */
+  int ioThreads();
+
+  /**
+   * Socket send buffer size. Zero means use the operating system's default.
+   */
+  ByteSizeValue socketSendBuffer();
+
+  /**
+   * Socket receive buffer size. Zero means use the operating system's default.
+   */
+  ByteSizeValue socketReceiveBuffer();
+
+  static ImmutableConnectionPoolConfig from(TomlTable config) {
+    expectOnly(config, "maxPerRoute", "maxTotal", "keepAlive", "ioThreads", "socketSendBuffer", "socketReceiveBuffer");
+    return ImmutableConnectionPoolConfig.builder()
+        .maxPerRoute(getIntInRange(config, "maxPerRoute", 1, 1024).orElse(10))
+        .maxTotal(getIntInRange(config, "maxTotal", 1, 4096).orElse(30))
+        .keepAlive(getTime(config, "keepAlive").orElse(TimeValue.MINUS_ONE))
+        .ioThreads(getIntInRange(config, "ioThreads", 0, 256).orElse(0))
+        .socketSendBuffer(getSize(config, "socketSendBuffer").orElse(new ByteSizeValue(0)))
+        .socketReceiveBuffer(getSize(config, "socketReceiveBuffer").orElse(new ByteSizeValue(0)))
+        .build();
+  }
+}
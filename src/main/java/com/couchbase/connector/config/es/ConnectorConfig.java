@@ -46,6 +46,17 @@ public interface ConnectorConfig {
 
   TrustStoreConfig trustStore();
 
+  @Value.Check
+  default void check() {
+    // Once events are acknowledged on arrival, the queue limit is the only thing
+    // stopping Couchbase from sending more than the worker queues can hold.
+    if (couchbase().dcp().compactEvents()
+        && elasticsearch().pipeline().engine() == PipelineConfig.Engine.WORKERS
+        && elasticsearch().bulkRequest().maxQueuedBytes().getBytes() < 0) {
+      throw new ConfigException("[couchbase.dcp] 'compactEvents' requires [elasticsearch.bulkRequestLimits] 'maxQueuedBytes' to be set.");
+    }
+  }
+
   static ImmutableConnectorConfig from(TomlParseResult config) {
     if (config.hasErrors()) {
       throw new ConfigException("Config syntax error: " + config.errors());
@@ -27,6 +27,7 @@ import static com.couchbase.connector.config.ConfigHelper.createHttpHost;
 import static com.couchbase.connector.config.ConfigHelper.expectOnly;
 import static com.couchbase.connector.config.ConfigHelper.getStrings;
 import static com.couchbase.connector.config.ConfigHelper.readPassword;
+import static java.util.Collections.emptyList;
 import static java.util.stream.Collectors.toList;
 
 @Value.Immutable
@@ -40,6 +41,11 @@ public interface ElasticsearchConfig {
 
   boolean secureConnection();
 
+  /**
+   * If true, bulk request bodies are sent with gzip content encoding.
+   */
+  boolean compressRequests();
+
   BulkRequestConfig bulkRequest();
 
   DocStructureConfig docStructure();
@@ -50,6 +56,18 @@ public interface ElasticsearchConfig {
 
   AwsConfig aws();
 
+  ShardRoutingConfig shardRouting();
+
+  ClusterPressureConfig clusterPressure();
+
+  HedgingConfig hedging();
+
+  SpillConfig spill();
+
+  PipelineConfig pipeline();
+
+  ConnectionPoolConfig connectionPool();
+
   @Value.Check
   default void check() {
     if (types().isEmpty()) {
@@ -58,7 +76,7 @@ public interface ElasticsearchConfig {
   }
 
   static ImmutableElasticsearchConfig from(TomlTable config) {
-    expectOnly(config, "hosts", "username", "pathToPassword", "secureConnection", "aws", "bulkRequestLimits", "docStructure", "typeDefaults", "type", "rejectionLog");
+    expectOnly(config, "hosts", "username", "pathToPassword", "secureConnection", "compressRequests", "connectionPool", "aws", "shardRouting", "clusterPressure", "hedging", "spill", "pipeline", "bulkRequestLimits", "docStructure", "typeDefaults", "type", "rejectionLog");
 
     final boolean secureConnection = config.getBoolean("secureConnection", () -> false);
 
@@ -70,6 +88,7 @@ public interface ElasticsearchConfig {
 
     final ImmutableElasticsearchConfig.Builder builder = ImmutableElasticsearchConfig.builder()
         .secureConnection(secureConnection)
+        .compressRequests(config.getBoolean("compressRequests", () -> false))
         .hosts(getStrings(config, "hosts").stream()
             .map(h -> createHttpHost(h, defaultPort, secureConnection))
             .collect(toList()))
@@ -77,15 +96,23 @@ public interface ElasticsearchConfig {
         .password(readPassword(config, "elasticsearch", "pathToPassword"))
         .bulkRequest(BulkRequestConfig.from(config.getTableOrEmpty("bulkRequestLimits")))
         .aws(aws)
+        .connectionPool(ConnectionPoolConfig.from(config.getTableOrEmpty("connectionPool")))
+        .shardRouting(ShardRoutingConfig.from(config.getTableOrEmpty("shardRouting")))
+        .clusterPressure(ClusterPressureConfig.from(config.getTableOrEmpty("clusterPressure")))
+        .hedging(HedgingConfig.from(config.getTableOrEmpty("hedging")))
+        .spill(SpillConfig.from(config.getTableOrEmpty("spill")))
+        .pipeline(PipelineConfig.from(config.getTableOrEmpty("pipeline")))
         .docStructure(DocStructureConfig.from(config.getTableOrEmpty("docStructure")));
 
     final TomlTable typeDefaults = config.getTableOrEmpty("typeDefaults");
-    expectOnly(typeDefaults, "typeName", "index", "pipeline", "ignore", "ignoreDeletes");
+    expectOnly(typeDefaults, "typeName", "index", "pipeline", "include", "exclude", "ignore", "ignoreDeletes");
 
     final TypeConfig defaultTypeConfig = ImmutableTypeConfig.builder()
         .index(typeDefaults.getString("index"))
         .type(typeDefaults.getString("typeName", () -> "_doc"))
         .pipeline(typeDefaults.getString("pipeline"))
+        .include(TypeConfig.parseFieldPointers(typeDefaults, "include", emptyList()))
+        .exclude(TypeConfig.parseFieldPointers(typeDefaults, "exclude", emptyList()))
         .ignore(typeDefaults.getBoolean("ignore", () -> false))
         .ignoreDeletes(typeDefaults.getBoolean("ignoreDeletes", () -> false))
         .matcher(s -> null)
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+@Value.Immutable
+public interface HedgingConfig {
+  /**
+   * If true, a bulk request that takes unusually long is sent again,
+   * and the first response to arrive is used.
+   */
+  boolean enabled();
+
+  /**
+   * A request is hedged once it has been in flight longer than this
+   * percentile of recent bulk request latencies.
+   */
+  int percentile();
+
+  /**
+   * A request is never hedged sooner than this, however fast the recent requests were.
+   */
+  TimeValue minDelay();
+
+  /**
+   * At most this percentage of bulk requests are hedged (over the long run).
+   */
+  int budgetPercent();
+
+  static ImmutableHedgingConfig from(TomlTable config) {
+    expectOnly(config, "enabled", "percentile", "minDelay", "budgetPercent");
+    return ImmutableHedgingConfig.builder()
+        .enabled(config.getBoolean("enabled", () -> false))
+        .percentile(getIntInRange(config, "percentile", 50, 99).orElse(95))
+        .minDelay(getTime(config, "minDelay").orElse(TimeValue.timeValueMillis(100)))
+        .budgetPercent(getIntInRange(config, "budgetPercent", 1, 100).orElse(5))
+        .build();
+  }
+}
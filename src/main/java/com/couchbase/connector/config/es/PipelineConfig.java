@@ -0,0 +1,78 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import com.couchbase.connector.config.ConfigException;
+import net.consensys.cava.toml.TomlTable;
+import org.immutables.value.Value;
+
+import java.util.Locale;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+
+@Value.Immutable
+public interface PipelineConfig {
+  enum Engine {
+    /**
+     * A fixed set of worker threads, each with its own event queue.
+     */
+    WORKERS,
+
+    /**
+     * Backpressured Reactor streams, one per lane of vbuckets, with a separate
+     * operator for each stage.
+     */
+    REACTOR,
+  }
+
+  /**
+   * Which pipeline moves events from DCP to Elasticsearch.
+   */
+  Engine engine();
+
+  /**
+   * For the Reactor engine, the max number of events each lane may have requested
+   * from DCP but not yet handed to its match/transform stage.
+   */
+  int prefetch();
+
+  /**
+   * For the Reactor engine, the max number of events each lane may be matching
+   * and transforming at the same time.
+   */
+  int transformConcurrency();
+
+  static ImmutablePipelineConfig from(TomlTable config) {
+    expectOnly(config, "engine", "prefetch", "transformConcurrency");
+    return ImmutablePipelineConfig.builder()
+        .engine(parseEngine(config))
+        .prefetch(getIntInRange(config, "prefetch", 1, 65536).orElse(1024))
+        .transformConcurrency(getIntInRange(config, "transformConcurrency", 1, 256).orElse(4))
+        .build();
+  }
+
+  static Engine parseEngine(TomlTable config) {
+    final String engine = config.getString("engine", () -> "workers");
+    try {
+      return Engine.valueOf(engine.toUpperCase(Locale.ROOT));
+    } catch (IllegalArgumentException e) {
+      throw new ConfigException("Unrecognized pipeline engine '" + engine + "' at " + config.inputPositionOf("engine") +
+          "; expected 'workers' or 'reactor'");
+    }
+  }
+}
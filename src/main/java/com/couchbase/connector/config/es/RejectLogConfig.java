@@ -18,11 +18,15 @@ package com.couchbase.connector.config.es;
 
 import com.google.common.base.Strings;
 import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.immutables.value.Value;
 
 import javax.annotation.Nullable;
 
 import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
 
 @Value.Immutable
 public interface RejectLogConfig {
@@ -31,11 +35,28 @@ public interface RejectLogConfig {
 
   String typeName();
 
+  /**
+   * If not null, rejection log entries are written to a spool file in this directory,
+   * and shipped to Elasticsearch in the background.
+   */
+  @Nullable
+  String spoolDir();
+
+  ByteSizeValue spoolSize();
+
+  /**
+   * Max number of spooled entries to ship in a single bulk request.
+   */
+  int spoolBatchSize();
+
   static ImmutableRejectLogConfig from(TomlTable config, String defaultTypeName) {
-    expectOnly(config, "index", "typeName");
+    expectOnly(config, "index", "typeName", "spoolDir", "spoolSize", "spoolBatchSize");
     return ImmutableRejectLogConfig.builder()
         .index(Strings.emptyToNull(config.getString("index")))
         .typeName(config.getString("typeName", () -> defaultTypeName))
+        .spoolDir(Strings.emptyToNull(config.getString("spoolDir")))
+        .spoolSize(getSize(config, "spoolSize").orElse(new ByteSizeValue(64, MB)))
+        .spoolBatchSize(getIntInRange(config, "spoolBatchSize", 1, Integer.MAX_VALUE).orElse(500))
         .build();
   }
 }
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+
+@Value.Immutable
+public interface ShardRoutingConfig {
+  /**
+   * If true, each bulk request is split up so items are sent directly
+   * to the nodes holding the primary shards they belong to.
+   */
+  boolean enabled();
+
+  /**
+   * How often to check whether the cluster state has changed,
+   * and fetch the new routing table if it has.
+   */
+  TimeValue refreshInterval();
+
+  static ImmutableShardRoutingConfig from(TomlTable config) {
+    expectOnly(config, "enabled", "refreshInterval");
+    return ImmutableShardRoutingConfig.builder()
+        .enabled(config.getBoolean("enabled", () -> false))
+        .refreshInterval(getTime(config, "refreshInterval").orElse(new TimeValue(5, TimeUnit.SECONDS)))
+        .build();
+  }
+}
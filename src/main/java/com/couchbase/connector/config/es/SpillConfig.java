@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.config.es;
+
+import net.consensys.cava.toml.TomlTable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.immutables.value.Value;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getIntInRange;
+import static com.couchbase.connector.config.ConfigHelper.getSize;
+import static com.couchbase.connector.config.ConfigHelper.getTime;
+import static org.elasticsearch.common.unit.ByteSizeUnit.GB;
+import static org.elasticsearch.common.unit.ByteSizeUnit.MB;
+
+@Value.Immutable
+public interface SpillConfig {
+  /**
+   * If true, writes are spilled to local disk while Elasticsearch is unavailable,
+   * and replayed when it comes back.
+   */
+  boolean enabled();
+
+  /**
+   * Directory for the spill files. Relative paths are resolved against the connector installation directory.
+   */
+  String dir();
+
+  /**
+   * Start spilling once a bulk request has been failing for this long.
+   */
+  TimeValue after();
+
+  ByteSizeValue segmentSize();
+
+  /**
+   * Max total size of the spill files. When the spill is full, the connector waits for room.
+   */
+  ByteSizeValue maxSize();
+
+  /**
+   * Max number of spilled actions per second to replay (across all workers).
+   */
+  int replayRate();
+
+  /**
+   * Approximate max number of spilled actions to replay in a single bulk request.
+   */
+  int replayBatchSize();
+
+  static ImmutableSpillConfig from(TomlTable config) {
+    expectOnly(config, "enabled", "dir", "after", "segmentSize", "maxSize", "replayRate", "replayBatchSize");
+    return ImmutableSpillConfig.builder()
+        .enabled(config.getBoolean("enabled", () -> false))
+        .dir(config.getString("dir", () -> "spill"))
+        .after(getTime(config, "after").orElse(new TimeValue(30, TimeUnit.SECONDS)))
+        .segmentSize(getSize(config, "segmentSize").orElse(new ByteSizeValue(64, MB)))
+        .maxSize(getSize(config, "maxSize").orElse(new ByteSizeValue(10, GB)))
+        .replayRate(getIntInRange(config, "replayRate", 1, Integer.MAX_VALUE).orElse(5000))
+        .replayBatchSize(getIntInRange(config, "replayBatchSize", 1, Integer.MAX_VALUE).orElse(1000))
+        .build();
+  }
+}
@@ -25,15 +25,20 @@ import net.consensys.cava.toml.TomlTable;
 import org.immutables.value.Value;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import static com.couchbase.connector.config.ConfigHelper.expectOnly;
+import static com.couchbase.connector.config.ConfigHelper.getStrings;
 import static java.util.Objects.requireNonNull;
 
 @Value.Immutable
 public interface TypeConfig {
+  int MAX_FIELD_POINTERS = 64;
+
   @Nullable
   String index(); // may be null only for ignored types
 
@@ -45,6 +50,17 @@ public interface TypeConfig {
   @Nullable
   JsonPointer routing();
 
+  /**
+   * If not empty, only these fields (and the objects and arrays that contain them)
+   * are written to Elasticsearch.
+   */
+  List<JsonPointer> include();
+
+  /**
+   * These fields are never written to Elasticsearch.
+   */
+  List<JsonPointer> exclude();
+
   boolean ignore();
 
   boolean ignoreDeletes();
@@ -60,10 +76,13 @@ public interface TypeConfig {
     if (!ignore() && index() == null && !(matcher() instanceof IdRegexInferredIndexMatcher)) {
       throw new ConfigException("Missing 'index' (or 'regex' with capturing group named 'index') for config at " + position());
     }
+    if (include().size() + exclude().size() > MAX_FIELD_POINTERS) {
+      throw new ConfigException("Type at " + position() + " has more than " + MAX_FIELD_POINTERS + " 'include' and 'exclude' JSON pointers.");
+    }
   }
 
   static ImmutableTypeConfig from(TomlTable config, TomlPosition position, TypeConfig defaults) {
-    expectOnly(config, "typeName", "index", "pipeline", "routing", "ignore", "ignoreDeletes", "prefix", "regex");
+    expectOnly(config, "typeName", "index", "pipeline", "routing", "include", "exclude", "ignore", "ignoreDeletes", "prefix", "regex");
 
     final String index = Strings.emptyToNull(config.getString("index", defaults::index));
     final String routing = Strings.emptyToNull(config.getString("routing"));
@@ -73,6 +92,8 @@ public interface TypeConfig {
         .type(config.getString("typeName", defaults::type))
         .index(index)
         .routing(parseRouting(routing, config.inputPositionOf("routing")))
+        .include(parseFieldPointers(config, "include", defaults.include()))
+        .exclude(parseFieldPointers(config, "exclude", defaults.exclude()))
         .pipeline(Strings.emptyToNull(config.getString("pipeline", defaults::pipeline)))
         .ignoreDeletes(config.getBoolean("ignoreDeletes", defaults::ignoreDeletes))
         .ignore(config.getBoolean("ignore", defaults::ignore));
@@ -120,6 +141,26 @@ public interface TypeConfig {
     }
   }
 
+  static List<JsonPointer> parseFieldPointers(TomlTable config, String key, List<JsonPointer> defaults) {
+    if (config.getArray(key) == null) {
+      return defaults;
+    }
+    final List<JsonPointer> result = new ArrayList<>();
+    for (String pointer : getStrings(config, key)) {
+      final JsonPointer compiled;
+      try {
+        compiled = JsonPointer.compile(pointer);
+      } catch (IllegalArgumentException e) {
+        throw new ConfigException("Invalid '" + key + "' JSON pointer at " + config.inputPositionOf(key) + " ; " + e.getMessage());
+      }
+      if (compiled.matches()) {
+        throw new ConfigException("The '" + key + "' JSON pointers at " + config.inputPositionOf(key) + " must not include the empty pointer, which matches the whole document.");
+      }
+      result.add(compiled);
+    }
+    return result;
+  }
+
   interface IndexMatcher {
     String getIndexIfMatches(Event event);
   }
@@ -138,6 +179,15 @@ public interface TypeConfig {
       return event.getKey().startsWith(prefix) ? index : null;
     }
 
+    @Nullable
+    public String index() {
+      return index;
+    }
+
+    public String prefix() {
+      return prefix;
+    }
+
     @Override
     public String toString() {
       return "prefix='" + prefix + "'";
@@ -158,6 +208,15 @@ public interface TypeConfig {
       return pattern.matcher(event.getKey()).matches() ? index : null;
     }
 
+    @Nullable
+    public String index() {
+      return index;
+    }
+
+    public Pattern pattern() {
+      return pattern;
+    }
+
     @Override
     public String toString() {
       return "regex='" + pattern + "'";
@@ -177,6 +236,10 @@ public interface TypeConfig {
       return m.matches() ? m.group("index") : null;
     }
 
+    public Pattern pattern() {
+      return pattern;
+    }
+
     @Override
     public String toString() {
       return "regex='" + pattern + "'";
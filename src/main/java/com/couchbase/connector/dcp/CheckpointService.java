@@ -41,7 +41,36 @@ import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 public class CheckpointService {
   private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointService.class);
 
+  /**
+   * A run of consecutive events in one vbucket that were skipped without being sent to a writer.
+   */
+  private static class SkippedRun {
+    private final long predecessorSeqno; // the event before the run
+    private final Checkpoint last;
+    private final boolean metadataOnly;
+
+    private SkippedRun(long predecessorSeqno, Checkpoint last, boolean metadataOnly) {
+      this.predecessorSeqno = predecessorSeqno;
+      this.last = last;
+      this.metadataOnly = metadataOnly;
+    }
+
+    /**
+     * Returns true if a vbucket at the given position has processed every event before the end of the run.
+     */
+    private boolean canAdvance(Checkpoint current) {
+      if (current == null) {
+        return false;
+      }
+      // At the event before the run, or at an earlier event of the run.
+      final long seqno = current.getSeqno();
+      return seqno == predecessorSeqno
+          || (Long.compareUnsigned(seqno, predecessorSeqno) > 0 && Long.compareUnsigned(seqno, last.getSeqno()) < 0);
+    }
+  }
+
   private volatile AtomicReferenceArray<Checkpoint> positions;
+  private volatile AtomicReferenceArray<SkippedRun> skippedRuns;
   private final CheckpointDao streamPositionDao;
   private final String bucketUuid;
   private final Meter failures = Metrics.meter("saveStateFail");
@@ -61,6 +90,7 @@ public class CheckpointService {
 
     LOGGER.info("Initializing checkpoint service with backfill target seqnos: {}", backfillTargetSeqnos);
     this.positions = new AtomicReferenceArray<>(numPartitions);
+    this.skippedRuns = new AtomicReferenceArray<>(numPartitions);
   }
 
   public void set(int vbucket, Checkpoint position) {
@@ -71,6 +101,60 @@ public class CheckpointService {
   public void setWithoutMarkingDirty(int vbucket, Checkpoint position) {
     LOGGER.debug("New position for vbucket {} is {}", vbucket, position);
     positions.set(vbucket, position);
+    advancePastSkippedEvents(vbucket);
+  }
+
+  /**
+   * Records an event that was discarded as soon as it was received, without being sent to a writer.
+   * The vbucket's checkpoint advances past the event once every earlier event in the vbucket
+   * has been processed, either immediately or when the checkpoint reaches the predecessor.
+   * <p>
+   * Lock-free, so it can be called from a Netty IO thread.
+   *
+   * @param predecessorSeqno seqno of the previous event received for the vbucket, or 0 if there was none.
+   * @param metadata whether the event is a connector metadata document, whose checkpoint
+   * should not by itself cause the checkpoints to be saved again.
+   */
+  public void skip(int vbucket, long predecessorSeqno, Checkpoint position, boolean metadata) {
+    if (predecessorSeqno == 0) {
+      // Nothing else has been received for the vbucket, so nothing is in progress.
+      skippedRuns.set(vbucket, null);
+      if (metadata) {
+        setWithoutMarkingDirty(vbucket, position);
+      } else {
+        set(vbucket, position);
+      }
+      return;
+    }
+
+    while (true) {
+      final SkippedRun previous = skippedRuns.get(vbucket);
+      final SkippedRun run = previous != null && previous.last.getSeqno() == predecessorSeqno
+          ? new SkippedRun(previous.predecessorSeqno, position, previous.metadataOnly && metadata) // extend the run
+          : new SkippedRun(predecessorSeqno, position, metadata);
+      if (skippedRuns.compareAndSet(vbucket, previous, run)) {
+        break;
+      }
+    }
+    advancePastSkippedEvents(vbucket);
+  }
+
+  private void advancePastSkippedEvents(int vbucket) {
+    while (true) {
+      final SkippedRun run = skippedRuns.get(vbucket);
+      final Checkpoint current = positions.get(vbucket);
+      if (run == null || !run.canAdvance(current)) {
+        return;
+      }
+      if (positions.compareAndSet(vbucket, current, run.last)) {
+        LOGGER.debug("New position for vbucket {} is {} (skipped events)", vbucket, run.last);
+        if (!run.metadataOnly) {
+          dirty = true;
+        }
+        return;
+      }
+      // The checkpoint moved in the meantime (or the run grew); take another look.
+    }
   }
 
   public synchronized Map<Integer, Checkpoint> load(Set<Integer> vbuckets) throws IOException {
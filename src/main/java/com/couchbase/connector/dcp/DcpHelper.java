@@ -16,6 +16,8 @@
 
 package com.couchbase.connector.dcp;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.couchbase.client.dcp.Client;
 import com.couchbase.client.dcp.DefaultConnectionNameGenerator;
 import com.couchbase.client.dcp.StreamFrom;
@@ -36,6 +38,7 @@ import com.couchbase.client.deps.io.netty.util.IllegalReferenceCountException;
 import com.couchbase.connector.VersionHelper;
 import com.couchbase.connector.cluster.Coordinator;
 import com.couchbase.connector.config.common.CouchbaseConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import org.slf4j.Logger;
@@ -49,9 +52,13 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singletonList;
 
 public class DcpHelper {
@@ -61,6 +68,13 @@ public class DcpHelper {
     throw new AssertionError("not instantiable");
   }
 
+  // Layout of a DCP message header.
+  private static final int HEADER_SIZE = 24;
+  private static final int KEY_LENGTH_OFFSET = 2;
+  private static final int EXTRAS_LENGTH_OFFSET = 4;
+
+  private static final byte[] METADATA_PREFIX_BYTES = metadataDocumentIdPrefix().getBytes(UTF_8);
+
   public static String metadataDocumentIdPrefix() {
     return "_connector:cbes:";
   }
@@ -69,6 +83,40 @@ public class DcpHelper {
     return e.getKey().startsWith(metadataDocumentIdPrefix());
   }
 
+  /**
+   * Like {@link #isMetadata(Event)}, but examines the raw DCP message without decoding the key.
+   */
+  public static boolean isMetadata(ByteBuf message) {
+    return keyStartsWith(message, METADATA_PREFIX_BYTES);
+  }
+
+  /**
+   * Returns the index of the first byte of the document ID in a DCP mutation, deletion or expiration message.
+   */
+  public static int keyOffset(ByteBuf message) {
+    return message.readerIndex() + HEADER_SIZE + message.getUnsignedByte(message.readerIndex() + EXTRAS_LENGTH_OFFSET);
+  }
+
+  /**
+   * Returns the length in bytes of the document ID in a DCP mutation, deletion or expiration message.
+   */
+  public static int keyLength(ByteBuf message) {
+    return message.getUnsignedShort(message.readerIndex() + KEY_LENGTH_OFFSET);
+  }
+
+  private static boolean keyStartsWith(ByteBuf message, byte[] prefix) {
+    if (keyLength(message) < prefix.length) {
+      return false;
+    }
+    final int offset = keyOffset(message);
+    for (int i = 0; i < prefix.length; i++) {
+      if (message.getByte(offset + i) != prefix[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   public static void ackAndRelease(ChannelFlowController flowController, ByteBuf buffer) throws IllegalReferenceCountException {
     try {
       flowController.ack(buffer);
@@ -138,20 +186,51 @@ public class DcpHelper {
   /**
    * @param eventSink responsible for processing the event (usually asynchronously)
    * and calling {@link Event#release()} when finished
+   * @param skipFilter returns true for raw DCP messages the connector would ignore anyway.
+   * These are discarded right away (as are the connector's own metadata documents)
+   * and recorded in the checkpoint service instead of being sent to the event sink.
+   * @param compactEvents whether to copy each event into a right-sized buffer
+   * so the DCP message can be acknowledged immediately. See {@link Event}.
+   * @param flowControl given a connection's flow controller, returns the one its data
+   * events should be acknowledged through
    */
-  public static void initDataEventHandler(Client dcpClient, Consumer<Event> eventSink, SnapshotMarker[] snapshots) {
-    dcpClient.dataEventHandler((flowController, event) -> {
+  public static void initDataEventHandler(Client dcpClient, Consumer<Event> eventSink, SnapshotMarker[] snapshots,
+                                          Predicate<ByteBuf> skipFilter, CheckpointService checkpointService,
+                                          boolean compactEvents, UnaryOperator<ChannelFlowController> flowControl) {
+    final Meter skipped = Metrics.meter("prefiltered");
+    final Histogram eventSizes = Metrics.histogram("queuedEventBytes");
+
+    // Seqno of the most recent event received for each vbucket, or 0 if none.
+    final AtomicLongArray lastSeqnos = new AtomicLongArray(snapshots.length);
+
+    dcpClient.dataEventHandler((connectionFlowController, event) -> {
       if (DcpMutationMessage.is(event) || DcpDeletionMessage.is(event) || DcpExpirationMessage.is(event)) {
+        final ChannelFlowController flowController = flowControl.apply(connectionFlowController);
         final short vbucket = MessageUtil.getVbucket(event);
         final long vbuuid = dcpClient.sessionState().get(vbucket).getLastUuid();
+        final long seqno = DcpMutationMessage.bySeqno(event); // works for deletion and expiration, too
+        final long predecessorSeqno = lastSeqnos.get(vbucket);
+        lastSeqnos.lazySet(vbucket, seqno);
+
+        final boolean metadata = isMetadata(event);
+        if (metadata || skipFilter.test(event)) {
+          try {
+            checkpointService.skip(vbucket, predecessorSeqno, new Checkpoint(vbuuid, seqno, snapshots[vbucket]), metadata);
+            skipped.mark();
+          } finally {
+            ackAndRelease(flowController, event);
+          }
+          return;
+        }
 
-        final Event e = new Event(event, flowController, vbuuid, snapshots[vbucket]);
+        final Event e = new Event(event, flowController, vbuuid, snapshots[vbucket], compactEvents);
         //LOGGER.trace("GOT DATA EVENT: {}", e);
+        eventSizes.update(e.estimatedSizeInBytes());
         eventSink.accept(e);
 
       } else {
         LOGGER.warn("Unexpected data event type '{}'", event.readableBytes() > 0 ? event.getByte(1) : "<zero length>");
-        ackAndRelease(flowController, event);
+        ackAndRelease(connectionFlowController, event);
       }
     });
   }
@@ -21,32 +21,86 @@ import com.couchbase.client.dcp.message.DcpMutationMessage;
 import com.couchbase.client.dcp.message.MessageUtil;
 import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
 import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.PooledByteBufAllocator;
 import com.couchbase.client.deps.io.netty.util.IllegalReferenceCountException;
 
 import static com.couchbase.connector.dcp.DcpHelper.ackAndRelease;
+import static com.couchbase.connector.dcp.DcpHelper.keyLength;
+import static com.couchbase.connector.dcp.DcpHelper.keyOffset;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Objects.requireNonNull;
 
+/**
+ * A document change received from Couchbase.
+ * <p>
+ * Holds on to the DCP message instead of copying its parts. The document ID
+ * is decoded the first time someone asks for it (usually a writer thread, not
+ * the DCP IO thread), and the content is read straight from the message.
+ * <p>
+ * A compact event copies the message into a right-sized pooled buffer, then
+ * acknowledges and releases the original right away, so the (possibly much larger)
+ * network buffer can be reused and Couchbase can keep sending without waiting for
+ * the event to be written. The flow control buffer no longer bounds the memory held
+ * by compact events, so whoever queues them must account for it, typically by
+ * charging the event's size to a budget and refunding it from a release listener.
+ */
 public class Event {
-  private final String key;
+  // Bits of the datatype field in the header of a DCP mutation.
+  public static final int DATATYPE_RAW = 0;
+  public static final int DATATYPE_JSON = 0x01;
+  public static final int DATATYPE_SNAPPY = 0x02;
+  public static final int DATATYPE_XATTR = 0x04;
+
+  private static final int DATATYPE_OFFSET = 5;
+
+  // Rough size of an Event object, the buffer object and a decoded key, not counting their contents.
+  private static final int OBJECT_OVERHEAD = 128;
+
   private final ByteBuf byteBuf;
-  private final ChannelFlowController flowController;
+  private final ChannelFlowController flowController; // null if the message was already acknowledged
   private final long vbuuid;
   private final long seqno;
   private final SnapshotMarker snapshot;
   private final int vbucket;
   private final boolean mutation;
+  private final int datatype;
+  private final int keyOffset;
+  private final int keyLength;
   private final long receivedNanos = System.nanoTime();
-  private volatile byte[] content;
+
+  // Decoded on demand. Strings are immutable, so a race just means decoding twice.
+  private volatile String key;
+
+  private volatile Runnable releaseListener;
 
   public Event(ByteBuf byteBuf, ChannelFlowController flowController, long vbuuid, SnapshotMarker snapshot) {
-    this.key = MessageUtil.getKeyAsString(byteBuf);
-    this.byteBuf = byteBuf;
-    this.flowController = flowController;
+    this(byteBuf, flowController, vbuuid, snapshot, false);
+  }
+
+  /**
+   * @param compact whether to copy the message into a right-sized buffer,
+   * and acknowledge and release the original immediately.
+   */
+  public Event(ByteBuf byteBuf, ChannelFlowController flowController, long vbuuid, SnapshotMarker snapshot, boolean compact) {
     this.vbuuid = vbuuid;
     this.vbucket = MessageUtil.getVbucket(byteBuf);
     this.seqno = DcpMutationMessage.bySeqno(byteBuf); // works for deletion and expiration, too
     this.mutation = DcpMutationMessage.is(byteBuf);
+    this.datatype = byteBuf.getByte(byteBuf.readerIndex() + DATATYPE_OFFSET) & 0xFF;
     this.snapshot = requireNonNull(snapshot, "null snapshot");
+
+    if (compact) {
+      final int length = byteBuf.readableBytes();
+      this.byteBuf = PooledByteBufAllocator.DEFAULT.heapBuffer(length, length).writeBytes(byteBuf, byteBuf.readerIndex(), length);
+      ackAndRelease(flowController, byteBuf);
+      this.flowController = null;
+    } else {
+      this.byteBuf = byteBuf;
+      this.flowController = flowController;
+    }
+
+    this.keyOffset = keyOffset(this.byteBuf);
+    this.keyLength = keyLength(this.byteBuf);
   }
 
   /**
@@ -55,7 +109,33 @@ public class Event {
    * @throws IllegalReferenceCountException if buffer has already been released
    */
   public void release() {
-    ackAndRelease(flowController, byteBuf);
+    getKey(); // so the event can still be identified (in logs, for example) after the message is gone
+    if (flowController == null) {
+      byteBuf.release();
+    } else {
+      ackAndRelease(flowController, byteBuf);
+    }
+
+    final Runnable listener = releaseListener;
+    if (listener != null) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Sets the callback to run when the event is released. Must be called
+   * before the event is handed to another thread.
+   */
+  public void setReleaseListener(Runnable listener) {
+    this.releaseListener = requireNonNull(listener);
+  }
+
+  /**
+   * Returns true if the DCP message was acknowledged when the event was created,
+   * instead of when the event is released.
+   */
+  public boolean isCompact() {
+    return flowController == null;
   }
 
   public int getVbucket() {
@@ -67,13 +147,44 @@ public class Event {
   }
 
   public String getKey() {
-    return key;
+    String result = key;
+    if (result == null) {
+      key = result = byteBuf.toString(keyOffset, keyLength, UTF_8);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the index of the document ID's UTF-8 bytes in the buffer returned by {@link #getByteBuf()}.
+   */
+  public int getKeyOffset() {
+    return keyOffset;
+  }
+
+  public int getKeyLength() {
+    return keyLength;
   }
 
   public boolean isMutation() {
     return mutation;
   }
 
+  /**
+   * Returns the datatype the server reported for the document content,
+   * a combination of the {@code DATATYPE_*} bits.
+   */
+  public int getDatatype() {
+    return datatype;
+  }
+
+  /**
+   * Returns true if the server certified the content as valid JSON, and the content
+   * is neither compressed nor prefixed with extended attributes.
+   */
+  public boolean isJson() {
+    return datatype == DATATYPE_JSON;
+  }
+
   public long getReceivedNanos() {
     return receivedNanos;
   }
@@ -86,6 +197,10 @@ public class Event {
     return seqno;
   }
 
+  public SnapshotMarker getSnapshot() {
+    return snapshot;
+  }
+
   public Checkpoint getCheckpoint() {
     return new Checkpoint(getVbuuid(), getSeqno(), snapshot);
   }
@@ -94,11 +209,20 @@ public class Event {
     return byteBuf;
   }
 
+  /**
+   * Returns a copy of the document content. The event does not keep the copy.
+   * The connector itself reads the content in place, from {@code MessageUtil.getContent(getByteBuf())}.
+   */
   public byte[] getContent() {
-    if (content == null) {
-      content = MessageUtil.getContentAsByteArray(byteBuf);
-    }
-    return content;
+    return MessageUtil.getContentAsByteArray(byteBuf);
+  }
+
+  /**
+   * Returns an estimate of the memory retained by this event while it waits to be written,
+   * including the DCP message (or its compact copy).
+   */
+  public int estimatedSizeInBytes() {
+    return OBJECT_OVERHEAD + byteBuf.capacity() + 2 * keyLength;
   }
 
   @Override
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.codahale.metrics.Timer;
+import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.google.common.collect.MapMaker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Limits the total size of events waiting in the worker queues, without blocking
+ * the DCP client's IO threads.
+ * <p>
+ * Events are always admitted. While more than the limit is claimed, DCP flow control
+ * acknowledgements sent through a {@link #gate gated} flow controller are held back,
+ * so the Couchbase server stops sending once the connection's flow control buffer is used up.
+ * The withheld acknowledgements are sent as soon as the queued size is back within the limit.
+ * Meanwhile the IO threads keep handling snapshot markers, stream end messages and NOOPs.
+ * <p>
+ * The queued size can exceed the limit by as much as the unacknowledged part of each
+ * connection's flow control buffer at the moment the limit was reached.
+ */
+class ByteBudget {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ByteBudget.class);
+
+  private static final Timer blockedTimer = Metrics.timer("queueAdmissionBlocked");
+
+  private final long limit;
+
+  @GuardedBy("this")
+  private long used;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  @GuardedBy("this")
+  private long exhaustedSinceNanos; // meaningful only while exhausted
+
+  // Total bytes of the acknowledgements held back, for each flow controller.
+  @GuardedBy("this")
+  private final Map<ChannelFlowController, Integer> withheldAcks = new IdentityHashMap<>();
+
+  // One gate per DCP connection, so events don't need a new one each. A gate is only
+  // referenced by the events that use it; once they're gone, the entry may be collected.
+  private final ConcurrentMap<ChannelFlowController, Gate> gates = new MapMaker().weakKeys().weakValues().makeMap();
+
+  /**
+   * @param limit maximum number of bytes, or a negative value for unlimited
+   */
+  ByteBudget(long limit) {
+    this.limit = limit < 0 ? Long.MAX_VALUE : limit;
+  }
+
+  /**
+   * Claims the requested number of bytes. Never blocks; if this exceeds the limit,
+   * flow control acknowledgements are held back until enough bytes are released.
+   *
+   * @return false if the budget is closed, in which case nothing is claimed.
+   */
+  synchronized boolean acquire(long bytes) {
+    if (closed) {
+      return false;
+    }
+    final boolean wasExhausted = isExhausted();
+    used += bytes;
+    if (!wasExhausted && isExhausted()) {
+      exhaustedSinceNanos = System.nanoTime();
+    }
+    return true;
+  }
+
+  @GuardedBy("this")
+  private boolean isExhausted() {
+    return used > limit;
+  }
+
+  void release(long bytes) {
+    final Map<ChannelFlowController, Integer> acks;
+    synchronized (this) {
+      final boolean wasExhausted = isExhausted();
+      used -= bytes;
+      if (!wasExhausted || isExhausted()) {
+        return;
+      }
+      blockedTimer.update(System.nanoTime() - exhaustedSinceNanos, NANOSECONDS);
+      acks = takeWithheldAcks();
+    }
+    sendAcks(acks);
+  }
+
+  synchronized long used() {
+    return used;
+  }
+
+  /**
+   * Returns a flow controller that acknowledges through the given one,
+   * except while this budget is exhausted.
+   */
+  ChannelFlowController gate(ChannelFlowController flowController) {
+    final Gate gate = gates.get(flowController);
+    return gate != null ? gate : gates.computeIfAbsent(flowController, Gate::new);
+  }
+
+  /**
+   * Sends any withheld acknowledgements, and stops withholding them.
+   * Causes future attempts to acquire bytes to fail.
+   */
+  void close() {
+    final Map<ChannelFlowController, Integer> acks;
+    synchronized (this) {
+      closed = true;
+      acks = takeWithheldAcks();
+    }
+    sendAcks(acks);
+  }
+
+  /**
+   * @return true if the acknowledgement was withheld, false if the caller should send it.
+   */
+  private synchronized boolean withhold(ChannelFlowController flowController, int bytes) {
+    if (closed || !isExhausted()) {
+      return false;
+    }
+    withheldAcks.merge(flowController, bytes, Integer::sum);
+    return true;
+  }
+
+  @GuardedBy("this")
+  private Map<ChannelFlowController, Integer> takeWithheldAcks() {
+    if (withheldAcks.isEmpty()) {
+      return null;
+    }
+    final Map<ChannelFlowController, Integer> result = new IdentityHashMap<>(withheldAcks);
+    withheldAcks.clear();
+    return result;
+  }
+
+  private static void sendAcks(Map<ChannelFlowController, Integer> acks) {
+    if (acks == null) {
+      return;
+    }
+    acks.forEach((flowController, bytes) -> {
+      try {
+        flowController.ack(bytes);
+      } catch (Exception e) {
+        LOGGER.warn("Flow control ack failed (channel already closed?)", e);
+      }
+    });
+  }
+
+  private class Gate implements ChannelFlowController {
+    private final ChannelFlowController delegate;
+
+    private Gate(ChannelFlowController delegate) {
+      this.delegate = requireNonNull(delegate);
+    }
+
+    @Override
+    public void ack(ByteBuf message) {
+      ack(message.readableBytes());
+    }
+
+    @Override
+    public void ack(int numBytes) {
+      if (!withhold(delegate, numBytes)) {
+        delegate.ack(numBytes);
+      }
+    }
+  }
+}
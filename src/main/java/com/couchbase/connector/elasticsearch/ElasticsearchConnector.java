@@ -30,8 +30,13 @@ import com.couchbase.connector.cluster.Coordinator;
 import com.couchbase.connector.cluster.Membership;
 import com.couchbase.connector.cluster.StaticCoordinator;
 import com.couchbase.connector.config.ConfigException;
+import com.couchbase.connector.config.ConfigHelper;
+import com.couchbase.connector.config.common.TrustStoreConfig;
 import com.couchbase.connector.config.es.ConnectorConfig;
 import com.couchbase.connector.config.es.ElasticsearchConfig;
+import com.couchbase.connector.config.es.PipelineConfig;
+import com.couchbase.connector.config.es.RejectLogConfig;
+import com.couchbase.connector.config.es.SpillConfig;
 import com.couchbase.connector.config.es.TypeConfig;
 import com.couchbase.connector.dcp.CheckpointDao;
 import com.couchbase.connector.dcp.CheckpointService;
@@ -40,7 +45,13 @@ import com.couchbase.connector.dcp.CouchbaseHelper;
 import com.couchbase.connector.dcp.DcpHelper;
 import com.couchbase.connector.dcp.SnapshotMarker;
 import com.couchbase.connector.elasticsearch.cli.AbstractCliCommand;
+import com.couchbase.connector.elasticsearch.io.BulkRequestHedger;
+import com.couchbase.connector.elasticsearch.io.ClusterPressureMonitor;
+import com.couchbase.connector.elasticsearch.io.KeyPrefilter;
+import com.couchbase.connector.elasticsearch.io.RejectionSpool;
 import com.couchbase.connector.elasticsearch.io.RequestFactory;
+import com.couchbase.connector.elasticsearch.io.ShardRouter;
+import com.couchbase.connector.elasticsearch.io.SpillStore;
 import com.couchbase.connector.util.HttpServer;
 import com.couchbase.connector.util.ThrowableHelper;
 import joptsimple.OptionSet;
@@ -49,7 +60,10 @@ import org.elasticsearch.common.unit.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
 import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -62,6 +76,7 @@ import static com.couchbase.connector.dcp.DcpHelper.initDataEventHandler;
 import static com.couchbase.connector.dcp.DcpHelper.initSessionState;
 import static com.couchbase.connector.dcp.DcpHelper.toBoxedShortArray;
 import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.newElasticsearchClient;
+import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.newNodeClientFactory;
 import static com.couchbase.connector.elasticsearch.ElasticsearchHelper.waitForElasticsearchAndRequireVersion;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
@@ -156,12 +171,24 @@ public class ElasticsearchConnector extends AbstractCliCommand {
       final RequestFactory requestFactory = new RequestFactory(
           config.elasticsearch().types(), config.elasticsearch().docStructure(), config.elasticsearch().rejectLog());
 
-      final ElasticsearchWorkerGroup workers = new ElasticsearchWorkerGroup(
+      final ShardRouter shardRouter = newShardRouter(config.elasticsearch(), config.trustStore(), esClient);
+      final ClusterPressureMonitor pressureMonitor = newClusterPressureMonitor(config.elasticsearch(), esClient);
+      final BulkRequestHedger hedger = config.elasticsearch().hedging().enabled()
+          ? new BulkRequestHedger(config.elasticsearch().hedging())
+          : null;
+      final RejectionSpool rejectionSpool = newRejectionSpool(config.elasticsearch(), esClient);
+      final SpillStore spillStore = newSpillStore(config.elasticsearch(), esClient, rejectionSpool);
+
+      final PipelineEngine workers = newPipelineEngine(
+          config.elasticsearch(),
           esClient,
           checkpointService,
           requestFactory,
-          ErrorListener.NOOP,
-          config.elasticsearch().bulkRequest());
+          shardRouter,
+          pressureMonitor,
+          hedger,
+          rejectionSpool,
+          spillStore);
 
       Metrics.gauge("writeQueue", () -> workers::getQueueSize);
       Metrics.gauge("esWaitMs", () -> workers::getCurrentRequestMillis); // High value indicates the connector has stalled
@@ -170,7 +197,9 @@ public class ElasticsearchConnector extends AbstractCliCommand {
 
       final SnapshotMarker[] snapshots = new SnapshotMarker[2048]; // sized to accommodate max number of vbuckets
       initControlHandler(dcpClient, coordinator, snapshots);
-      initDataEventHandler(dcpClient, workers::submit, snapshots);
+      initDataEventHandler(dcpClient, workers::submit, snapshots,
+          new KeyPrefilter(config.elasticsearch().types()), checkpointService, config.couchbase().dcp().compactEvents(),
+          workers::flowControllerFor);
 
       final Thread saveCheckpoints = new Thread(checkpointService::save);
 
@@ -220,6 +249,21 @@ public class ElasticsearchConnector extends AbstractCliCommand {
         metricReporter.stop();
         dcpClient.disconnect().await();
         workers.close(); // to avoid buffer leak, must close *after* dcp client stops feeding it events
+        if (shardRouter != null) {
+          shardRouter.close();
+        }
+        if (pressureMonitor != null) {
+          pressureMonitor.close();
+        }
+        if (hedger != null) {
+          hedger.close();
+        }
+        if (rejectionSpool != null) {
+          rejectionSpool.close();
+        }
+        if (spillStore != null) {
+          spillStore.close();
+        }
         checkpointExecutor.awaitTermination(10, SECONDS);
         cluster.disconnect();
         env.shutdown(); // can't reuse, because connector config might have different SSL settings next time
@@ -230,6 +274,85 @@ public class ElasticsearchConnector extends AbstractCliCommand {
     throw fatalError;
   }
 
+  private static ShardRouter newShardRouter(ElasticsearchConfig config, TrustStoreConfig trustStoreConfig, RestHighLevelClient esClient) {
+    if (!config.shardRouting().enabled()) {
+      return null;
+    }
+    if (!config.aws().region().isEmpty()) {
+      // Amazon Elasticsearch Service doesn't let clients talk to individual nodes.
+      LOGGER.warn("Shard routing is not supported with Amazon Elasticsearch Service; ignoring 'elasticsearch.shardRouting' config.");
+      return null;
+    }
+    return new ShardRouter(esClient.getLowLevelClient(),
+        newNodeClientFactory(config, trustStoreConfig),
+        config.secureConnection(),
+        config.shardRouting());
+  }
+
+  private static ClusterPressureMonitor newClusterPressureMonitor(ElasticsearchConfig config, RestHighLevelClient esClient) {
+    if (!config.clusterPressure().enabled()) {
+      return null;
+    }
+    final ClusterPressureMonitor monitor = new ClusterPressureMonitor(esClient.getLowLevelClient(), config.clusterPressure());
+    monitor.start();
+    return monitor;
+  }
+
+  private static RejectionSpool newRejectionSpool(ElasticsearchConfig config, RestHighLevelClient esClient) throws IOException {
+    final RejectLogConfig rejectLog = config.rejectLog();
+    if (rejectLog.index() == null || rejectLog.spoolDir() == null) {
+      return null;
+    }
+    final RejectionSpool spool = new RejectionSpool(esClient.getLowLevelClient(),
+        ConfigHelper.resolveIfRelative(rejectLog.spoolDir()),
+        rejectLog.spoolSize().getBytes(),
+        rejectLog.spoolBatchSize());
+    spool.start();
+    return spool;
+  }
+
+  private static SpillStore newSpillStore(ElasticsearchConfig config, RestHighLevelClient esClient,
+                                          @Nullable RejectionSpool rejectionSpool) throws IOException {
+    final SpillConfig spill = config.spill();
+    if (!spill.enabled()) {
+      return null;
+    }
+    return new SpillStore(esClient.getLowLevelClient(), ConfigHelper.resolveIfRelative(spill.dir()), spill,
+        config.rejectLog(), rejectionSpool);
+  }
+
+  private static PipelineEngine newPipelineEngine(ElasticsearchConfig config,
+                                                  RestHighLevelClient esClient,
+                                                  CheckpointService checkpointService,
+                                                  RequestFactory requestFactory,
+                                                  @Nullable ShardRouter shardRouter,
+                                                  @Nullable ClusterPressureMonitor pressureMonitor,
+                                                  @Nullable BulkRequestHedger hedger,
+                                                  @Nullable RejectionSpool rejectionSpool,
+                                                  @Nullable SpillStore spillStore) {
+    final PipelineConfig pipeline = config.pipeline();
+    LOGGER.info("Using {} pipeline engine", pipeline.engine().name().toLowerCase(Locale.ROOT));
+
+    switch (pipeline.engine()) {
+      case WORKERS:
+        return new ElasticsearchWorkerGroup(esClient, checkpointService, requestFactory, ErrorListener.NOOP,
+            config.bulkRequest(), config.compressRequests(),
+            shardRouter, pressureMonitor, hedger, rejectionSpool, spillStore);
+
+      case REACTOR:
+        if (shardRouter != null || pressureMonitor != null || hedger != null || rejectionSpool != null || spillStore != null
+            || config.bulkRequest().adaptive() || config.bulkRequest().indexIsolation()) {
+          LOGGER.warn("The reactor pipeline engine ignores shard routing, cluster pressure, hedging, the rejection spool," +
+              " spilling, adaptive bulk sizing, and index isolation.");
+        }
+        return new ReactorPipelineEngine(esClient, checkpointService, requestFactory,
+            config.bulkRequest(), pipeline, config.compressRequests());
+
+      default:
+        throw new AssertionError("unrecognized pipeline engine: " + pipeline.engine());
+    }
+  }
+
   private static void validateConfig(Version elasticsearchVersion, ElasticsearchConfig config) {
     // The default/example config is for Elasticsearch 6, and isn't 100% compatible with ES 5.x.
     // Rather than spamming the log with indexing errors, let's do a preflight check.
@@ -24,6 +24,7 @@ import com.couchbase.client.core.logging.RedactableArgument;
 import com.couchbase.client.java.util.features.Version;
 import com.couchbase.connector.config.common.TrustStoreConfig;
 import com.couchbase.connector.config.es.AwsConfig;
+import com.couchbase.connector.config.es.ConnectionPoolConfig;
 import com.couchbase.connector.config.es.ElasticsearchConfig;
 import com.couchbase.connector.util.ThrowableHelper;
 import com.google.common.collect.Iterables;
@@ -33,7 +34,20 @@ import org.apache.http.HttpRequestInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.ssl.SSLContexts;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.main.MainResponse;
@@ -47,6 +61,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -56,11 +71,15 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static com.couchbase.connector.elasticsearch.io.MoreBackoffPolicies.truncatedExponentialBackoff;
+import static java.util.Collections.singletonList;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 public class ElasticsearchHelper {
@@ -140,28 +159,70 @@ public class ElasticsearchHelper {
   }
 
   public static RestHighLevelClient newElasticsearchClient(ElasticsearchConfig elasticsearchConfig, TrustStoreConfig trustStoreConfig) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
-    return newElasticsearchClient(
-        elasticsearchConfig.hosts(),
+    final List<HttpHost> hosts = elasticsearchConfig.hosts();
+    return new RestHighLevelClient(newRestClientBuilder(
+        hosts,
         elasticsearchConfig.username(),
         elasticsearchConfig.password(),
         elasticsearchConfig.secureConnection(),
         trustStoreConfig,
-        elasticsearchConfig.aws());
+        elasticsearchConfig.aws(),
+        elasticsearchConfig.connectionPool(),
+        pool -> registerPoolMetrics(pool, hosts)));
   }
 
-  public static RestHighLevelClient newElasticsearchClient(List<HttpHost> hosts, String username, String password, boolean secureConnection, Supplier<KeyStore> trustStore, AwsConfig aws) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+  public static RestHighLevelClient newElasticsearchClient(List<HttpHost> hosts, String username, String password, boolean secureConnection, Supplier<KeyStore> trustStore, AwsConfig aws,
+                                                           ConnectionPoolConfig poolConfig) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
+    return new RestHighLevelClient(newRestClientBuilder(hosts, username, password, secureConnection, trustStore, aws, poolConfig, pool -> {
+    }));
+  }
+
+  /**
+   * Returns a factory for low-level clients that talk to a single Elasticsearch node,
+   * using the same credentials and TLS settings as the main client.
+   */
+  public static Function<HttpHost, RestClient> newNodeClientFactory(ElasticsearchConfig elasticsearchConfig, TrustStoreConfig trustStoreConfig) {
+    return host -> {
+      try {
+        return newRestClientBuilder(
+            singletonList(host),
+            elasticsearchConfig.username(),
+            elasticsearchConfig.password(),
+            elasticsearchConfig.secureConnection(),
+            trustStoreConfig,
+            elasticsearchConfig.aws(),
+            elasticsearchConfig.connectionPool(),
+            pool -> {
+            })
+            .build();
+      } catch (KeyStoreException | NoSuchAlgorithmException | KeyManagementException e) {
+        throw new RuntimeException(e);
+      }
+    };
+  }
+
+  /**
+   * @param poolListener called with the client's connection pool when the client is built
+   */
+  private static RestClientBuilder newRestClientBuilder(List<HttpHost> hosts, String username, String password, boolean secureConnection, Supplier<KeyStore> trustStore, AwsConfig aws,
+                                                        ConnectionPoolConfig poolConfig, Consumer<PoolingNHttpClientConnectionManager> poolListener) throws KeyStoreException, NoSuchAlgorithmException, KeyManagementException {
     final CredentialsProvider credentialsProvider = new BasicCredentialsProvider();
     credentialsProvider.setCredentials(AuthScope.ANY,
         new UsernamePasswordCredentials(username, password));
 
-    final SSLContext sslContext = !secureConnection ? null :
+    final SSLContext sslContext = !secureConnection ? SSLContexts.createDefault() :
         SSLContexts.custom().loadTrustMaterial(trustStore.get(), null).build();
 
-    final RestClientBuilder builder = RestClient.builder(Iterables.toArray(hosts, HttpHost.class))
+    return RestClient.builder(Iterables.toArray(hosts, HttpHost.class))
         .setHttpClientConfigCallback(httpClientBuilder -> {
+          final PoolingNHttpClientConnectionManager pool = newConnectionPool(poolConfig, sslContext);
+          poolListener.accept(pool);
           httpClientBuilder
-              .setSSLContext(sslContext)
+              .setConnectionManager(pool)
               .setDefaultCredentialsProvider(credentialsProvider);
+          if (poolConfig.keepAlive().millis() >= 0) {
+            httpClientBuilder.setKeepAliveStrategy(maxKeepAlive(poolConfig.keepAlive()));
+          }
           awsSigner(aws).ifPresent(httpClientBuilder::addInterceptorLast);
           return httpClientBuilder;
         })
@@ -171,8 +232,76 @@ public class ElasticsearchHelper {
             Metrics.elasticsearchHostOffline().mark();
           }
         });
+  }
+
+  /**
+   * Returns a connection pool with the configured limits. The HTTP client ignores its own
+   * pool and IO settings when given a connection manager, so they're all configured here.
+   */
+  private static PoolingNHttpClientConnectionManager newConnectionPool(ConnectionPoolConfig config, SSLContext sslContext) {
+    final IOReactorConfig.Builder ioConfig = IOReactorConfig.custom()
+        .setSndBufSize((int) config.socketSendBuffer().getBytes())
+        .setRcvBufSize((int) config.socketReceiveBuffer().getBytes());
+    if (config.ioThreads() > 0) {
+      ioConfig.setIoThreadCount(config.ioThreads());
+    }
+
+    final Registry<SchemeIOSessionStrategy> sessionStrategies = RegistryBuilder.<SchemeIOSessionStrategy>create()
+        .register("http", NoopIOSessionStrategy.INSTANCE)
+        .register("https", new SSLIOSessionStrategy(sslContext, SSLIOSessionStrategy.getDefaultHostnameVerifier()))
+        .build();
 
-    return new RestHighLevelClient(builder);
+    try {
+      final PoolingNHttpClientConnectionManager pool = new PoolingNHttpClientConnectionManager(
+          new DefaultConnectingIOReactor(ioConfig.build()), sessionStrategies);
+      pool.setMaxTotal(config.maxTotal());
+      pool.setDefaultMaxPerRoute(config.maxPerRoute());
+      return pool;
+    } catch (IOReactorException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Returns a strategy that keeps idle connections for as long as the server allows,
+   * but no longer than the given limit. Closing them first avoids reusing a connection
+   * that a load balancer or firewall has silently dropped.
+   */
+  private static ConnectionKeepAliveStrategy maxKeepAlive(TimeValue limit) {
+    final long limitMillis = limit.millis();
+    return (response, context) -> {
+      final long serverMillis = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverMillis < 0 ? limitMillis : Math.min(serverMillis, limitMillis);
+    };
+  }
+
+  /**
+   * Exports the pool's connection counts, totalled and for each Elasticsearch node.
+   * A growing number of pending requests means requests are waiting inside the client
+   * for a connection.
+   */
+  private static void registerPoolMetrics(PoolingNHttpClientConnectionManager pool, List<HttpHost> hosts) {
+    Metrics.gauge("esPoolLeased", () -> () -> pool.getTotalStats().getLeased());
+    Metrics.gauge("esPoolPending", () -> () -> pool.getTotalStats().getPending());
+    Metrics.gauge("esPoolAvailable", () -> () -> pool.getTotalStats().getAvailable());
+
+    for (HttpHost host : hosts) {
+      final String prefix = "esPool." + host.toHostString() + ".";
+      Metrics.gauge(prefix + "leased", () -> () -> routeStats(pool, host, PoolStats::getLeased));
+      Metrics.gauge(prefix + "pending", () -> () -> routeStats(pool, host, PoolStats::getPending));
+      Metrics.gauge(prefix + "available", () -> () -> routeStats(pool, host, PoolStats::getAvailable));
+    }
+  }
+
+  private static int routeStats(PoolingNHttpClientConnectionManager pool, HttpHost host, ToIntFunction<PoolStats> stat) {
+    int result = 0;
+    for (HttpRoute route : pool.getRoutes()) {
+      final HttpHost target = route.getTargetHost();
+      if (target.getPort() == host.getPort() && target.getHostName().equalsIgnoreCase(host.getHostName())) {
+        result += stat.applyAsInt(pool.getStats(route));
+      }
+    }
+    return result;
   }
 
   private static Optional<HttpRequestInterceptor> awsSigner(AwsConfig config) {
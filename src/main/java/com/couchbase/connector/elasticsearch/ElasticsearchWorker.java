@@ -27,6 +27,7 @@ import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import static java.util.Objects.requireNonNull;
 
@@ -39,26 +40,49 @@ public class ElasticsearchWorker implements AutoCloseable {
   private final ElasticsearchWriter writer;
   private final BlockingQueue<Event> eventQueue = new LinkedBlockingQueue<>();
   private final BlockingQueue<Throwable> fatalErrorQueue;
+  private final ByteBudget queueBudget;
 
-  private ElasticsearchWorker(ElasticsearchWriter writer, BlockingQueue<Throwable> fatalErrorQueue, @Nullable ErrorListener errorListener) {
+  private ElasticsearchWorker(ElasticsearchWriter writer, BlockingQueue<Throwable> fatalErrorQueue, @Nullable ErrorListener errorListener,
+                              ByteBudget queueBudget) {
     this.writer = requireNonNull(writer);
     this.errorHandler = errorListener == null ? ErrorListener.NOOP : errorListener;
     this.fatalErrorQueue = requireNonNull(fatalErrorQueue);
+    this.queueBudget = requireNonNull(queueBudget);
     this.thread = new Thread(doRun(), "es-worker-" + nameCounter.getAndIncrement());
     this.thread.setDaemon(true);
+    this.writer.setWakeupListener(() -> LockSupport.unpark(thread));
   }
 
   /**
    * @param writer The worker assumes ownership of the writer and is responsible for closing it.
    */
   public static ElasticsearchWorker newWorker(ElasticsearchWriter writer, BlockingQueue<Throwable> fatalErrorQueue, @Nullable ErrorListener errorListener) {
-    ElasticsearchWorker worker = new ElasticsearchWorker(writer, fatalErrorQueue, errorListener);
+    return newWorker(writer, fatalErrorQueue, errorListener, new ByteBudget(-1));
+  }
+
+  /**
+   * @param writer The worker assumes ownership of the writer and is responsible for closing it.
+   * @param queueBudget Bytes claimed for submitted events are returned to this budget
+   * when the events are removed from the queue (or, for compact events, when they are released).
+   */
+  static ElasticsearchWorker newWorker(ElasticsearchWriter writer, BlockingQueue<Throwable> fatalErrorQueue, @Nullable ErrorListener errorListener,
+                                       ByteBudget queueBudget) {
+    ElasticsearchWorker worker = new ElasticsearchWorker(writer, fatalErrorQueue, errorListener, queueBudget);
     worker.thread.start();
     return worker;
   }
 
+  /**
+   * The caller is responsible for claiming {@link #queuedSize(Event)} bytes from
+   * the worker's queue budget before submitting the event.
+   */
   public void submit(Event event) {
     eventQueue.add(event);
+    LockSupport.unpark(thread);
+  }
+
+  static int queuedSize(Event event) {
+    return event.getByteBuf().readableBytes();
   }
 
   public int getQueueSize() {
@@ -74,11 +98,25 @@ public class ElasticsearchWorker implements AutoCloseable {
       try {
         while (!Thread.interrupted()) {
 
-          // Wait for the next event, then grab as many as are immediately available
-          Event event = eventQueue.take();
-          writer.write(event);
-          while ((event = eventQueue.poll()) != null) {
-            writer.write(event);
+          // If there are no events, sleep until one is submitted, the writer has work to do
+          // (a bulk request completed, for example), a retry is due, or the buffered requests
+          // have lingered long enough. Then grab as many events as are immediately available.
+          Event event = eventQueue.poll();
+          if (event == null) {
+            final long delayNanos = writer.flushDelayNanos();
+            if (delayNanos < 0) {
+              LockSupport.park(this);
+            } else if (delayNanos > 0) {
+              LockSupport.parkNanos(this, delayNanos);
+            }
+            if (Thread.interrupted()) {
+              throw new InterruptedException();
+            }
+            event = eventQueue.poll();
+          }
+          while (event != null) {
+            write(event);
+            event = eventQueue.poll();
           }
 
           writer.flush();
@@ -91,17 +129,35 @@ public class ElasticsearchWorker implements AutoCloseable {
         fatalErrorQueue.offer(t);
 
       } finally {
-        drainAndRelease(eventQueue);
+        // Nothing will drain the queue anymore, so stop holding back flow control acknowledgements.
+        queueBudget.close();
+        drainAndRelease(eventQueue, queueBudget);
         writer.close();
         LOGGER.info("{} stopped.", Thread.currentThread());
       }
     };
   }
 
-  private static void drainAndRelease(BlockingQueue<Event> drainMe) {
+  private void write(Event event) throws InterruptedException {
+    queueBudget.release(dequeuedSize(event));
+    writer.write(event);
+  }
+
+  private static void drainAndRelease(BlockingQueue<Event> drainMe, ByteBudget budget) {
     List<Event> releaseMe = new ArrayList<>(drainMe.size());
     drainMe.drainTo(releaseMe);
-    releaseMe.forEach(Event::release);
+    for (Event e : releaseMe) {
+      budget.release(dequeuedSize(e));
+      e.release();
+    }
+  }
+
+  /**
+   * Returns the number of bytes to return to the queue budget when the event leaves the queue.
+   * A compact event keeps its bytes until it's released.
+   */
+  private static int dequeuedSize(Event event) {
+    return event.isCompact() ? 0 : queuedSize(event);
   }
 
   private boolean isNormalTermination(Throwable t) {
@@ -121,4 +177,5 @@ public class ElasticsearchWorker implements AutoCloseable {
   public String toString() {
     return thread.toString();
   }
+
 }
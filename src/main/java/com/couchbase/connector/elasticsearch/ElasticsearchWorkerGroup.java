@@ -16,18 +16,26 @@
 
 package com.couchbase.connector.elasticsearch;
 
+import com.codahale.metrics.Meter;
+import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
 import com.couchbase.connector.config.es.BulkRequestConfig;
 import com.couchbase.connector.dcp.CheckpointService;
 import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.io.BulkRequestHedger;
+import com.couchbase.connector.elasticsearch.io.BulkSizeController;
+import com.couchbase.connector.elasticsearch.io.ClusterPressureMonitor;
 import com.couchbase.connector.elasticsearch.io.ElasticsearchWriter;
+import com.couchbase.connector.elasticsearch.io.RejectionSpool;
 import com.couchbase.connector.elasticsearch.io.RequestFactory;
+import com.couchbase.connector.elasticsearch.io.ShardRouter;
+import com.couchbase.connector.elasticsearch.io.SpillStore;
 import com.google.common.collect.ImmutableList;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.unit.TimeValue;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.Closeable;
+import javax.annotation.Nullable;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 
@@ -35,11 +43,36 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
-public class ElasticsearchWorkerGroup implements Closeable {
+public class ElasticsearchWorkerGroup implements PipelineEngine {
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchWorkerGroup.class);
 
+  // Sized to accommodate max number of vbuckets
+  private static final int MAX_VBUCKETS = 2048;
+
+  private static final Meter laneStealMeter = Metrics.meter("laneSteal");
+
   private final ImmutableList<ElasticsearchWorker> workers;
 
+  /**
+   * All events for a vbucket are handled by the same worker, which preserves the order
+   * of writes to each document and lets each worker track checkpoints independently.
+   * <p>
+   * A vbucket lane may be reassigned to a less busy worker, but only when every event
+   * previously submitted for the vbucket has been fully processed.
+   */
+  private static class Lane {
+    private int owner;
+    private int pending; // number of submitted events not yet fully processed
+
+    private Lane(int owner) {
+      this.owner = owner;
+    }
+  }
+
+  private final Lane[] lanes = new Lane[MAX_VBUCKETS];
+
+  private final ByteBudget queueBudget;
+
   // Workers communicate failures by writing them to this queue
   private final BlockingQueue<Throwable> fatalErrorQueue = new LinkedBlockingQueue<>();
 
@@ -47,39 +80,116 @@ public class ElasticsearchWorkerGroup implements Closeable {
                                   CheckpointService checkpointService,
                                   RequestFactory requestFactory,
                                   ErrorListener errorListener,
-                                  BulkRequestConfig bulkRequestConfig) {
+                                  BulkRequestConfig bulkRequestConfig,
+                                  boolean compressRequests,
+                                  @Nullable ShardRouter shardRouter,
+                                  @Nullable ClusterPressureMonitor pressureMonitor,
+                                  @Nullable BulkRequestHedger hedger,
+                                  @Nullable RejectionSpool rejectionSpool,
+                                  @Nullable SpillStore spillStore) {
     checkArgument(bulkRequestConfig.concurrentRequests() > 0, "must have at least one worker");
 
+    this.queueBudget = new ByteBudget(bulkRequestConfig.maxQueuedBytes().getBytes());
+    Metrics.gauge("queuedBytes", () -> queueBudget::used);
+
+    final BulkSizeController sizeController = new BulkSizeController(bulkRequestConfig);
+    Metrics.gauge("bulkLimitActions", () -> sizeController::actionsLimit);
+    Metrics.gauge("bulkLimitBytes", () -> sizeController::bytesLimit);
+
+    final int workerCount = bulkRequestConfig.concurrentRequests();
+    for (int i = 0; i < lanes.length; i++) {
+      lanes[i] = new Lane(i % workerCount);
+    }
+
     final ImmutableList.Builder<ElasticsearchWorker> workersBuilder = ImmutableList.builder();
-    for (int i = 0; i < bulkRequestConfig.concurrentRequests(); i++) {
-      workersBuilder.add(ElasticsearchWorker.newWorker(
-          new ElasticsearchWriter(client, checkpointService, requestFactory, bulkRequestConfig), fatalErrorQueue, errorListener));
+    for (int i = 0; i < workerCount; i++) {
+      final ElasticsearchWorker worker = ElasticsearchWorker.newWorker(
+          new ElasticsearchWriter(client, checkpointService, requestFactory, bulkRequestConfig, sizeController, compressRequests, shardRouter, pressureMonitor, hedger, rejectionSpool, spillStore, this::onEventCompleted),
+          fatalErrorQueue, errorListener, queueBudget);
+      workersBuilder.add(worker);
+      Metrics.gauge("writeQueue.worker" + i, () -> worker::getQueueSize);
     }
     this.workers = workersBuilder.build();
   }
 
+  /**
+   * Hands off the event to a worker. Never blocks; if the worker queues are full,
+   * flow control acknowledgements are held back instead (see {@link ByteBudget}).
+   */
+  @Override
   public void submit(Event e) {
+    final int size = ElasticsearchWorker.queuedSize(e);
+    if (!queueBudget.acquire(size)) {
+      // shutting down
+      e.release();
+      return;
+    }
+    if (e.isCompact()) {
+      // Already acknowledged, so the flow control buffer doesn't bound it.
+      // Count it against the budget until it's written, not just until it's dequeued.
+      e.setReleaseListener(() -> queueBudget.release(size));
+    }
+
     // Events for the same document ID must always be handled by the same worker.
-    final int workerIndex = e.getVbucket() % workers.size();
-    workers.get(workerIndex).submit(e);
+    // Since a document always lives in the same vbucket, that's guaranteed by
+    // the lane assignment.
+    final Lane lane = lanes[e.getVbucket()];
+    synchronized (lane) {
+      if (lane.pending == 0) {
+        // The lane has drained, so it's safe to hand it to whichever worker is least busy.
+        final int leastBusy = leastBusyWorker();
+        if (leastBusy != lane.owner
+            && workers.get(leastBusy).getQueueSize() < workers.get(lane.owner).getQueueSize()) {
+          LOGGER.debug("Moving vbucket {} from worker {} to worker {}", e.getVbucket(), lane.owner, leastBusy);
+          lane.owner = leastBusy;
+          laneStealMeter.mark();
+        }
+      }
+      lane.pending++;
+      workers.get(lane.owner).submit(e);
+    }
+  }
+
+  @Override
+  public ChannelFlowController flowControllerFor(ChannelFlowController connectionFlowController) {
+    return queueBudget.gate(connectionFlowController);
+  }
+
+  private int leastBusyWorker() {
+    int result = 0;
+    int minQueueSize = Integer.MAX_VALUE;
+    for (int i = 0; i < workers.size(); i++) {
+      final int queueSize = workers.get(i).getQueueSize();
+      if (queueSize < minQueueSize) {
+        minQueueSize = queueSize;
+        result = i;
+      }
+    }
+    return result;
   }
 
+  private void onEventCompleted(int vbucket) {
+    final Lane lane = lanes[vbucket];
+    synchronized (lane) {
+      lane.pending--;
+    }
+  }
+
+  @Override
   public Throwable awaitFatalError() throws InterruptedException {
     // SECONDS.sleep(4);
     //return new RuntimeException("fake failure");
     return fatalErrorQueue.take();
   }
 
+  @Override
   public long getQueueSize() {
     return workers.stream()
         .mapToLong(ElasticsearchWorker::getQueueSize)
         .sum();
   }
 
-  /**
-   * Returns the duration in milliseconds of the active request that started the longest time ago,
-   * or zero if there are no active requests.
-   */
+  @Override
   public long getCurrentRequestMillis() {
     return NANOSECONDS.toMillis(workers.stream()
         .mapToLong(ElasticsearchWorker::getCurrentRequestNanos)
@@ -89,6 +199,8 @@ public class ElasticsearchWorkerGroup implements Closeable {
 
   @Override
   public void close() {
+    queueBudget.close();
+
     final TimeValue timeout = new TimeValue(3, SECONDS);
     for (ElasticsearchWorker w : workers) {
       w.close();
@@ -16,7 +16,9 @@
 
 package com.couchbase.connector.elasticsearch;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricRegistry;
@@ -29,6 +31,7 @@ import com.codahale.metrics.jvm.JvmAttributeGaugeSet;
 import com.codahale.metrics.jvm.MemoryUsageGaugeSet;
 import com.codahale.metrics.jvm.ThreadStatesGaugeSet;
 import com.couchbase.client.dcp.metrics.DefaultDropwizardConfig;
+import com.couchbase.connector.dcp.Event;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -92,6 +95,14 @@ public class Metrics {
     return registry.timer(PREFIX + name);
   }
 
+  public static Counter counter(String name) {
+    return registry.counter(PREFIX + name);
+  }
+
+  public static Histogram histogram(String name) {
+    return registry.histogram(PREFIX + name);
+  }
+
   public static Gauge gauge(String name, MetricRegistry.MetricSupplier<Gauge> supplier) {
     // Some of our gauges are backed by connections to Couchbase or other server.
     // These must be recreated for each connection, so remove first.
@@ -117,6 +128,9 @@ public class Metrics {
   private static final Meter bulkRetriesMeter = Metrics.meter("bulkRetry");
   private static final Meter httpFailures = Metrics.meter("esConnFail");
   private static final Timer latencyTimer = Metrics.timer("latency");
+  private static final Counter jsonDocCounter = Metrics.counter("docDatatype.json");
+  private static final Counter binaryDocCounter = Metrics.counter("docDatatype.binary");
+  private static final Counter otherDatatypeDocCounter = Metrics.counter("docDatatype.other");
 
   public static Meter bytesMeter() {
     return bytesMeter;
@@ -154,6 +168,20 @@ public class Metrics {
     return latencyTimer;
   }
 
+  /**
+   * Returns the counter for mutations whose content has the given DCP datatype.
+   */
+  public static Counter datatypeCounter(int datatype) {
+    switch (datatype) {
+      case Event.DATATYPE_JSON:
+        return jsonDocCounter;
+      case Event.DATATYPE_RAW:
+        return binaryDocCounter;
+      default:
+        return otherDatatypeDocCounter;
+    }
+  }
+
   private static final ObjectMapper mapper = new ObjectMapper();
 
   static {
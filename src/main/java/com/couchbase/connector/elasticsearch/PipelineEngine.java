@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
+import com.couchbase.connector.dcp.Event;
+
+import java.io.Closeable;
+
+/**
+ * Moves events from the DCP client to Elasticsearch, and advances the checkpoints
+ * once the events have been written.
+ *
+ * @see ElasticsearchWorkerGroup
+ * @see ReactorPipelineEngine
+ */
+public interface PipelineEngine extends Closeable {
+  /**
+   * Hands off the event for writing.
+   * <p>
+   * The engine assumes ownership of the event (is responsible for releasing it).
+   */
+  void submit(Event e);
+
+  /**
+   * Returns the flow controller that events received from a DCP connection should
+   * acknowledge their messages through. An engine may hold back acknowledgements
+   * to slow down the Couchbase server without blocking the DCP client's IO thread.
+   */
+  default ChannelFlowController flowControllerFor(ChannelFlowController connectionFlowController) {
+    return connectionFlowController;
+  }
+
+  /**
+   * Blocks until the engine fails, then returns the cause.
+   */
+  Throwable awaitFatalError() throws InterruptedException;
+
+  /**
+   * Returns the number of submitted events waiting to be handed to a writer.
+   */
+  long getQueueSize();
+
+  /**
+   * Returns the duration in milliseconds of the active request that started the longest time ago,
+   * or zero if there are no active requests.
+   */
+  long getCurrentRequestMillis();
+
+  @Override
+  void close();
+}
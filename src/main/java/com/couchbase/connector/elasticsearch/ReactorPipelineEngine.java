@@ -0,0 +1,485 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch;
+
+import com.couchbase.client.dcp.message.MessageUtil;
+import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.connector.config.es.BulkRequestConfig;
+import com.couchbase.connector.config.es.PipelineConfig;
+import com.couchbase.connector.dcp.CheckpointService;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.io.BulkRequestSender;
+import com.couchbase.connector.elasticsearch.io.EventDocWriteRequest;
+import com.couchbase.connector.elasticsearch.io.EventRejectionIndexRequest;
+import com.couchbase.connector.elasticsearch.io.RequestFactory;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.MapMaker;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.BaseSubscriber;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * An alternative to {@link ElasticsearchWorkerGroup} that models the path from DCP
+ * to Elasticsearch as backpressured {@link Flux} streams.
+ * <p>
+ * Each vbucket belongs to one of {@code concurrentRequests} lanes, which preserves the order
+ * of the changes to each document. A lane's stream has one operator per stage:
+ * <ol>
+ * <li>ingest: events are emitted by the DCP IO threads, and published on the lane's thread
+ * with up to {@code prefetch} events requested ahead;
+ * <li>match/transform: up to {@code transformConcurrency} events at a time are turned into
+ * requests on a shared pool of transform threads, and passed on in their original order;
+ * <li>batch: requests are collected into batches of up to {@code maxActions}, each sent
+ * once it's full or has lingered long enough;
+ * <li>bulk: up to {@code pipelineDepth} bulk requests are in flight at once (see
+ * {@link BulkRequestSender}). A batch that writes a document still being written by an
+ * earlier batch waits for it, so versions of a document are never written out of order;
+ * <li>checkpoint: batches are completed in order, so the checkpoint of each vbucket
+ * simply advances to its last event in the batch. Then the events are released.
+ * </ol>
+ * Backpressure comes from the demand each stage signals upstream. The DCP IO threads never
+ * block; if the ingest stage hasn't asked for more events, new ones wait in the source's
+ * buffer, and the flow control acknowledgements for the lane's vbuckets are held back until
+ * the stage requests more. That stops the Couchbase server from sending more than the lane can
+ * handle. (The {@code maxQueuedBytes} limit of the worker queues doesn't apply.)
+ * <p>
+ * Adaptive bulk sizing, index isolation, shard routing, cluster pressure throttling, hedging,
+ * spilling and the rejection spool are features of
+ * {@link com.couchbase.connector.elasticsearch.io.ElasticsearchWriter}, and are not available
+ * with this engine.
+ */
+public class ReactorPipelineEngine implements PipelineEngine {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ReactorPipelineEngine.class);
+
+  // bufferTimeout requires a positive timeout, so a linger of zero becomes this.
+  private static final Duration MIN_LINGER = Duration.ofMillis(1);
+
+  private final ImmutableList<Lane> lanes;
+
+  // Shared by all lanes.
+  private final Scheduler transformScheduler;
+
+  // One gate per DCP connection, so events don't need a new one each. A gate is only
+  // referenced by the events that use it; once they're gone, the entry may be collected.
+  private final ConcurrentMap<ChannelFlowController, AckGate> gates = new MapMaker().weakKeys().weakValues().makeMap();
+
+  // Lanes communicate failures by writing them to this queue
+  private final BlockingQueue<Throwable> fatalErrorQueue = new LinkedBlockingQueue<>();
+
+  /**
+   * A document change and the request that writes it, or null if the change is ignored.
+   */
+  private static class Item {
+    private final Event event;
+    @Nullable
+    private final EventDocWriteRequest request;
+
+    private Item(Event event, @Nullable EventDocWriteRequest request) {
+      this.event = event;
+      this.request = request;
+    }
+  }
+
+  /**
+   * The stream of events for a subset of the vbuckets. The subscriber callbacks
+   * are the checkpoint stage.
+   */
+  private class Lane extends BaseSubscriber<List<Item>> {
+    private final int index;
+    private final Scheduler scheduler;
+    private final BulkRequestSender sender;
+    private final CheckpointService checkpointService;
+    private final RequestFactory requestFactory;
+    private final BulkRequestConfig bulkConfig;
+    private final PipelineConfig pipelineConfig;
+
+    // Number of events emitted but not yet taken by the match/transform stage.
+    private final AtomicInteger queued = new AtomicInteger();
+
+    // For each document being written by a batch in flight, completes when that batch is done.
+    private final ConcurrentMap<String, CompletableFuture<Void>> inFlightKeys = new ConcurrentHashMap<>();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    @GuardedBy("this")
+    private FluxSink<Event> sink;
+
+    // Total bytes of the acknowledgements held back, for each flow controller.
+    @GuardedBy("this")
+    private final Map<ChannelFlowController, Integer> withheldAcks = new IdentityHashMap<>();
+
+    @GuardedBy("this")
+    private long withheldAckBytes;
+
+    private volatile boolean closed;
+
+    private Lane(int index, RestHighLevelClient client, CheckpointService checkpointService,
+                 RequestFactory requestFactory, BulkRequestConfig bulkConfig, PipelineConfig pipelineConfig,
+                 boolean compressRequests) {
+      this.index = index;
+      this.scheduler = Schedulers.newSingle("es-lane-" + index, true);
+      this.sender = new BulkRequestSender(client, requestFactory, bulkConfig, compressRequests, scheduler);
+      this.checkpointService = requireNonNull(checkpointService);
+      this.requestFactory = requireNonNull(requestFactory);
+      this.bulkConfig = requireNonNull(bulkConfig);
+      this.pipelineConfig = requireNonNull(pipelineConfig);
+    }
+
+    private void start() {
+      final Duration linger = Duration.ofNanos(Math.max(bulkConfig.linger().nanos(), MIN_LINGER.toNanos()));
+
+      Flux.<Event>create(s -> {
+        synchronized (this) {
+          sink = s;
+        }
+        s.onRequest(n -> sendWithheldAcks());
+      }, FluxSink.OverflowStrategy.BUFFER)
+          // ingest
+          .publishOn(scheduler, pipelineConfig.prefetch())
+          .doOnNext(e -> queued.decrementAndGet())
+          // match/transform
+          .flatMapSequential(this::transform, pipelineConfig.transformConcurrency(), 1)
+          // batch
+          .bufferTimeout(bulkConfig.maxActions(), linger, scheduler)
+          // bulk
+          .flatMapSequential(this::bulk, bulkConfig.pipelineDepth(), 1)
+          // checkpoint (on the lane's thread, not the HTTP client's)
+          .publishOn(scheduler, bulkConfig.pipelineDepth())
+          .subscribe(this);
+    }
+
+    /**
+     * Emits the event without waiting for demand. If the lane hasn't requested it yet,
+     * the event is buffered until it does, and acknowledgements are held back meanwhile.
+     */
+    private void submit(Event e) {
+      synchronized (this) {
+        if (closed) {
+          e.release();
+          return;
+        }
+        queued.incrementAndGet();
+        sink.next(e);
+      }
+    }
+
+    /**
+     * Returns the number of events the lane has requested but not received yet.
+     */
+    private synchronized long demand() {
+      return closed || sink == null ? 0 : sink.requestedFromDownstream();
+    }
+
+    /**
+     * @return true if the acknowledgement was withheld, false if the caller should send it.
+     */
+    private synchronized boolean withhold(ChannelFlowController flowController, int bytes) {
+      // Checked under the same lock as sendWithheldAcks(), which runs after the demand
+      // has been updated, so an acknowledgement can't be withheld after the last request.
+      if (closed || sink == null || sink.requestedFromDownstream() > 0) {
+        return false;
+      }
+      withheldAcks.merge(flowController, bytes, Integer::sum);
+      withheldAckBytes += bytes;
+      return true;
+    }
+
+    /**
+     * Called when the ingest stage requests more events, and when the lane closes.
+     */
+    private void sendWithheldAcks() {
+      final Map<ChannelFlowController, Integer> acks;
+      synchronized (this) {
+        if (withheldAcks.isEmpty()) {
+          return;
+        }
+        acks = new IdentityHashMap<>(withheldAcks);
+        withheldAcks.clear();
+        withheldAckBytes = 0;
+      }
+      acks.forEach((flowController, bytes) -> {
+        try {
+          flowController.ack(bytes);
+        } catch (Exception e) {
+          LOGGER.warn("Flow control ack failed (channel already closed?)", e);
+        }
+      });
+    }
+
+    private synchronized long withheldAckBytes() {
+      return withheldAckBytes;
+    }
+
+    private Mono<Item> transform(Event e) {
+      if (closed) {
+        return Mono.just(new Item(e, null));
+      }
+      return Mono.fromCallable(() -> new Item(e, requestFactory.newDocWriteRequest(e)))
+          .subscribeOn(transformScheduler);
+    }
+
+    private Mono<List<Item>> bulk(List<Item> batch) {
+      // Only the most recent version of each document needs to be written.
+      // (Rejection log entries are written to their own index, so they're all kept.)
+      final Map<String, EventDocWriteRequest> latest = new LinkedHashMap<>();
+      final List<EventDocWriteRequest> requests = new ArrayList<>(batch.size());
+      for (Item item : batch) {
+        if (item.request instanceof EventRejectionIndexRequest) {
+          requests.add(item.request);
+        } else if (item.request != null) {
+          latest.put(item.event.getKey(), item.request);
+        }
+      }
+      requests.addAll(latest.values());
+      if (requests.isEmpty()) {
+        return Mono.just(batch);
+      }
+
+      final CompletableFuture<Void> done = new CompletableFuture<>();
+      final List<CompletableFuture<Void>> predecessors = new ArrayList<>();
+      for (String key : latest.keySet()) {
+        final CompletableFuture<Void> previous = inFlightKeys.put(key, done);
+        if (previous != null && !predecessors.contains(previous)) {
+          predecessors.add(previous);
+        }
+      }
+
+      final Mono<Void> send = predecessors.isEmpty()
+          ? sender.send(requests)
+          : Mono.fromFuture(CompletableFuture.allOf(predecessors.toArray(new CompletableFuture[0])))
+          .then(sender.send(requests));
+
+      return send
+          .doFinally(signal -> {
+            latest.keySet().forEach(key -> inFlightKeys.remove(key, done));
+            done.complete(null);
+          })
+          .then(Mono.just(batch));
+    }
+
+    @Override
+    protected void hookOnSubscribe(Subscription subscription) {
+      request(bulkConfig.pipelineDepth());
+    }
+
+    @Override
+    protected void hookOnNext(List<Item> batch) {
+      try {
+        if (!closed) {
+          checkpoint(batch);
+        }
+      } finally {
+        for (Item item : batch) {
+          item.event.release();
+        }
+      }
+      request(1);
+    }
+
+    /**
+     * Advances the checkpoint of each vbucket to its last event in the batch.
+     * Every earlier batch has already been checkpointed, so nothing before it is pending.
+     */
+    private void checkpoint(List<Item> batch) {
+      final BitSet done = new BitSet();
+      for (int i = batch.size() - 1; i >= 0; i--) {
+        final Event e = batch.get(i).event;
+        if (!done.get(e.getVbucket())) {
+          done.set(e.getVbucket());
+          checkpointService.set(e.getVbucket(), e.getCheckpoint());
+        }
+      }
+    }
+
+    @Override
+    protected void hookOnError(Throwable t) {
+      LOGGER.warn("Error in Elasticsearch pipeline lane {}", index, t);
+      fatalErrorQueue.offer(t);
+    }
+
+    @Override
+    protected void hookFinally(SignalType type) {
+      terminated.countDown();
+      LOGGER.info("Pipeline lane {} stopped.", index);
+    }
+
+    /**
+     * Stops accepting events and sends the withheld acknowledgements. Events already emitted
+     * are drained through the stages without being written, then released.
+     */
+    private void close() {
+      synchronized (this) {
+        closed = true;
+        if (sink != null) {
+          sink.complete();
+        }
+      }
+      sender.close();
+      sendWithheldAcks();
+    }
+  }
+
+  /**
+   * Acknowledges through the connection's flow controller, except while the lane
+   * of the acknowledged message's vbucket isn't asking for more events.
+   */
+  private class AckGate implements ChannelFlowController {
+    private final ChannelFlowController delegate;
+
+    private AckGate(ChannelFlowController delegate) {
+      this.delegate = requireNonNull(delegate);
+    }
+
+    @Override
+    public void ack(ByteBuf message) {
+      if (!laneFor(MessageUtil.getVbucket(message)).withhold(delegate, message.readableBytes())) {
+        delegate.ack(message);
+      }
+    }
+
+    @Override
+    public void ack(int numBytes) {
+      delegate.ack(numBytes);
+    }
+  }
+
+  public ReactorPipelineEngine(RestHighLevelClient client,
+                               CheckpointService checkpointService,
+                               RequestFactory requestFactory,
+                               BulkRequestConfig bulkRequestConfig,
+                               PipelineConfig pipelineConfig,
+                               boolean compressRequests) {
+    checkArgument(bulkRequestConfig.concurrentRequests() > 0, "must have at least one lane");
+    checkArgument(pipelineConfig.prefetch() > 0, "prefetch must be > 0");
+
+    this.transformScheduler = Schedulers.newParallel("es-transform", pipelineConfig.transformConcurrency(), true);
+
+    final ImmutableList.Builder<Lane> lanesBuilder = ImmutableList.builder();
+    for (int i = 0; i < bulkRequestConfig.concurrentRequests(); i++) {
+      final Lane lane = new Lane(i, client, checkpointService, requestFactory, bulkRequestConfig, pipelineConfig, compressRequests);
+      lanesBuilder.add(lane);
+      Metrics.gauge("writeQueue.lane" + i, () -> lane.queued::get);
+    }
+    this.lanes = lanesBuilder.build();
+    this.lanes.forEach(Lane::start);
+
+    Metrics.gauge("pipelineDemand", () -> () -> lanes.stream()
+        .mapToLong(Lane::demand)
+        .sum());
+    Metrics.gauge("withheldAckBytes", () -> () -> lanes.stream()
+        .mapToLong(Lane::withheldAckBytes)
+        .sum());
+  }
+
+  private Lane laneFor(int vbucket) {
+    return lanes.get(vbucket % lanes.size());
+  }
+
+  /**
+   * Hands off the event to its lane. Never blocks; if the lane isn't ready for it,
+   * flow control acknowledgements are held back instead (see {@link AckGate}).
+   */
+  @Override
+  public void submit(Event e) {
+    // Events for the same document ID must always be handled by the same lane.
+    // Since a document always lives in the same vbucket, that's guaranteed by
+    // the lane assignment.
+    laneFor(e.getVbucket()).submit(e);
+  }
+
+  @Override
+  public ChannelFlowController flowControllerFor(ChannelFlowController connectionFlowController) {
+    final AckGate gate = gates.get(connectionFlowController);
+    return gate != null ? gate : gates.computeIfAbsent(connectionFlowController, AckGate::new);
+  }
+
+  @Override
+  public Throwable awaitFatalError() throws InterruptedException {
+    return fatalErrorQueue.take();
+  }
+
+  @Override
+  public long getQueueSize() {
+    return lanes.stream()
+        .mapToLong(l -> l.queued.get())
+        .sum();
+  }
+
+  @Override
+  public long getCurrentRequestMillis() {
+    return NANOSECONDS.toMillis(lanes.stream()
+        .mapToLong(l -> l.sender.getCurrentRequestNanos())
+        .max()
+        .orElseThrow(() -> new AssertionError("There should be at least one lane.")));
+  }
+
+  @Override
+  public void close() {
+    final TimeValue timeout = new TimeValue(3, SECONDS);
+    for (Lane l : lanes) {
+      l.close();
+    }
+    try {
+      for (Lane l : lanes) {
+        if (!l.terminated.await(Math.max(1, timeout.millis()), MILLISECONDS)) {
+          LOGGER.warn("Pipeline lane {} failed to stop after {}", l.index, timeout);
+          l.dispose();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.warn("Interrupted while waiting for pipeline lanes to stop.");
+    }
+    for (Lane l : lanes) {
+      l.scheduler.dispose();
+    }
+    transformScheduler.dispose();
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.elasticsearch.action.DocWriteRequest;
+
+import javax.annotation.Nullable;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * The pre-encoded start of a bulk request action line, up to (but not including)
+ * the document ID. Built once per destination and shared by every request sent there,
+ * so the encoder doesn't have to look it up for each item.
+ */
+public final class BulkActionPrefix {
+  private final byte[] bytes;
+
+  public BulkActionPrefix(DocWriteRequest.OpType opType, String index, String type, @Nullable String pipeline) {
+    final JsonStringEncoder stringEncoder = JsonStringEncoder.getInstance();
+    final StringBuilder sb = new StringBuilder()
+        .append("{\"").append(opType.getLowercase()).append("\":{")
+        .append("\"_index\":\"").append(stringEncoder.quoteAsString(index)).append("\"")
+        .append(",\"_type\":\"").append(stringEncoder.quoteAsString(type)).append("\"");
+
+    if (pipeline != null) {
+      sb.append(",\"pipeline\":\"").append(stringEncoder.quoteAsString(pipeline)).append("\"");
+    }
+
+    this.bytes = sb.toString().getBytes(UTF_8);
+  }
+
+  byte[] bytes() {
+    return bytes;
+  }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
+import com.couchbase.client.dcp.message.MessageUtil;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufOutputStream;
+import com.couchbase.client.deps.io.netty.buffer.PooledByteBufAllocator;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import org.apache.http.entity.ContentType;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.action.DocWriteRequest;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Writes bulk request items directly into a pooled direct buffer using the
+ * newline-delimited JSON format expected by the Elasticsearch bulk API.
+ * <p>
+ * Document content that doesn't need to be transformed is copied straight
+ * from the DCP message buffer, bypassing the high-level client's
+ * BulkRequest serialization.
+ * <p>
+ * If compression is enabled, the body is gzipped as it is written,
+ * so the uncompressed form is never buffered.
+ * <p>
+ * NOT THREAD SAFE.
+ */
+class BulkRequestEncoder {
+  static final ContentType CONTENT_TYPE = ContentType.create("application/x-ndjson", UTF_8);
+  static final String GZIP_CONTENT_ENCODING = "gzip";
+
+  private static final Histogram compressionRatioHistogram = Metrics.histogram("compressionRatioPercent");
+  private static final Timer compressionCpuTimer = Metrics.timer("compressionCpu");
+  private static final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+  private static final byte[] GZIP_HEADER = {
+      (byte) 0x1f, (byte) 0x8b, // magic number
+      Deflater.DEFLATED, // compression method
+      0, // flags
+      0, 0, 0, 0, // modification time
+      0, // extra flags
+      (byte) 0xff // operating system (unknown)
+  };
+
+  // Inferred index names could make the cache grow without bound, so put a lid on it.
+  private static final int MAX_CACHED_ACTION_PREFIXES = 1024;
+
+  private static final byte[] ID_FIELD = bytes(",\"_id\":\"");
+  private static final byte[] ROUTING_FIELD = bytes("\",\"routing\":\"");
+  private static final byte[] ACTION_LINE_END = bytes("\"}}\n");
+  private static final byte[] NEWLINE = bytes("\n");
+
+  private final JsonStringEncoder stringEncoder = JsonStringEncoder.getInstance();
+
+  private final boolean compress;
+
+  // Reused for every request when compressing. The network is the bottleneck
+  // we're trying to relieve, but there's no need to burn CPU on the last few percent.
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] scratch = new byte[8 * 1024];
+
+  // Pre-encoded start of the action line, for requests that don't carry their own.
+  private final Map<ActionKey, byte[]> actionPrefixes = new HashMap<>();
+
+  BulkRequestEncoder(boolean compress) {
+    this.compress = compress;
+    this.deflater = compress ? new Deflater(Deflater.BEST_SPEED, true) : null;
+  }
+
+  /**
+   * Frees the native resources used for compression.
+   */
+  void close() {
+    if (deflater != null) {
+      deflater.end();
+    }
+  }
+
+  boolean isCompressing() {
+    return compress;
+  }
+
+  /**
+   * Returns a new buffer containing the bulk request body for the given requests.
+   * Caller is responsible for releasing the buffer.
+   */
+  ByteBuf encode(List<? extends EventDocWriteRequest> requests) {
+    if (!compress) {
+      return encodeUncompressed(requests);
+    }
+
+    // guess the body will compress to about a quarter of its size
+    final ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(estimatedSize(requests) / 4);
+    try {
+      encodeCompressed(buf, requests);
+      return buf;
+    } catch (Throwable t) {
+      buf.release();
+      throw t;
+    }
+  }
+
+  /**
+   * Like {@link #encode}, but never compresses the body.
+   */
+  ByteBuf encodeUncompressed(List<? extends EventDocWriteRequest> requests) {
+    final ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(estimatedSize(requests));
+    try {
+      encode(new ByteBufSink(buf), requests);
+      return buf;
+
+    } catch (Throwable t) {
+      buf.release();
+      throw t;
+    }
+  }
+
+  private static int estimatedSize(List<? extends EventDocWriteRequest> requests) {
+    int estimatedSize = 0;
+    for (EventDocWriteRequest r : requests) {
+      estimatedSize += r.estimatedSizeInBytes();
+    }
+    return estimatedSize;
+  }
+
+  private void encodeCompressed(ByteBuf buf, List<? extends EventDocWriteRequest> requests) {
+    final long startCpuNanos = threadMXBean.getCurrentThreadCpuTime();
+
+    buf.writeBytes(GZIP_HEADER);
+    deflater.reset();
+    crc.reset();
+
+    final DeflatingSink sink = new DeflatingSink(new DeflaterOutputStream(new ByteBufOutputStream(buf), deflater, scratch.length));
+    encode(sink, requests);
+    sink.finish();
+
+    writeIntLE(buf, (int) crc.getValue());
+    writeIntLE(buf, (int) sink.uncompressedBytes);
+
+    if (startCpuNanos != -1) {
+      compressionCpuTimer.update(threadMXBean.getCurrentThreadCpuTime() - startCpuNanos, NANOSECONDS);
+    }
+    if (sink.uncompressedBytes > 0) {
+      compressionRatioHistogram.update(buf.readableBytes() * 100L / sink.uncompressedBytes);
+    }
+  }
+
+  private static void writeIntLE(ByteBuf buf, int value) {
+    buf.writeByte(value);
+    buf.writeByte(value >>> 8);
+    buf.writeByte(value >>> 16);
+    buf.writeByte(value >>> 24);
+  }
+
+  private void encode(Sink sink, List<? extends EventDocWriteRequest> requests) {
+    for (EventDocWriteRequest r : requests) {
+      writeActionLine(sink, r);
+      if (r.opType() != DocWriteRequest.OpType.DELETE) {
+        writeSource(sink, (EventIndexRequest) r);
+      }
+    }
+  }
+
+  private void writeActionLine(Sink sink, EventDocWriteRequest r) {
+    final BulkActionPrefix prefix = r.getActionPrefix();
+    if (prefix != null) {
+      sink.write(prefix.bytes());
+    } else {
+      final String pipeline = r instanceof EventIndexRequest ? ((EventIndexRequest) r).getPipeline() : null;
+      sink.write(getActionPrefix(r.opType(), r.index(), r.type(), pipeline));
+    }
+
+    sink.write(ID_FIELD);
+    writeId(sink, r);
+
+    final String routing = r.routing();
+    if (routing != null) {
+      sink.write(ROUTING_FIELD);
+      writeStringContent(sink, routing);
+    }
+
+    sink.write(ACTION_LINE_END);
+  }
+
+  /**
+   * The document ID is almost always the event's key, whose UTF-8 bytes are already
+   * in the DCP message. Copies them from there unless they need escaping.
+   */
+  private void writeId(Sink sink, EventDocWriteRequest r) {
+    final Event event = r.getEvent();
+    final String id = r.id();
+    if (id == event.getKey()) {
+      final ByteBuf buf = event.getByteBuf();
+      final int offset = event.getKeyOffset();
+      final int length = event.getKeyLength();
+      if (!needsEscaping(buf, offset, length)) {
+        sink.write(buf, offset, length);
+        return;
+      }
+    }
+    writeStringContent(sink, id);
+  }
+
+  private static boolean needsEscaping(ByteBuf buf, int offset, int length) {
+    for (int i = offset, end = offset + length; i < end; i++) {
+      final int b = buf.getByte(i) & 0xff;
+      // Bytes of multi-byte UTF-8 sequences are all >= 0x80, and may appear as-is.
+      if (b < 0x20 || b == '"' || b == '\\') {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Writes the contents of a JSON string (without the quotes). Plain ASCII is written
+   * one char at a time; anything else goes through the JSON string encoder.
+   */
+  private void writeStringContent(Sink sink, String s) {
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') {
+        sink.write(stringEncoder.quoteAsUTF8(s));
+        return;
+      }
+    }
+    sink.writeAscii(s);
+  }
+
+  private static void writeSource(Sink sink, EventIndexRequest r) {
+    if (r.isSourceFromEvent()) {
+      sink.writeEventContent(MessageUtil.getContent(r.getEvent().getByteBuf()));
+
+    } else {
+      // Sources built by the connector are always compact, so no need to check for newlines.
+      final BytesRef source = r.source().toBytesRef();
+      sink.write(source.bytes, source.offset, source.length);
+    }
+
+    sink.writeNewline();
+  }
+
+  /**
+   * Destination for the encoded request body.
+   */
+  private interface Sink {
+    void write(byte[] bytes, int offset, int length);
+
+    default void write(byte[] bytes) {
+      write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Writes bytes from the given buffer without changing its indexes.
+     */
+    void write(ByteBuf src, int index, int length);
+
+    /**
+     * Writes a string known to contain only ASCII characters.
+     */
+    void writeAscii(String s);
+
+    void writeNewline();
+
+    /**
+     * Writes verbatim document content, replacing newlines with spaces.
+     * <p>
+     * The bulk API uses newlines to separate items. A document with pretty-printed
+     * content would break the request, so replace any newlines with spaces.
+     * This is safe because the content is known to be valid JSON, where a newline
+     * can only appear as insignificant whitespace.
+     */
+    void writeEventContent(ByteBuf content);
+  }
+
+  private static class ByteBufSink implements Sink {
+    private final ByteBuf buf;
+
+    private ByteBufSink(ByteBuf buf) {
+      this.buf = buf;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      buf.writeBytes(bytes, offset, length);
+    }
+
+    @Override
+    public void write(ByteBuf src, int index, int length) {
+      buf.writeBytes(src, index, length);
+    }
+
+    @Override
+    public void writeAscii(String s) {
+      for (int i = 0; i < s.length(); i++) {
+        buf.writeByte(s.charAt(i));
+      }
+    }
+
+    @Override
+    public void writeNewline() {
+      buf.writeByte('\n');
+    }
+
+    @Override
+    public void writeEventContent(ByteBuf content) {
+      int fromIndex = buf.writerIndex();
+      buf.writeBytes(content, content.readerIndex(), content.readableBytes());
+
+      int i;
+      while ((i = buf.indexOf(fromIndex, buf.writerIndex(), (byte) '\n')) != -1) {
+        buf.setByte(i, ' ');
+        fromIndex = i + 1;
+      }
+    }
+  }
+
+  private class DeflatingSink implements Sink {
+    private final DeflaterOutputStream out;
+    private long uncompressedBytes;
+
+    private DeflatingSink(DeflaterOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      try {
+        out.write(bytes, offset, length);
+        crc.update(bytes, offset, length);
+        uncompressedBytes += length;
+      } catch (IOException e) {
+        // ByteBufOutputStream doesn't actually throw
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    @Override
+    public void write(ByteBuf src, int index, int length) {
+      while (length > 0) {
+        final int chunkLength = Math.min(length, scratch.length);
+        src.getBytes(index, scratch, 0, chunkLength);
+        write(scratch, 0, chunkLength);
+        index += chunkLength;
+        length -= chunkLength;
+      }
+    }
+
+    @Override
+    public void writeAscii(String s) {
+      int start = 0;
+      while (start < s.length()) {
+        final int chunkLength = Math.min(s.length() - start, scratch.length);
+        for (int i = 0; i < chunkLength; i++) {
+          scratch[i] = (byte) s.charAt(start + i);
+        }
+        write(scratch, 0, chunkLength);
+        start += chunkLength;
+      }
+    }
+
+    @Override
+    public void writeNewline() {
+      write(NEWLINE);
+    }
+
+    @Override
+    public void writeEventContent(ByteBuf content) {
+      // Feed the deflater in chunks so the content is never copied in full.
+      int index = content.readerIndex();
+      int remaining = content.readableBytes();
+      while (remaining > 0) {
+        final int chunkLength = Math.min(remaining, scratch.length);
+        content.getBytes(index, scratch, 0, chunkLength);
+        for (int i = 0; i < chunkLength; i++) {
+          if (scratch[i] == '\n') {
+            scratch[i] = ' ';
+          }
+        }
+        write(scratch, 0, chunkLength);
+        index += chunkLength;
+        remaining -= chunkLength;
+      }
+    }
+
+    private void finish() {
+      try {
+        out.finish();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  private byte[] getActionPrefix(DocWriteRequest.OpType opType, String index, String type, String pipeline) {
+    final ActionKey key = new ActionKey(opType, index, type, pipeline);
+    byte[] prefix = actionPrefixes.get(key);
+    if (prefix == null) {
+      if (actionPrefixes.size() >= MAX_CACHED_ACTION_PREFIXES) {
+        actionPrefixes.clear();
+      }
+      prefix = new BulkActionPrefix(opType, index, type, pipeline).bytes();
+      actionPrefixes.put(key, prefix);
+    }
+    return prefix;
+  }
+
+  private static byte[] bytes(String s) {
+    return s.getBytes(UTF_8);
+  }
+
+  private static class ActionKey {
+    private final DocWriteRequest.OpType opType;
+    private final String index;
+    private final String type;
+    private final String pipeline;
+
+    private ActionKey(DocWriteRequest.OpType opType, String index, String type, String pipeline) {
+      this.opType = opType;
+      this.index = index;
+      this.type = type;
+      this.pipeline = pipeline;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (o == null || getClass() != o.getClass()) {
+        return false;
+      }
+      ActionKey actionKey = (ActionKey) o;
+      return opType == actionKey.opType &&
+          index.equals(actionKey.index) &&
+          type.equals(actionKey.type) &&
+          Objects.equals(pipeline, actionKey.pipeline);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(opType, index, type, pipeline);
+    }
+  }
+}
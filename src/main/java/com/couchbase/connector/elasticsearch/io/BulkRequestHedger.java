@@ -0,0 +1,279 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.connector.config.es.HedgingConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.action.bulk.BulkResponse;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Sends a second copy of a bulk request if the first one takes much longer
+ * than usual, and uses whichever response arrives first. This keeps a single
+ * slow node (long GC pause, flaky network) from holding up a writer until
+ * the bulk request times out.
+ * <p>
+ * A request is hedged once it has been in flight longer than the configured
+ * percentile of recent bulk request latencies. Each request sent earns a fraction
+ * of a hedge, so only a limited percentage of requests are ever hedged, even
+ * if the whole cluster slows down.
+ * <p>
+ * Writing the same documents twice is harmless since the copies are identical,
+ * but the caller must not send a newer version of any of the documents until
+ * the request is {@linkplain HedgedResponse#settled settled}.
+ * <p>
+ * Thread-safe.
+ */
+public class BulkRequestHedger implements Closeable {
+  private static final Meter hedgeMeter = Metrics.meter("bulkHedge");
+  private static final Meter hedgeWinMeter = Metrics.meter("bulkHedgeWin");
+
+  // Number of recent latencies used to calculate the hedge delay.
+  private static final int WINDOW_SIZE = 1000;
+
+  // Don't hedge until there's enough history to say what "unusually slow" means.
+  private static final int MIN_SAMPLES = 100;
+
+  // Sorting the whole window for every sample would be wasteful.
+  private static final int RECALCULATE_INTERVAL = 50;
+
+  // Unused budget accumulates up to this many hedges, to allow short bursts.
+  private static final double MAX_TOKENS = 10;
+
+  private final int percentile;
+  private final long minDelayNanos;
+  private final double tokensPerRequest;
+  private final ScheduledExecutorService executor;
+
+  @GuardedBy("this")
+  private final long[] latencies = new long[WINDOW_SIZE];
+
+  @GuardedBy("this")
+  private final long[] sortedLatencies = new long[WINDOW_SIZE];
+
+  @GuardedBy("this")
+  private long sampleCount;
+
+  @GuardedBy("this")
+  private double tokens;
+
+  // How long to wait before hedging, or -1 if not enough latencies have been recorded yet.
+  private volatile long delayNanos = -1;
+
+  private volatile boolean closed;
+
+  /**
+   * The response to a bulk request that might have been hedged.
+   */
+  static class HedgedResponse {
+    /**
+     * Completes with the first successful response, or fails if every copy of the request failed.
+     */
+    final CompletableFuture<BulkResponse> response = new CompletableFuture<>();
+
+    /**
+     * Completes once no copy of the request is in flight or waiting to be sent.
+     * Never completes exceptionally.
+     */
+    final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+    @GuardedBy("this")
+    private int copiesInFlight = 1;
+
+    // Copies in flight, plus the hedge if it is scheduled but not yet sent.
+    @GuardedBy("this")
+    private int outstanding;
+
+    @GuardedBy("this")
+    private Throwable firstFailure;
+
+    private HedgedResponse(boolean hedgeScheduled) {
+      this.outstanding = hedgeScheduled ? 2 : 1;
+    }
+
+    // Futures are completed outside the lock, since completing one runs its callbacks.
+
+    private void onCopyComplete(BulkRequestHedger hedger, boolean isHedge, long startNanos,
+                                BulkResponse r, Throwable failure) {
+      if (failure == null) {
+        hedger.recordLatency(System.nanoTime() - startNanos);
+        // Complete before counting this copy as done, so a failing copy can't claim to be the last.
+        if (response.complete(r) && isHedge) {
+          hedgeWinMeter.mark();
+        }
+      }
+
+      final Throwable giveUp;
+      final boolean nowSettled;
+      synchronized (this) {
+        copiesInFlight--;
+        if (failure != null && firstFailure == null) {
+          firstFailure = failure;
+        }
+        // If every copy failed, there's nothing left that might succeed.
+        giveUp = failure != null && copiesInFlight == 0 ? firstFailure : null;
+        nowSettled = --outstanding == 0;
+      }
+
+      if (giveUp != null) {
+        response.completeExceptionally(giveUp);
+      }
+      if (nowSettled) {
+        settled.complete(null);
+      }
+    }
+
+    /**
+     * @return true if the caller should send the hedge
+     */
+    private boolean startHedge(BulkRequestHedger hedger) {
+      synchronized (this) {
+        // Only hedge if the original request is still in flight.
+        if (copiesInFlight > 0 && !hedger.closed && hedger.trySpendToken()) {
+          copiesInFlight++;
+          return true;
+        }
+      }
+      cancelHedge();
+      return false;
+    }
+
+    private void cancelHedge() {
+      final boolean nowSettled;
+      synchronized (this) {
+        nowSettled = --outstanding == 0;
+      }
+      if (nowSettled) {
+        settled.complete(null);
+      }
+    }
+  }
+
+  public BulkRequestHedger(HedgingConfig config) {
+    this.percentile = config.percentile();
+    this.minDelayNanos = config.minDelay().nanos();
+    this.tokensPerRequest = config.budgetPercent() / 100d;
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("bulk-request-hedger").setDaemon(true).build());
+    Metrics.gauge("bulkHedgeDelayMs", () -> this::currentDelayMillis);
+  }
+
+  /**
+   * Sends a bulk request, and sends it again if it's unusually slow.
+   * <p>
+   * Takes ownership of the request body. Each sender must release the buffer
+   * it's given once its request completes.
+   *
+   * @param primary sends the original request
+   * @param backup sends the hedge, preferably to a different node
+   */
+  HedgedResponse send(ByteBuf body,
+                      Function<ByteBuf, CompletableFuture<BulkResponse>> primary,
+                      Function<ByteBuf, CompletableFuture<BulkResponse>> backup) {
+    earnToken();
+
+    final long delayNanos = this.delayNanos;
+    final boolean hedgeScheduled = delayNanos >= 0 && !closed;
+    final HedgedResponse result = new HedgedResponse(hedgeScheduled);
+
+    if (hedgeScheduled) {
+      body.retain(); // for the hedge
+    }
+
+    final long startNanos = System.nanoTime();
+    primary.apply(body).whenComplete((r, failure) ->
+        result.onCopyComplete(this, false, startNanos, r, failure));
+
+    if (hedgeScheduled) {
+      try {
+        executor.schedule(() -> hedge(result, body, backup), delayNanos, NANOSECONDS);
+      } catch (RejectedExecutionException e) {
+        // closed
+        body.release();
+        result.cancelHedge();
+      }
+    }
+
+    return result;
+  }
+
+  private void hedge(HedgedResponse result, ByteBuf body, Function<ByteBuf, CompletableFuture<BulkResponse>> backup) {
+    if (!result.startHedge(this)) {
+      body.release();
+      return;
+    }
+
+    hedgeMeter.mark();
+    final long startNanos = System.nanoTime();
+    backup.apply(body).whenComplete((r, failure) ->
+        result.onCopyComplete(this, true, startNanos, r, failure));
+  }
+
+  synchronized void recordLatency(long nanos) {
+    latencies[(int) (sampleCount % WINDOW_SIZE)] = nanos;
+    sampleCount++;
+
+    if (sampleCount >= MIN_SAMPLES && sampleCount % RECALCULATE_INTERVAL == 0) {
+      final int count = (int) Math.min(sampleCount, WINDOW_SIZE);
+      System.arraycopy(latencies, 0, sortedLatencies, 0, count);
+      Arrays.sort(sortedLatencies, 0, count);
+      final int index = (int) Math.ceil(count * percentile / 100d) - 1;
+      delayNanos = Math.max(minDelayNanos, sortedLatencies[index]);
+    }
+  }
+
+  private synchronized void earnToken() {
+    tokens = Math.min(MAX_TOKENS, tokens + tokensPerRequest);
+  }
+
+  private synchronized boolean trySpendToken() {
+    if (tokens < 1) {
+      return false;
+    }
+    tokens--;
+    return true;
+  }
+
+  /**
+   * Returns how long a request may be in flight before it's hedged,
+   * or -1 if requests are not being hedged yet.
+   */
+  public long currentDelayMillis() {
+    final long delayNanos = this.delayNanos;
+    return delayNanos < 0 ? -1 : NANOSECONDS.toMillis(delayNanos);
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    // Hedges that are already scheduled still run, so they can release their buffers.
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.core.logging.RedactableArgument;
+import com.couchbase.connector.config.es.BulkRequestConfig;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.couchbase.connector.util.ThrowableHelper;
+import org.elasticsearch.ElasticsearchStatusException;
+import org.elasticsearch.action.bulk.BackoffPolicy;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.rest.RestStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoProcessor;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.couchbase.connector.elasticsearch.io.BackoffPolicyBuilder.truncatedExponentialBackoff;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.elasticsearch.common.unit.TimeValue.timeValueMillis;
+import static org.elasticsearch.common.unit.TimeValue.timeValueMinutes;
+
+/**
+ * The bulk stage of a Reactor pipeline. Sends a batch of requests as a bulk request,
+ * and keeps at it until every request has been written or rejected.
+ * <p>
+ * If the whole request fails, it's sent again after a backoff delay. Items that fail
+ * with a temporary error are sent again on their own, with the same backoff schedule.
+ * Items that fail permanently are replaced by rejection log entries, which are sent
+ * with the next attempt. The events are never released here; that's up to the stage
+ * that checkpoints them.
+ * <p>
+ * Requests are encoded on the given scheduler, which must not run tasks concurrently
+ * (the encoder isn't thread safe). Responses arrive on the HTTP client's threads.
+ */
+public class BulkRequestSender implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkRequestSender.class);
+
+  private static final TimeValue INITIAL_RETRY_DELAY = timeValueMillis(50);
+  private static final TimeValue MAX_RETRY_DELAY = timeValueMinutes(5);
+
+  private final BackoffPolicy backoffPolicy =
+      truncatedExponentialBackoff(INITIAL_RETRY_DELAY, MAX_RETRY_DELAY)
+          .fullJitter()
+          .build();
+
+  private final RestClient client;
+  private final RequestFactory requestFactory;
+  private final TimeValue bulkRequestTimeout;
+  private final BulkRequestEncoder encoder;
+  private final Scheduler scheduler;
+
+  // Completes when the sender is closed, which cuts short any attempt in progress.
+  private final MonoProcessor<Void> closed = MonoProcessor.create();
+  private final AtomicBoolean closing = new AtomicBoolean();
+
+  // Start time of each batch that hasn't finished yet, keyed by an identity token.
+  private final Map<Object, Long> activeBatches = new ConcurrentHashMap<>();
+
+  public BulkRequestSender(RestHighLevelClient client, RequestFactory requestFactory,
+                           BulkRequestConfig bulkConfig, boolean compressRequests, Scheduler scheduler) {
+    this.client = client.getLowLevelClient();
+    this.requestFactory = requireNonNull(requestFactory);
+    this.bulkRequestTimeout = requireNonNull(bulkConfig.timeout());
+    this.encoder = new BulkRequestEncoder(compressRequests);
+    this.scheduler = requireNonNull(scheduler);
+  }
+
+  /**
+   * Returns a Mono that sends the requests when subscribed, and completes once each one
+   * has been written or rejected. Completes early (without writing everything) if the
+   * sender is closed. Fails only if something unexpected goes wrong.
+   */
+  public Mono<Void> send(List<EventDocWriteRequest> requests) {
+    final Object batchId = new Object();
+    final Iterator<TimeValue> waitIntervals = backoffPolicy.iterator();
+
+    final Mono<Void> attempts = Mono.defer(() -> {
+      activeBatches.put(batchId, System.nanoTime());
+      return attempt(requests, waitIntervals);
+    }).doFinally(signal -> activeBatches.remove(batchId));
+
+    return Mono.first(attempts, closed);
+  }
+
+  private Mono<Void> attempt(List<EventDocWriteRequest> requests, Iterator<TimeValue> waitIntervals) {
+    return Mono.defer(() -> {
+      if (closed.isTerminated()) {
+        return Mono.<List<EventDocWriteRequest>>empty();
+      }
+      final long startNanos = System.nanoTime();
+      return Mono.fromFuture(ElasticsearchWriter.bulkAsync(client, encoder.encode(requests), bulkRequestTimeout, encoder.isCompressing()))
+          .map(response -> onResponse(requests, response, startNanos))
+          .onErrorResume(BulkRequestSender::isTemporary, e -> {
+            logRequestFailure(e);
+            Metrics.bulkRetriesMeter().mark();
+            return Mono.just(requests);
+          });
+    })
+        .subscribeOn(scheduler)
+        .flatMap(remaining -> {
+          if (remaining.isEmpty()) {
+            return Mono.<Void>empty();
+          }
+          final TimeValue retryDelay = waitIntervals.hasNext() ? waitIntervals.next() : MAX_RETRY_DELAY;
+          LOGGER.debug("Retrying {} actions in {}", remaining.size(), retryDelay);
+          return Mono.delay(Duration.ofMillis(retryDelay.millis()), scheduler)
+              .then(attempt(remaining, waitIntervals));
+        });
+  }
+
+  /**
+   * Returns the requests that should be sent again: the items that failed with a temporary error,
+   * and rejection log entries for the items that failed permanently.
+   */
+  private List<EventDocWriteRequest> onResponse(List<EventDocWriteRequest> requests, BulkResponse bulkResponse, long startNanos) {
+    final long nowNanos = System.nanoTime();
+    final BulkItemResponse[] responses = bulkResponse.getItems();
+    final RetryReporter retryReporter = RetryReporter.forLogger(LOGGER);
+    final List<EventDocWriteRequest> remaining = new ArrayList<>(0);
+    int retryCount = 0;
+    int totalEstimatedBytes = 0;
+
+    for (int i = 0; i < responses.length; i++) {
+      final BulkItemResponse.Failure failure = responses[i].getFailure();
+      final EventDocWriteRequest request = requests.get(i);
+      final Event e = request.getEvent();
+      totalEstimatedBytes += request.estimatedSizeInBytes();
+
+      if (failure == null) {
+        Metrics.latencyTimer().update(nowNanos - e.getReceivedNanos(), NANOSECONDS);
+        continue;
+      }
+
+      if (ElasticsearchWriter.isRetryable(failure)) {
+        retryReporter.add(e, failure);
+        remaining.add(request);
+        retryCount++;
+        continue;
+      }
+
+      if (request instanceof EventRejectionIndexRequest) {
+        // ES rejected the rejection log entry! Total fail.
+        LOGGER.error("Failed to index rejection document for event {}; status code: {} {}", RedactableArgument.user(e), failure.getStatus(), failure.getMessage());
+        Metrics.rejectionLogFailureMeter().mark();
+
+      } else {
+        LOGGER.warn("Permanent failure to index event {}; status code: {} {}", RedactableArgument.user(e), failure.getStatus(), failure.getMessage());
+        Metrics.rejectionMeter().mark();
+
+        final EventRejectionIndexRequest rejectionLogRequest = requestFactory.newRejectionLogRequest(request, failure);
+        if (rejectionLogRequest != null) {
+          remaining.add(rejectionLogRequest);
+        }
+      }
+    }
+
+    if (retryCount != 0) {
+      retryReporter.report();
+      Metrics.indexingRetryMeter().mark(retryCount);
+    }
+
+    Metrics.bytesMeter().mark(totalEstimatedBytes);
+    Metrics.indexTimePerDocument().update(bulkResponse.getTook().nanos() / Math.max(1, responses.length), NANOSECONDS);
+
+    if (LOGGER.isInfoEnabled()) {
+      final long elapsedMillis = NANOSECONDS.toMillis(nowNanos - startNanos);
+      final ByteSizeValue prettySize = new ByteSizeValue(totalEstimatedBytes, ByteSizeUnit.BYTES);
+      LOGGER.info("Wrote {} actions ~{} in {} ms", responses.length, prettySize, elapsedMillis);
+    }
+
+    return remaining;
+  }
+
+  /**
+   * Returns true if the whole bulk request failed in a way that's worth retrying:
+   * an error status (the cluster topology is probably in transition) or an I/O error
+   * (timeout, connection failure, or maybe something else).
+   */
+  private static boolean isTemporary(Throwable t) {
+    return t instanceof ElasticsearchStatusException || t instanceof IOException;
+  }
+
+  private static void logRequestFailure(Throwable t) {
+    if (t instanceof ElasticsearchStatusException) {
+      final RestStatus status = ((ElasticsearchStatusException) t).status();
+      if (status == RestStatus.UNAUTHORIZED) {
+        LOGGER.warn("Elasticsearch credentials no longer valid.");
+      }
+      LOGGER.warn("Bulk request failed with status {}", status, t);
+
+    } else if (ThrowableHelper.hasCause(t, ConnectException.class)) {
+      LOGGER.debug("Elasticsearch connect exception", t);
+      LOGGER.warn("Bulk request failed; could not connect to Elasticsearch.");
+
+    } else {
+      LOGGER.warn("Bulk request failed", t);
+    }
+  }
+
+  /**
+   * Returns how long the oldest unfinished batch has been in progress, including retries,
+   * or zero if there are none.
+   */
+  public long getCurrentRequestNanos() {
+    final long nowNanos = System.nanoTime();
+    long result = 0;
+    for (long startNanos : activeBatches.values()) {
+      result = Math.max(result, nowNanos - startNanos);
+    }
+    return result;
+  }
+
+  /**
+   * Cuts short every batch in progress; their Monos complete right away, and later ones
+   * complete without sending anything. Responses that are already on their way are ignored.
+   */
+  @Override
+  public void close() {
+    if (closing.getAndSet(true)) {
+      return;
+    }
+    closed.onComplete();
+    try {
+      // The encoder belongs to the scheduler's thread.
+      scheduler.schedule(encoder::close);
+    } catch (RejectedExecutionException e) {
+      // The scheduler has already been disposed, so nothing else can be using the encoder.
+      encoder.close();
+    }
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.BulkRequestConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides how large a bulk request may be. Shared by all workers.
+ * <p>
+ * When adaptive sizing is enabled, the limits grow additively while Elasticsearch
+ * completes bulk requests within the target time without throttling items,
+ * and shrink multiplicatively when it doesn't (AIMD). The configured limits
+ * are hard upper bounds.
+ * <p>
+ * When adaptive sizing is disabled, the configured limits are used as-is.
+ * <p>
+ * Thread-safe.
+ */
+public class BulkSizeController {
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkSizeController.class);
+
+  // Number of additive steps between the lower and upper bounds.
+  private static final int INCREASE_STEPS = 20;
+  private static final double DECREASE_FACTOR = 0.5;
+
+  // Tolerate a few throttled items before considering the cluster overloaded.
+  private static final double MAX_HEALTHY_THROTTLED_RATIO = 0.01;
+
+  private static final int MIN_ACTIONS = 10;
+  private static final long MIN_BYTES = 256 * 1024;
+
+  private final boolean adaptive;
+  private final long targetTookMillis;
+
+  private final int maxActions;
+  private final long maxBytes;
+  private final int minActions;
+  private final long minBytes;
+  private final int actionsStep;
+  private final long bytesStep;
+
+  private volatile int actionsLimit;
+  private volatile long bytesLimit;
+
+  // Requests started before the most recent decrease don't trigger another decrease;
+  // they were already in flight and tell us nothing about the new limits.
+  private long lastDecreaseNanos = System.nanoTime();
+
+  public BulkSizeController(BulkRequestConfig config) {
+    this.adaptive = config.adaptive();
+    this.targetTookMillis = config.adaptiveTargetTook().millis();
+
+    this.maxActions = config.maxActions();
+    this.maxBytes = config.maxBytes().getBytes();
+    this.minActions = Math.min(MIN_ACTIONS, maxActions);
+    this.minBytes = Math.min(MIN_BYTES, maxBytes);
+    this.actionsStep = Math.max(1, (maxActions - minActions) / INCREASE_STEPS);
+    this.bytesStep = Math.max(1, (maxBytes - minBytes) / INCREASE_STEPS);
+
+    this.actionsLimit = maxActions;
+    this.bytesLimit = maxBytes;
+  }
+
+  public int actionsLimit() {
+    return actionsLimit;
+  }
+
+  public long bytesLimit() {
+    return bytesLimit;
+  }
+
+  /**
+   * Called when Elasticsearch responds to a bulk request.
+   *
+   * @param startNanos when the request was sent
+   * @param tookMillis processing time reported by Elasticsearch
+   * @param itemCount number of items in the request
+   * @param throttledCount number of items rejected with status 429 (Too Many Requests)
+   */
+  public void onResponse(long startNanos, long tookMillis, int itemCount, int throttledCount) {
+    if (!adaptive) {
+      return;
+    }
+
+    final boolean healthy = tookMillis <= targetTookMillis
+        && throttledCount <= itemCount * MAX_HEALTHY_THROTTLED_RATIO;
+
+    if (healthy) {
+      increase();
+    } else {
+      decrease(startNanos);
+    }
+  }
+
+  /**
+   * Called when a bulk request fails in a way that suggests Elasticsearch is overloaded,
+   * or the request was too large to complete in time.
+   *
+   * @param startNanos when the request was sent
+   */
+  public void onOverload(long startNanos) {
+    if (adaptive) {
+      decrease(startNanos);
+    }
+  }
+
+  private synchronized void increase() {
+    actionsLimit = (int) Math.min(maxActions, (long) actionsLimit + actionsStep);
+    bytesLimit = Math.min(maxBytes, bytesLimit + bytesStep);
+  }
+
+  private synchronized void decrease(long startNanos) {
+    if (startNanos - lastDecreaseNanos < 0) {
+      return;
+    }
+    lastDecreaseNanos = System.nanoTime();
+
+    actionsLimit = Math.max(minActions, (int) (actionsLimit * DECREASE_FACTOR));
+    bytesLimit = Math.max(minBytes, (long) (bytesLimit * DECREASE_FACTOR));
+    LOGGER.info("Reduced bulk request limits to {} actions / {} bytes", actionsLimit, bytesLimit);
+  }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufInputStream;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A repeatable HTTP entity backed by a Netty buffer. When sent by the async
+ * HTTP client, the buffer contents are written directly to the channel.
+ * <p>
+ * Does not take ownership of the buffer; the caller is responsible for
+ * releasing it after the request completes.
+ */
+class ByteBufEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+  private final ByteBuf buf;
+  private ByteBuffer pending;
+
+  ByteBufEntity(ByteBuf buf, ContentType contentType) {
+    this.buf = requireNonNull(buf);
+    setContentType(contentType.toString());
+  }
+
+  @Override
+  public boolean isRepeatable() {
+    return true;
+  }
+
+  @Override
+  public long getContentLength() {
+    return buf.readableBytes();
+  }
+
+  @Override
+  public InputStream getContent() {
+    return new ByteBufInputStream(buf.duplicate());
+  }
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    buf.getBytes(buf.readerIndex(), out, buf.readableBytes());
+  }
+
+  @Override
+  public boolean isStreaming() {
+    return false;
+  }
+
+  @Override
+  public void produceContent(ContentEncoder encoder, IOControl ioctrl) throws IOException {
+    if (pending == null) {
+      pending = buf.nioBuffer();
+    }
+    encoder.write(pending);
+    if (!pending.hasRemaining()) {
+      encoder.complete();
+    }
+  }
+
+  @Override
+  public void close() {
+    // reset so the entity can be sent again if the request is retried
+    pending = null;
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.dcp.Checkpoint;
+import com.couchbase.connector.dcp.CheckpointService;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.dcp.SnapshotMarker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.function.IntConsumer;
+
+import static com.couchbase.connector.dcp.DcpHelper.isMetadata;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Keeps track of which events are still being processed, so a vbucket's
+ * checkpoint only advances past an event once that event and every
+ * earlier event in the same vbucket have been written (or ignored).
+ * <p>
+ * Events may complete in any order, for example when some items of a bulk
+ * request are retried while later requests succeed.
+ * <p>
+ * Completed events are not retained. An event written to the spill log is completed
+ * right away along with its position in the log; a checkpoint past it is held back
+ * (as one watermark per vbucket and spilled record, not one entry per event) until
+ * {@link #replayed(long)} reports that the spill log has replayed that far.
+ * <p>
+ * NOT THREAD SAFE.
+ */
+class CheckpointTracker {
+  // Sized to accommodate max number of vbuckets
+  private static final int MAX_VBUCKETS = 2048;
+
+  /**
+   * A checkpoint that can't be saved until the spill log has replayed the given number of actions.
+   */
+  private static class Watermark {
+    private final long spillOffset;
+    private Checkpoint checkpoint;
+    private boolean metadataOnly;
+    private int completedCount;
+
+    private Watermark(long spillOffset, Checkpoint checkpoint, boolean metadataOnly, int completedCount) {
+      this.spillOffset = spillOffset;
+      this.checkpoint = checkpoint;
+      this.metadataOnly = metadataOnly;
+      this.completedCount = completedCount;
+    }
+  }
+
+  /**
+   * The tracked events for one vbucket, in the order they were received.
+   * A ring buffer whose arrays are reused, so tracking an event doesn't allocate
+   * memory once the buffer has grown large enough.
+   */
+  private static class VbucketEvents {
+    private static final int INITIAL_CAPACITY = 16; // must be power of 2
+
+    private Event[] events = new Event[INITIAL_CAPACITY]; // null once completed
+    private long[] seqnos = new long[INITIAL_CAPACITY];
+    private long[] vbuuids = new long[INITIAL_CAPACITY];
+    private SnapshotMarker[] snapshots = new SnapshotMarker[INITIAL_CAPACITY];
+    private long[] spillOffsets = new long[INITIAL_CAPACITY]; // zero unless the event was spilled
+    private boolean[] metadata = new boolean[INITIAL_CAPACITY];
+    private boolean[] done = new boolean[INITIAL_CAPACITY];
+    private int mask = INITIAL_CAPACITY - 1;
+    private int head;
+    private int size;
+
+    // Checkpoints waiting for the spill log to catch up, oldest first.
+    private final Deque<Watermark> watermarks = new ArrayDeque<>();
+
+    private void add(Event event, boolean isMetadata) {
+      if (size == events.length) {
+        grow();
+      }
+      final int i = (head + size) & mask;
+      events[i] = event;
+      seqnos[i] = event.getSeqno();
+      vbuuids[i] = event.getVbuuid();
+      snapshots[i] = event.getSnapshot();
+      spillOffsets[i] = 0;
+      metadata[i] = isMetadata;
+      done[i] = false;
+      size++;
+    }
+
+    /**
+     * Holds back a checkpoint until the spill log has replayed {@code spillOffset} actions,
+     * and until every checkpoint held back before it can be saved.
+     */
+    private void hold(long spillOffset, Checkpoint checkpoint, boolean metadataOnly, int completedCount) {
+      final Watermark tail = watermarks.peekLast();
+      if (tail != null && tail.spillOffset >= spillOffset) {
+        // Nothing newer was spilled, so the checkpoint can be saved at the same time as the previous one.
+        tail.checkpoint = checkpoint;
+        tail.metadataOnly &= metadataOnly;
+        tail.completedCount += completedCount;
+      } else {
+        watermarks.addLast(new Watermark(spillOffset, checkpoint, metadataOnly, completedCount));
+      }
+    }
+
+    /**
+     * Returns the array index of the given event, or -1 if it isn't in the buffer.
+     */
+    private int indexOf(Event event) {
+      // Events arrive in seqno order, so binary search usually finds it.
+      final long seqno = event.getSeqno();
+      int low = 0;
+      int high = size - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final int i = (head + mid) & mask;
+        final int cmp = Long.compareUnsigned(seqnos[i], seqno);
+        if (cmp < 0) {
+          low = mid + 1;
+        } else if (cmp > 0) {
+          high = mid - 1;
+        } else if (events[i] == event) {
+          return i;
+        } else {
+          break;
+        }
+      }
+
+      // Fall back to a linear scan in case the seqnos are not in order (after a rollback, for example).
+      for (int n = 0; n < size; n++) {
+        final int i = (head + n) & mask;
+        if (events[i] == event) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void grow() {
+      final int capacity = events.length;
+      final int newCapacity = capacity * 2;
+      events = unwrap(capacity, events, new Event[newCapacity]);
+      seqnos = unwrap(capacity, seqnos, new long[newCapacity]);
+      vbuuids = unwrap(capacity, vbuuids, new long[newCapacity]);
+      snapshots = unwrap(capacity, snapshots, new SnapshotMarker[newCapacity]);
+      spillOffsets = unwrap(capacity, spillOffsets, new long[newCapacity]);
+      metadata = unwrap(capacity, metadata, new boolean[newCapacity]);
+      done = unwrap(capacity, done, new boolean[newCapacity]);
+      mask = newCapacity - 1;
+      head = 0;
+    }
+
+    /**
+     * Copies the contents of the full ring buffer {@code src} to the start of {@code dest}, oldest first.
+     */
+    private <T> T unwrap(int capacity, T src, T dest) {
+      System.arraycopy(src, head, dest, 0, capacity - head);
+      System.arraycopy(src, 0, dest, capacity - head, head);
+      return dest;
+    }
+  }
+
+  private final CheckpointService checkpointService;
+  private final IntConsumer completionListener;
+
+  private final VbucketEvents[] vbucketToEvents = new VbucketEvents[MAX_VBUCKETS];
+
+  // vbuckets with completed events whose checkpoints have not been updated yet.
+  private final int[] dirtyVbuckets = new int[MAX_VBUCKETS];
+  private final boolean[] dirty = new boolean[MAX_VBUCKETS];
+  private int dirtyCount;
+
+  // Number of actions the spill log has replayed so far.
+  private long replayedActions;
+
+  /**
+   * @param completionListener Called with an event's vbucket once the checkpoint
+   * has been advanced past the event.
+   */
+  CheckpointTracker(CheckpointService checkpointService, IntConsumer completionListener) {
+    this.checkpointService = requireNonNull(checkpointService);
+    this.completionListener = requireNonNull(completionListener);
+  }
+
+  /**
+   * Starts tracking an event that will be written to Elasticsearch.
+   * Events must be tracked in the order they were received.
+   */
+  void track(Event event) {
+    add(event, false);
+  }
+
+  /**
+   * Tracks and immediately completes an event that will not be written,
+   * then updates the checkpoint for the event's vbucket if possible.
+   */
+  void ignore(Event event) {
+    add(event, isMetadata(event));
+    complete(event);
+    updateCheckpoints();
+  }
+
+  private void add(Event event, boolean metadata) {
+    final int vbucket = event.getVbucket();
+    VbucketEvents events = vbucketToEvents[vbucket];
+    if (events == null) {
+      events = vbucketToEvents[vbucket] = new VbucketEvents();
+    }
+    events.add(event, metadata);
+  }
+
+  /**
+   * Marks the event as fully processed. Checkpoints are not updated until
+   * {@link #updateCheckpoints()} is called. The event may already have been released.
+   */
+  void complete(Event event) {
+    complete(event, 0);
+  }
+
+  /**
+   * Marks the event as written to the spill log. The checkpoint doesn't advance past
+   * the event until {@link #replayed(long)} reports that the log has replayed
+   * {@code spillOffset} actions.
+   *
+   * @param spillOffset number of actions in the spill log up to and including the event's
+   */
+  void completeSpilled(Event event, long spillOffset) {
+    complete(event, spillOffset);
+  }
+
+  private void complete(Event event, long spillOffset) {
+    final int vbucket = event.getVbucket();
+    final VbucketEvents events = vbucketToEvents[vbucket];
+    final int i = events == null ? -1 : events.indexOf(event);
+    if (i < 0 || events.done[i]) {
+      throw new IllegalStateException("Event is not being tracked: " + event);
+    }
+    events.done[i] = true;
+    events.events[i] = null;
+    events.spillOffsets[i] = spillOffset;
+
+    if (!dirty[vbucket]) {
+      dirty[vbucket] = true;
+      dirtyVbuckets[dirtyCount++] = vbucket;
+    }
+  }
+
+  /**
+   * For each vbucket with newly completed events, advances the checkpoint
+   * to the most recent event that has no incomplete predecessors.
+   */
+  void updateCheckpoints() {
+    for (int d = 0; d < dirtyCount; d++) {
+      final int vbucket = dirtyVbuckets[d];
+      dirty[vbucket] = false;
+      final VbucketEvents events = vbucketToEvents[vbucket];
+
+      SnapshotMarker snapshot = null;
+      long vbuuid = 0;
+      long seqno = 0;
+      int completedCount = 0;
+      boolean metadataOnly = true;
+      long spillOffset = 0;
+      while (events.size != 0 && events.done[events.head]) {
+        final int i = events.head;
+        snapshot = events.snapshots[i];
+        vbuuid = events.vbuuids[i];
+        seqno = events.seqnos[i];
+        events.snapshots[i] = null;
+        metadataOnly &= events.metadata[i];
+        spillOffset = Math.max(spillOffset, events.spillOffsets[i]);
+        events.head = (i + 1) & events.mask;
+        events.size--;
+        completedCount++;
+      }
+
+      if (snapshot == null) {
+        continue;
+      }
+
+      final Checkpoint checkpoint = new Checkpoint(vbuuid, seqno, snapshot);
+
+      if (spillOffset > replayedActions || !events.watermarks.isEmpty()) {
+        events.hold(spillOffset, checkpoint, metadataOnly, completedCount);
+      } else {
+        setCheckpoint(vbucket, checkpoint, metadataOnly, completedCount);
+      }
+    }
+    dirtyCount = 0;
+  }
+
+  /**
+   * Saves the checkpoints that were waiting for the spill log to replay this many actions.
+   */
+  void replayed(long replayedActions) {
+    this.replayedActions = replayedActions;
+
+    for (int vbucket = 0; vbucket < MAX_VBUCKETS; vbucket++) {
+      final VbucketEvents events = vbucketToEvents[vbucket];
+      if (events == null) {
+        continue;
+      }
+
+      Watermark last = null;
+      int completedCount = 0;
+      boolean metadataOnly = true;
+      while (!events.watermarks.isEmpty() && events.watermarks.peekFirst().spillOffset <= replayedActions) {
+        last = events.watermarks.removeFirst();
+        completedCount += last.completedCount;
+        metadataOnly &= last.metadataOnly;
+      }
+
+      if (last != null) {
+        setCheckpoint(vbucket, last.checkpoint, metadataOnly, completedCount);
+      }
+    }
+  }
+
+  private void setCheckpoint(int vbucket, Checkpoint checkpoint, boolean metadataOnly, int completedCount) {
+    if (metadataOnly) {
+      // Avoid cycle where writing the checkpoints triggers another DCP event.
+      checkpointService.setWithoutMarkingDirty(vbucket, checkpoint);
+    } else {
+      checkpointService.set(vbucket, checkpoint);
+    }
+
+    // Notify only after the checkpoint is set, since the listener might
+    // hand the vbucket to a different writer.
+    for (int i = 0; i < completedCount; i++) {
+      completionListener.accept(vbucket);
+    }
+  }
+}
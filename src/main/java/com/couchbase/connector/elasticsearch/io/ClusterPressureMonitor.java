@@ -0,0 +1,233 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Timer;
+import com.couchbase.connector.config.es.ClusterPressureConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Polls Elasticsearch node stats, and limits the rate at which all writers send
+ * bulk request actions when the cluster looks overloaded. The goal is to slow down
+ * before Elasticsearch starts rejecting requests, instead of after.
+ * <p>
+ * A node is considered overloaded if its write thread pool queue is too long,
+ * it has rejected writes since the previous poll, or its heap is too full.
+ * While any node is overloaded, the rate limit is cut in half at each poll (AIMD, like
+ * {@link BulkSizeController}). Once the pressure is gone, the limit grows gradually,
+ * and is removed entirely when the connector stops using most of it.
+ * <p>
+ * Thread-safe.
+ */
+public class ClusterPressureMonitor implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterPressureMonitor.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final Meter pressureMeter = Metrics.meter("clusterPressure");
+  private static final Timer throttleTimer = Metrics.timer("clusterPressureThrottle");
+
+  private static final double DECREASE_FACTOR = 0.5;
+  private static final double INCREASE_FACTOR = 1.25;
+
+  // If the connector uses less than this fraction of the limit, the limit isn't doing anything.
+  private static final double UNTHROTTLE_USAGE_RATIO = 0.5;
+
+  private static final long THROTTLE_POLL_MILLIS = 50;
+
+  private static final String NODE_STATS_PATH = "/_nodes/stats/thread_pool,jvm";
+  private static final String NODE_STATS_FILTER = String.join(",",
+      "nodes.*.jvm.mem.heap_used_percent",
+      // The "bulk" thread pool was renamed to "write" in Elasticsearch 6.3
+      "nodes.*.thread_pool.write.queue",
+      "nodes.*.thread_pool.write.rejected",
+      "nodes.*.thread_pool.bulk.queue",
+      "nodes.*.thread_pool.bulk.rejected");
+
+  private final RestClient client;
+  private final ClusterPressureConfig config;
+  private final ScheduledExecutorService executor;
+
+  // Actions sent since the previous poll.
+  private final LongAdder actionCounter = new LongAdder();
+
+  // Null when the connector is not being throttled.
+  private volatile RateLimiter limiter;
+
+  @GuardedBy("this")
+  private final Map<String, Long> nodeToRejectedCount = new HashMap<>();
+
+  @GuardedBy("this")
+  private long lastPollNanos = System.nanoTime();
+
+  public ClusterPressureMonitor(RestClient client, ClusterPressureConfig config) {
+    this.client = requireNonNull(client);
+    this.config = requireNonNull(config);
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("cluster-pressure-monitor").setDaemon(true).build());
+    Metrics.gauge("clusterPressureRateLimit", () -> this::currentRate);
+  }
+
+  public void start() {
+    final long intervalMillis = config.pollInterval().millis();
+    executor.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, MILLISECONDS);
+  }
+
+  /**
+   * Waits until the given number of bulk request actions may be sent without
+   * exceeding the current rate limit (if any).
+   */
+  public void acquire(int actions) throws InterruptedException {
+    actionCounter.add(actions);
+
+    RateLimiter limiter = this.limiter;
+    if (limiter == null) {
+      return;
+    }
+
+    final long startNanos = System.nanoTime();
+    // RateLimiter waits are not interruptible, so wait in small increments.
+    while (limiter != null && !limiter.tryAcquire(actions, THROTTLE_POLL_MILLIS, MILLISECONDS)) {
+      MILLISECONDS.sleep(THROTTLE_POLL_MILLIS);
+      limiter = this.limiter;
+    }
+    throttleTimer.update(System.nanoTime() - startNanos, NANOSECONDS);
+  }
+
+  /**
+   * Returns the current limit in actions per second, or -1 if there is no limit.
+   */
+  public long currentRate() {
+    final RateLimiter limiter = this.limiter;
+    return limiter == null ? -1 : (long) limiter.getRate();
+  }
+
+  synchronized void poll() {
+    final long nowNanos = System.nanoTime();
+    final double elapsedSeconds = Math.max(1, nowNanos - lastPollNanos) / 1e9;
+    final double observedRate = actionCounter.sumThenReset() / elapsedSeconds;
+    lastPollNanos = nowNanos;
+
+    final String pressure;
+    try {
+      pressure = findPressure(getNodeStats());
+    } catch (Exception e) {
+      LOGGER.warn("Failed to get Elasticsearch node stats; write rate limit unchanged.", e);
+      return;
+    }
+
+    final RateLimiter limiter = this.limiter;
+    if (pressure != null) {
+      pressureMeter.mark();
+      final double previousRate = limiter == null ? observedRate : limiter.getRate();
+      final double newRate = Math.max(config.minRate(), previousRate * DECREASE_FACTOR);
+      if (limiter == null) {
+        this.limiter = RateLimiter.create(newRate);
+      } else {
+        limiter.setRate(newRate);
+      }
+      LOGGER.info("Elasticsearch is under pressure ({}); limiting write rate to {} actions per second.", pressure, (long) newRate);
+
+    } else if (limiter != null) {
+      if (observedRate < limiter.getRate() * UNTHROTTLE_USAGE_RATIO) {
+        this.limiter = null;
+        LOGGER.info("Elasticsearch pressure has subsided; no longer limiting write rate.");
+      } else {
+        limiter.setRate(limiter.getRate() * INCREASE_FACTOR);
+        LOGGER.debug("Increased write rate limit to {} actions per second.", (long) limiter.getRate());
+      }
+    }
+  }
+
+  private JsonNode getNodeStats() throws IOException {
+    final Request request = new Request("GET", NODE_STATS_PATH);
+    request.addParameter("filter_path", NODE_STATS_FILTER);
+    final Response response = client.performRequest(request);
+    try (InputStream is = response.getEntity().getContent()) {
+      return mapper.readTree(is);
+    }
+  }
+
+  /**
+   * Returns a description of why the cluster looks overloaded, or null if it looks fine.
+   */
+  private String findPressure(JsonNode nodeStats) {
+    String result = null;
+
+    final Iterator<Map.Entry<String, JsonNode>> nodes = nodeStats.path("nodes").fields();
+    while (nodes.hasNext()) {
+      final Map.Entry<String, JsonNode> node = nodes.next();
+      final String nodeId = node.getKey();
+      final JsonNode stats = node.getValue();
+
+      JsonNode writePool = stats.path("thread_pool").path("write");
+      if (writePool.isMissingNode()) {
+        writePool = stats.path("thread_pool").path("bulk");
+      }
+
+      final long queue = writePool.path("queue").asLong();
+      final long rejected = writePool.path("rejected").asLong();
+      final int heapUsedPercent = stats.path("jvm").path("mem").path("heap_used_percent").asInt();
+
+      final Long previousRejected = nodeToRejectedCount.put(nodeId, rejected);
+
+      if (result != null) {
+        continue; // keep updating the rejection counts
+      }
+      if (queue > config.maxWriteQueue()) {
+        result = "node " + nodeId + " write queue length is " + queue;
+      } else if (previousRejected != null && rejected > previousRejected) {
+        result = "node " + nodeId + " rejected " + (rejected - previousRejected) + " writes";
+      } else if (heapUsedPercent >= config.maxHeapPercent()) {
+        result = "node " + nodeId + " heap is " + heapUsedPercent + "% full";
+      }
+    }
+
+    return result;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    limiter = null;
+  }
+}
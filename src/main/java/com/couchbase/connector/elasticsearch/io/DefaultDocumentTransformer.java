@@ -16,16 +16,22 @@
 
 package com.couchbase.connector.elasticsearch.io;
 
+import com.codahale.metrics.Histogram;
 import com.couchbase.client.core.logging.RedactableArgument;
-import com.couchbase.client.core.utils.DefaultObjectMapper;
 import com.couchbase.client.dcp.message.DcpMutationMessage;
+import com.couchbase.client.dcp.message.MessageUtil;
 import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.ByteBufInputStream;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
 import com.couchbase.connector.config.es.DocStructureConfig;
 import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.Metrics;
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
-import org.elasticsearch.action.index.IndexRequest;
+import com.fasterxml.jackson.core.util.ByteArrayBuilder;
 import org.elasticsearch.common.bytes.BytesArray;
 import org.elasticsearch.common.xcontent.XContentType;
 import org.slf4j.Logger;
@@ -34,111 +40,449 @@ import org.slf4j.LoggerFactory;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.math.BigInteger;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 public class DefaultDocumentTransformer implements DocumentTransformer {
   private static final Logger LOGGER = LoggerFactory.getLogger(DefaultDocumentTransformer.class);
 
   private static final JsonFactory jsonFactory = new JsonFactory();
 
+  private static final Histogram parsesHistogram = Metrics.histogram("documentParses");
+
+  private static final ThreadLocal<ByteArrayBuilder> outputBuffer = ThreadLocal.withInitial(ByteArrayBuilder::new);
+
   private final boolean documentContentAtTopLevel;
   private final String metadataFieldName;
   private final boolean wrapCounters;
 
+  // The server only flags JSON documents if the client negotiated the datatype feature.
+  // Until a document arrives flagged as JSON, the absence of the flag means nothing.
+  // Each connector run creates a new transformer, so this is relearned after a restart.
+  private volatile boolean serverReportsJson;
+
   public DefaultDocumentTransformer(DocStructureConfig docStructureConfig) {
     this.documentContentAtTopLevel = docStructureConfig.documentContentAtTopLevel();
     this.metadataFieldName = docStructureConfig.metadataFieldName();
     this.wrapCounters = docStructureConfig.wrapCounters();
   }
 
-  private static boolean isSingleValidJsonObject(byte[] json) {
-    try {
-      final JsonParser parser = jsonFactory.createParser(json);
+  /**
+   * Returns a parser that reads the buffer's readable bytes in place,
+   * without copying them or changing the buffer's reader index.
+   */
+  private static JsonParser createParser(ByteBuf json) throws IOException {
+    if (json.hasArray()) {
+      return jsonFactory.createParser(json.array(), json.arrayOffset() + json.readerIndex(), json.readableBytes());
+    }
+    return jsonFactory.createParser(new ByteBufInputStream(json.duplicate()));
+  }
 
+  /**
+   * Returns true if the content is a single JSON Object with nothing after it.
+   * Captures the pointer values along the way.
+   */
+  private static boolean isSingleValidJsonObject(ByteBuf json, PointerValues pointers) {
+    try (JsonParser parser = createParser(json)) {
       if (parser.nextToken() != JsonToken.START_OBJECT) {
         return false;
       }
+      pointers.capture(parser);
+      readObject(parser, null, null, pointers);
+
+      // otherwise multiple JSON roots, or trailing garbage
+      return parser.nextToken() == null;
 
-      int depth = 1;
-      JsonToken token;
-      while ((token = parser.nextToken()) != null) {
-        if (token == JsonToken.START_OBJECT) {
-          depth++;
-        } else if (token == JsonToken.END_OBJECT) {
-          depth--;
-          if (depth == 0 && parser.nextToken() != null) {
-            // multiple JSON roots, or trailing garbage
-            return false;
-          }
-        }
-      }
     } catch (IOException e) {
       // malformed
       return false;
     }
+  }
 
-    return true;
+  /**
+   * Reads the rest of the object whose START_OBJECT is the parser's current token,
+   * capturing the values at the pointers, and copying the object's fields
+   * (but not its enclosing braces) to the generator if one is given.
+   *
+   * @return true if the object has a top-level field with the given name
+   */
+  private static boolean readObject(JsonParser parser, @Nullable JsonGenerator generator,
+                                    @Nullable String fieldName, PointerValues pointers) throws IOException {
+    boolean hasField = false;
+    int depth = 0;
+    JsonToken token;
+    while ((token = parser.nextToken()) != null) {
+      switch (token) {
+        case END_OBJECT:
+        case END_ARRAY:
+          if (depth == 0) {
+            return hasField;
+          }
+          depth--;
+          break;
+
+        case FIELD_NAME:
+          if (depth == 0 && parser.getCurrentName().equals(fieldName)) {
+            hasField = true;
+          }
+          break;
+
+        case START_OBJECT:
+        case START_ARRAY:
+          depth++;
+          pointers.capture(parser);
+          break;
+
+        default:
+          pointers.capture(parser);
+          break;
+      }
+
+      if (generator != null) {
+        generator.copyCurrentEvent(parser);
+      }
+    }
+    throw new JsonParseException(parser, "Unexpected end of document");
   }
 
-  @Override
-  public void setSourceFromEventContent(IndexRequest indexRequest, Event event) {
-    final byte[] bytes = event.getContent();
-
-    // optimized passthrough
-    if (documentContentAtTopLevel && metadataFieldName == null) {
-      // Need to ensure valid JSON, otherwise bulk request fails with IOException.
-      // That would be really bad, since we retry those.
-      // Also, the doc root might be a counter which needs wrapping.
-      if (isSingleValidJsonObject(bytes)) {
-        indexRequest.source(new BytesArray(bytes), XContentType.JSON);
-        return;
+  /**
+   * Like {@link #readObject}, but only copies the fields the filter keeps.
+   * Containers that are kept only because an included field might be inside them
+   * are written lazily, when the first included value inside them is found.
+   */
+  private static boolean readFilteredObject(JsonParser parser, JsonGenerator generator,
+                                            @Nullable String fieldName, PointerValues pointers,
+                                            FieldFilter filter) throws IOException {
+    // Stack of open containers; the document root is at depth zero.
+    int capacity = 16;
+    long[] rules = new long[capacity];
+    int[] decisions = new int[capacity];
+    boolean[] arrays = new boolean[capacity];
+    boolean[] written = new boolean[capacity];
+    int[] nextIndex = new int[capacity];
+    String[] names = new String[capacity]; // field name of a container whose parent is an object
+
+    int depth = 0;
+    rules[0] = filter.rootRules();
+    decisions[0] = filter.rootDecision();
+    written[0] = true;
+
+    boolean hasField = false;
+    String name = null;
+    long fieldStart = 0;
+    long dropStart = -1;
+    long savedBytes = 0;
+
+    JsonToken token;
+    while ((token = parser.nextToken()) != null) {
+      if (dropStart != -1) {
+        // Counts from the start of the dropped field to the start of the next token.
+        savedBytes += parser.getTokenLocation().getByteOffset() - dropStart;
+        dropStart = -1;
+      }
+
+      if (token == JsonToken.FIELD_NAME) {
+        name = parser.getCurrentName();
+        fieldStart = parser.getTokenLocation().getByteOffset();
+        continue;
+      }
+
+      if (token.isStructEnd()) {
+        if (depth == 0) {
+          filter.recordSavedBytes(savedBytes);
+          return hasField;
+        }
+        if (written[depth]) {
+          generator.copyCurrentEvent(parser);
+        }
+        depth--;
+        continue;
+      }
+
+      pointers.capture(parser);
+
+      final boolean element = arrays[depth];
+      final int index = element ? nextIndex[depth]++ : -1;
+      final long childRules = filter.childRules(rules[depth], depth, element ? null : name, index);
+      final int decision = filter.decide(childRules, depth + 1, decisions[depth]);
+
+      if (decision == FieldFilter.DROP || (decision == FieldFilter.DESCEND && !token.isStructStart())) {
+        dropStart = element ? parser.getTokenLocation().getByteOffset() : fieldStart;
+        skipValue(parser, pointers);
+        continue;
       }
+
+      if (decision == FieldFilter.KEEP) {
+        // Write any containers whose first included value this is.
+        for (int i = 1; i <= depth; i++) {
+          if (!written[i]) {
+            if (names[i] != null) {
+              if (i == 1 && names[i].equals(fieldName)) {
+                hasField = true;
+              }
+              generator.writeFieldName(names[i]);
+            }
+            if (arrays[i]) {
+              generator.writeStartArray();
+            } else {
+              generator.writeStartObject();
+            }
+            written[i] = true;
+          }
+        }
+
+        if (!element) {
+          if (depth == 0 && name.equals(fieldName)) {
+            hasField = true;
+          }
+          generator.writeFieldName(name);
+        }
+
+        final long insideRules = filter.rulesInsideKeptChild(childRules);
+        if (!token.isStructStart()) {
+          generator.copyCurrentEvent(parser);
+          continue;
+        }
+        if (insideRules == 0 && !pointers.hasRemaining()) {
+          generator.copyCurrentStructure(parser);
+          continue;
+        }
+        generator.copyCurrentEvent(parser);
+      }
+
+      // Entering a container.
+      if (++depth == capacity) {
+        capacity *= 2;
+        rules = Arrays.copyOf(rules, capacity);
+        decisions = Arrays.copyOf(decisions, capacity);
+        arrays = Arrays.copyOf(arrays, capacity);
+        written = Arrays.copyOf(written, capacity);
+        nextIndex = Arrays.copyOf(nextIndex, capacity);
+        names = Arrays.copyOf(names, capacity);
+      }
+      rules[depth] = decision == FieldFilter.KEEP ? filter.rulesInsideKeptChild(childRules) : childRules;
+      decisions[depth] = decision;
+      arrays[depth] = token == JsonToken.START_ARRAY;
+      written[depth] = decision == FieldFilter.KEEP;
+      nextIndex[depth] = 0;
+      names[depth] = element ? null : name;
     }
+    throw new JsonParseException(parser, "Unexpected end of document");
+  }
 
-    final Map<String, Object> couchbaseDocument = getDocumentAsMap(bytes);
-    if (couchbaseDocument == null) {
-      LOGGER.debug("Skipping document {} because it's not a JSON Object", event);
+  /**
+   * If the parser's current token starts an object or array, skips to the end of it,
+   * capturing any pointer values inside it.
+   */
+  private static void skipValue(JsonParser parser, PointerValues pointers) throws IOException {
+    if (!parser.getCurrentToken().isStructStart()) {
+      return;
+    }
+    if (!pointers.hasRemaining()) {
+      parser.skipChildren();
       return;
     }
 
-    final Map<String, Object> esDocument;
-    if (documentContentAtTopLevel) {
-      esDocument = couchbaseDocument;
-    } else {
-      esDocument = new HashMap<>();
-      esDocument.put("doc", couchbaseDocument);
+    int depth = 0;
+    JsonToken token;
+    while ((token = parser.nextToken()) != null) {
+      if (token.isStructEnd()) {
+        if (depth-- == 0) {
+          return;
+        }
+      } else if (token != JsonToken.FIELD_NAME) {
+        if (token.isStructStart()) {
+          depth++;
+        }
+        pointers.capture(parser);
+      }
+    }
+    throw new JsonParseException(parser, "Unexpected end of document");
+  }
+
+  @Override
+  public void setSourceFromEventContent(EventIndexRequest indexRequest, Event event, PointerValues pointers, FieldFilter filter) {
+    final int datatype = event.getDatatype();
+    Metrics.datatypeCounter(datatype).inc();
+
+    if (datatype == Event.DATATYPE_JSON) {
+      serverReportsJson = true;
+    } else if (datatype == Event.DATATYPE_RAW && serverReportsJson && !mightBeCounter(event)) {
+      LOGGER.debug("Skipping document {} because its datatype is not JSON", event);
+      return;
     }
 
-    if (metadataFieldName != null) {
-      if (esDocument.putIfAbsent(metadataFieldName, getMetadata(event)) != null) {
-        LOGGER.warn("Metadata field name conflict; document {} already has field named '{}'",
-            RedactableArgument.user(event), metadataFieldName);
+    int parses = 1;
+    // Read in place; the content is never copied out of the DCP message.
+    final ByteBuf content = MessageUtil.getContent(event.getByteBuf());
+    try {
+      // optimized passthrough
+      if (documentContentAtTopLevel && metadataFieldName == null && filter.isEmpty()) {
+        // Need to ensure valid JSON, otherwise bulk request fails with IOException.
+        // That would be really bad, since we retry those.
+        // Also, the doc root might be a counter which needs wrapping.
+        // Unless there are pointer values to capture, the structural check is enough.
+        // If the server already validated the JSON, it's enough to check the root type.
+        final boolean valid = pointers.size() == 0
+            ? event.isJson() ? JsonValidator.isObject(content) : JsonValidator.isSingleObject(content)
+            : isSingleValidJsonObject(content, pointers);
+        if (valid) {
+          // the bulk request encoder copies the content straight from the DCP message
+          indexRequest.setSourceFromEvent();
+          return;
+        }
+        // Counters, and objects with trailing content, take another pass.
+        parses++;
+      }
+
+      final byte[] esDocument = transform(content, generator -> writeMetadata(generator, event), event, pointers, filter);
+      if (esDocument == null) {
+        LOGGER.debug("Skipping document {} because it's not a JSON Object", event);
+        return;
       }
+
+      indexRequest.source(new BytesArray(esDocument), XContentType.JSON);
+
+    } finally {
+      parsesHistogram.update(parses);
+    }
+  }
+
+  /**
+   * Returns true if the document might be a counter that needs wrapping. Counters are
+   * unsigned integers in ASCII, so the first byte is enough to rule out everything else.
+   */
+  private boolean mightBeCounter(Event event) {
+    if (!wrapCounters) {
+      return false;
     }
+    final ByteBuf content = MessageUtil.getContent(event.getByteBuf());
+    if (!content.isReadable()) {
+      return false;
+    }
+    final byte first = content.getByte(content.readerIndex());
+    return first >= '0' && first <= '9';
+  }
 
-    indexRequest.source(esDocument, XContentType.JSON);
+  /**
+   * Writes the value of the metadata field.
+   */
+  @FunctionalInterface
+  interface MetadataWriter {
+    void write(JsonGenerator generator) throws IOException;
   }
 
   @Nullable
-  private Map<String, Object> getDocumentAsMap(byte[] bytes) {
-    try {
-      return DefaultObjectMapper.readValueAsMap(bytes);
+  byte[] transform(byte[] bytes, MetadataWriter metadata, Object document) {
+    return transform(bytes, metadata, document, PointerValues.NONE, FieldFilter.NONE);
+  }
+
+  @Nullable
+  byte[] transform(byte[] bytes, MetadataWriter metadata, Object document, PointerValues pointers, FieldFilter filter) {
+    return transform(Unpooled.wrappedBuffer(bytes), metadata, document, pointers, filter);
+  }
+
+  /**
+   * Builds the Elasticsearch document by copying the Couchbase document's tokens
+   * straight from a parser to a generator, wrapping the content and adding the
+   * metadata field along the way. Fields dropped by the filter are never copied.
+   * Captures the pointer values in the same pass.
+   *
+   * @param document identifies the document in log messages
+   * @return the Elasticsearch document, or null if the content is not a JSON Object
+   * (or a counter, if counters are wrapped)
+   */
+  @Nullable
+  byte[] transform(ByteBuf content, MetadataWriter metadata, Object document, PointerValues pointers, FieldFilter filter) {
+    // Recycled along with the parser and generator buffers, which Jackson keeps per thread.
+    final ByteArrayBuilder out = outputBuffer.get();
+    try (JsonParser parser = createParser(content);
+         JsonGenerator generator = jsonFactory.createGenerator(out)) {
+
+      final JsonToken rootToken = parser.nextToken();
+      if (rootToken == null) {
+        return null; // empty
+      }
+      pointers.capture(parser);
+
+      final Long counter;
+      if (rootToken == JsonToken.START_OBJECT) {
+        counter = null;
+      } else if (wrapCounters && rootToken == JsonToken.VALUE_NUMBER_INT) {
+        counter = readCounter(parser);
+        if (counter == null) {
+          return null;
+        }
+      } else {
+        return null;
+      }
+
+      generator.writeStartObject();
+      if (!documentContentAtTopLevel) {
+        generator.writeFieldName("doc");
+        generator.writeStartObject();
+      }
+
+      // With content at the top level, the metadata field conflicts with a top-level document field
+      // of the same name. Otherwise, everything is nested under "doc".
+      boolean conflict = !documentContentAtTopLevel && "doc".equals(metadataFieldName);
+
+      if (counter == null) {
+        final String topLevelName = documentContentAtTopLevel ? metadataFieldName : null;
+        conflict |= filter.isEmpty()
+            ? readObject(parser, generator, topLevelName, pointers)
+            : readFilteredObject(parser, generator, topLevelName, pointers, filter);
+      } else {
+        generator.writeNumberField("value", counter);
+      }
+
+      if (!documentContentAtTopLevel) {
+        generator.writeEndObject();
+      }
+
+      if (metadataFieldName != null) {
+        if (conflict) {
+          LOGGER.warn("Metadata field name conflict; document {} already has field named '{}'",
+              RedactableArgument.user(document), metadataFieldName);
+        } else {
+          generator.writeFieldName(metadataFieldName);
+          metadata.write(generator);
+        }
+      }
+
+      generator.writeEndObject();
+      generator.flush();
+      return out.toByteArray();
+
     } catch (IOException notJsonObject) {
-      return wrapCounters ? wrapIfCounter(bytes) : null;
+      return null;
+
+    } finally {
+      out.reset();
     }
   }
 
+  /**
+   * Reads the counter value at the parser's current token, which must be the document root.
+   *
+   * @return null if the document isn't a counter
+   */
   @Nullable
-  private static Map<String, Object> wrapIfCounter(byte[] bytes) {
-    final Long counter = getCounterValue(bytes);
-    if (counter == null) {
+  private static Long readCounter(JsonParser parser) {
+    try {
+      // intentionally fail with ArithmeticException if it's outside the counter range (unsigned 64-bit int)
+      final long counter = unsignedLongValueExact(parser.getBigIntegerValue());
+
+      if (parser.nextValue() != null) {
+        // not JSON -- garbage after root
+        return null;
+      }
+
+      return counter;
+
+    } catch (Exception notCounter) {
+      // Not a counter (not JSON, or numeric value is outside of counter range).
       return null;
     }
-
-    final Map<String, Object> result = new HashMap<>();
-    result.put("value", counter);
-    return result;
   }
 
   /**
@@ -154,16 +498,7 @@ public class DefaultDocumentTransformer implements DocumentTransformer {
         // root is not integral number
         return null;
       }
-
-      // intentionally fail with ArithmeticException if it's outside the counter range (unsigned 64-bit int)
-      final long counter = unsignedLongValueExact(parser.getBigIntegerValue());
-
-      if (parser.nextValue() != null) {
-        // not JSON -- garbage after root
-        return null;
-      }
-
-      return counter;
+      return readCounter(parser);
 
     } catch (Exception notCounter) {
       // Not a counter (not JSON, or numeric value is outside of counter range).
@@ -171,30 +506,30 @@ public class DefaultDocumentTransformer implements DocumentTransformer {
     }
   }
 
-  private Map<String, Object> getMetadata(final Event event) {
+  private static void writeMetadata(JsonGenerator generator, Event event) throws IOException {
     final ByteBuf buf = event.getByteBuf();
     final long rev = DcpMutationMessage.revisionSeqno(buf);
     final long cas = DcpMutationMessage.cas(buf);
     final int expiration = DcpMutationMessage.expiry(buf);
     final int flags = DcpMutationMessage.flags(buf);
 
-    final Map<String, Object> meta = new HashMap<>();
+    generator.writeStartObject();
 
     // Legacy CAPI metadata
-    meta.put("rev", formatRevision(rev, cas, expiration, flags));
-    meta.put("flags", flags);
-    meta.put("expiration", expiration);
-    meta.put("id", event.getKey());
+    generator.writeStringField("rev", formatRevision(rev, cas, expiration, flags));
+    generator.writeNumberField("flags", flags);
+    generator.writeNumberField("expiration", expiration);
+    generator.writeStringField("id", event.getKey());
 
     // Additional DCP metadata
-    meta.put("vbucket", event.getVbucket());
-    meta.put("vbuuid", event.getVbuuid());
-    meta.put("seqno", event.getSeqno());
-    meta.put("revSeqno", rev);
-    meta.put("cas", cas);
-    meta.put("lockTime", DcpMutationMessage.lockTime(buf));
-
-    return meta;
+    generator.writeNumberField("vbucket", event.getVbucket());
+    generator.writeNumberField("vbuuid", event.getVbuuid());
+    generator.writeNumberField("seqno", event.getSeqno());
+    generator.writeNumberField("revSeqno", rev);
+    generator.writeNumberField("cas", cas);
+    generator.writeNumberField("lockTime", DcpMutationMessage.lockTime(buf));
+
+    generator.writeEndObject();
   }
 
   /**
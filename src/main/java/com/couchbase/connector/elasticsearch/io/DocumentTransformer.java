@@ -17,13 +17,16 @@
 package com.couchbase.connector.elasticsearch.io;
 
 import com.couchbase.connector.dcp.Event;
-import org.elasticsearch.action.index.IndexRequest;
 
 public interface DocumentTransformer {
   /**
-   * Sets the `source` property of the given index request if the
-   * given event is eligible for replication to Elasticsearch,
-   * otherwise does nothing.
+   * Sets the `source` property of the given index request (or marks the request
+   * as using the event content verbatim) if the given event is eligible for
+   * replication to Elasticsearch, otherwise does nothing.
+   * <p>
+   * Captures the values at the given JSON pointers while reading the content,
+   * so callers don't need to parse the document again. Pointer values are
+   * captured even if the field filter drops them from the output.
    */
-  void setSourceFromEventContent(IndexRequest indexRequest, Event event);
+  void setSourceFromEventContent(EventIndexRequest indexRequest, Event event, PointerValues pointers, FieldFilter filter);
 }
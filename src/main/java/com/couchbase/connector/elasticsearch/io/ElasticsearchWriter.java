@@ -16,44 +16,63 @@
 
 package com.couchbase.connector.elasticsearch.io;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Timer;
 import com.couchbase.client.core.logging.RedactableArgument;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
 import com.couchbase.connector.config.es.BulkRequestConfig;
-import com.couchbase.connector.dcp.Checkpoint;
 import com.couchbase.connector.dcp.CheckpointService;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.ErrorListener;
 import com.couchbase.connector.elasticsearch.Metrics;
 import com.couchbase.connector.util.ThrowableHelper;
+import com.google.common.base.Throwables;
 import org.elasticsearch.ElasticsearchStatusException;
 import org.elasticsearch.action.bulk.BackoffPolicy;
 import org.elasticsearch.action.bulk.BulkItemResponse;
-import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
-import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestClient;
 import org.elasticsearch.client.RestHighLevelClient;
 import org.elasticsearch.common.unit.ByteSizeUnit;
 import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.rest.RestStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.ConnectException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
-import java.util.function.Function;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.IntConsumer;
 
-import static com.couchbase.connector.dcp.DcpHelper.isMetadata;
 import static com.couchbase.connector.elasticsearch.io.BackoffPolicyBuilder.truncatedExponentialBackoff;
 import static com.couchbase.connector.util.ThrowableHelper.propagateCauseIfPossible;
 import static java.util.Objects.requireNonNull;
@@ -66,18 +85,79 @@ import static org.elasticsearch.common.unit.TimeValue.timeValueMinutes;
  * Inspired by the Elasticsearch client's BulkProcessor.
  * Handles retries and connection failures more reliably (famous last words).
  * <p>
+ * Up to {@code pipelineDepth} bulk requests may be in flight at once.
+ * Items that fail with a temporary error are retried with later batches,
+ * so a few throttled documents don't hold up the rest of the stream.
+ * A vbucket's checkpoint never advances past an event that is still pending.
+ * <p>
+ * If a {@link ShardRouter} is provided, each bulk request is split into
+ * sub-requests sent directly to the nodes holding the relevant primary shards.
+ * <p>
+ * With index isolation enabled, requests for each index (or index group) have their
+ * own buffer and their own {@code pipelineDepth} bulk requests in flight, so a slow
+ * index doesn't hold up the others. The checkpoint tracker is shared by all lanes.
+ * <p>
+ * If a {@link BulkRequestHedger} is provided, unusually slow bulk requests are sent
+ * again and the first response wins. The losing copy might still be in flight when
+ * the batch completes, so newer versions of its documents wait until it finishes.
+ * <p>
+ * If a {@link RejectionSpool} is provided, rejection log entries are handed to it
+ * instead of being sent with the next batch (unless the spool is full).
+ * <p>
+ * If a {@link SpillStore} is provided and a bulk request keeps failing for longer than
+ * the configured delay, the writer starts spilling requests to disk instead of sending them.
+ * Spilled events are released right away so the DCP stream keeps flowing, but checkpoints
+ * don't advance past them until the spill log has replayed them. The writer sends requests
+ * directly again once everything it spilled has been replayed. Until then its throughput is
+ * capped by the spill's replay rate, so if changes keep arriving faster than that,
+ * the writer keeps spilling (until the spill fills up and applies backpressure).
+ * <p>
  * NOT THREAD SAFE.
  */
 public class ElasticsearchWriter implements Closeable {
   private static final Logger LOGGER = LoggerFactory.getLogger(ElasticsearchWriter.class);
 
+  private static final Histogram batchSizeHistogram = Metrics.histogram("bulkBatchSize");
+
   private final RestHighLevelClient client;
   private final RequestFactory requestFactory;
-  private final CheckpointService checkpointService;
   private final ErrorListener errorListener = ErrorListener.NOOP;
-  private final long bufferBytesThreshold;
-  private final int bufferActionsThreshold;
+  private final BulkSizeController sizeController;
+  private final CheckpointTracker checkpointTracker;
   private final TimeValue bulkRequestTimeout;
+  private final int pipelineDepth;
+  private final BulkRequestEncoder encoder;
+  private final long lingerNanos;
+  private final long lingerMaxLatencyNanos;
+  private final boolean indexIsolation;
+  private final Map<String, String> indexToGroup;
+
+  @Nullable
+  private final ShardRouter shardRouter;
+
+  @Nullable
+  private final ClusterPressureMonitor pressureMonitor;
+
+  @Nullable
+  private final BulkRequestHedger hedger;
+
+  @Nullable
+  private final RejectionSpool rejectionSpool;
+
+  @Nullable
+  private final SpillLog spillLog;
+  private final long spillAfterNanos;
+
+  // True while requests are being written to the spill log instead of Elasticsearch.
+  private boolean spilling;
+
+  // Total number of actions written to the spill log.
+  private long spilledActions;
+
+  // Number of replayed actions reported to the checkpoint tracker.
+  private long replayedActions;
+
+  private static final long SPILL_FULL_POLL_MILLIS = 100;
 
   private static final TimeValue INITIAL_RETRY_DELAY = timeValueMillis(50);
   private static final TimeValue MAX_RETRY_DELAY = timeValueMinutes(5);
@@ -88,6 +168,10 @@ public class ElasticsearchWriter implements Closeable {
           //.timeout(timeValueMinutes(5))
           .build();
 
+  // Called from other threads when flush() has new work to do.
+  private volatile Runnable wakeupListener = () -> {
+  };
+
   @GuardedBy("this")
   private boolean requestInProgress;
 
@@ -96,20 +180,216 @@ public class ElasticsearchWriter implements Closeable {
 
   public ElasticsearchWriter(RestHighLevelClient client, CheckpointService checkpointService,
                              RequestFactory requestFactory,
-                             BulkRequestConfig bulkConfig) {
+                             BulkRequestConfig bulkConfig,
+                             BulkSizeController sizeController,
+                             boolean compressRequests,
+                             @Nullable ShardRouter shardRouter,
+                             @Nullable ClusterPressureMonitor pressureMonitor,
+                             @Nullable BulkRequestHedger hedger,
+                             @Nullable RejectionSpool rejectionSpool,
+                             @Nullable SpillStore spillStore,
+                             IntConsumer completionListener) {
     this.client = requireNonNull(client);
-    this.checkpointService = requireNonNull(checkpointService);
     this.requestFactory = requireNonNull(requestFactory);
-    this.bufferActionsThreshold = bulkConfig.maxActions();
-    this.bufferBytesThreshold = bulkConfig.maxBytes().getBytes();
+    this.sizeController = requireNonNull(sizeController);
+    this.checkpointTracker = new CheckpointTracker(checkpointService, completionListener);
     this.bulkRequestTimeout = requireNonNull(bulkConfig.timeout());
+    this.pipelineDepth = bulkConfig.pipelineDepth();
+    this.encoder = new BulkRequestEncoder(compressRequests);
+    this.lingerNanos = bulkConfig.linger().nanos();
+    this.lingerMaxLatencyNanos = bulkConfig.lingerMaxLatency().nanos();
+    this.shardRouter = shardRouter;
+    this.pressureMonitor = pressureMonitor;
+    this.hedger = hedger;
+    this.rejectionSpool = rejectionSpool;
+    this.spillLog = spillStore == null ? null : spillStore.newLog(this::wakeup);
+    this.spillAfterNanos = spillStore == null ? 0 : spillStore.config().after().nanos();
+    this.indexIsolation = bulkConfig.indexIsolation();
+    this.indexToGroup = bulkConfig.indexGroups();
+    this.defaultLane = indexIsolation ? null : new Lane(null);
+    if (defaultLane != null) {
+      allLanes.add(defaultLane);
+    }
+  }
+
+  // The only lane, if index isolation is disabled.
+  @Nullable
+  private final Lane defaultLane;
+
+  // If index isolation is enabled, map from index group name to lane. Lanes are created on demand.
+  private final Map<String, Lane> lanes = new HashMap<>();
+
+  private final List<Lane> allLanes = new ArrayList<>();
+
+  // Completed batches, kept so their storage can be reused.
+  private final Deque<PendingBatch> freeBatches = new ArrayDeque<>();
+
+  // Map from document ID to the pending batch or waiting retry item that writes it.
+  // Rejection log requests are not included, since they don't write to the document's index.
+  private final KeyMap<Object> inFlightKeys = new KeyMap<>();
+
+  // Map from document ID to the straggler that might still write it.
+  private final KeyMap<Straggler> stragglerKeys = new KeyMap<>();
+  private final List<Straggler> stragglers = new ArrayList<>();
+
+  /**
+   * Requests for one index (or index group) are buffered and sent separately from the
+   * requests for other indexes. Without index isolation, all requests share a single lane.
+   */
+  private static class Lane {
+    private final WriteBuffer<EventDocWriteRequest> buffer = new WriteBuffer<>();
+    private int bufferBytes;
+    private long bufferStartNanos; // when the first request was added to the (empty) buffer
+
+    // Bulk requests that have been sent but not yet completed, oldest first.
+    private final Deque<PendingBatch> pendingBatches = new ArrayDeque<>();
+
+    // Items that failed with a temporary error, ordered by when they should be retried.
+    private final PriorityQueue<RetryItem> retryQueue = new PriorityQueue<>(
+        Comparator.comparingLong((RetryItem item) -> item.dueNanos));
+
+    // True if the buffer is due to be sent, but is waiting for earlier requests to complete.
+    private boolean blocked;
+
+    // Per-lane metrics are only recorded when index isolation is enabled.
+    @Nullable
+    private final Timer latencyTimer;
+    @Nullable
+    private final Counter bufferedCounter;
+    @Nullable
+    private final Counter inFlightCounter;
+
+    private Lane(@Nullable String name) {
+      this.latencyTimer = name == null ? null : Metrics.timer("indexLane." + name + ".latency");
+      this.bufferedCounter = name == null ? null : Metrics.counter("indexLane." + name + ".buffered");
+      this.inFlightCounter = name == null ? null : Metrics.counter("indexLane." + name + ".inFlight");
+    }
+
+    private void onBuffered() {
+      if (bufferedCounter != null) {
+        bufferedCounter.inc();
+      }
+    }
+
+    private void onUnbuffered(int count) {
+      if (bufferedCounter != null) {
+        bufferedCounter.dec(count);
+      }
+    }
+
+    private void onSent() {
+      if (inFlightCounter != null) {
+        inFlightCounter.inc();
+      }
+    }
+
+    private void onCompleted() {
+      if (inFlightCounter != null) {
+        inFlightCounter.dec();
+      }
+    }
+
+    private void recordLatency(long elapsedNanos) {
+      if (latencyTimer != null) {
+        latencyTimer.update(elapsedNanos, NANOSECONDS);
+      }
+    }
   }
 
-  private final LinkedHashMap<String, EventDocWriteRequest> buffer = new LinkedHashMap<>();
-  private int bufferBytes;
+  /**
+   * A bulk request that has been sent, along with everything needed to complete it.
+   * Instances are recycled once the request completes.
+   */
+  private static class PendingBatch {
+    private Lane lane;
+    private final List<EventDocWriteRequest> requests = new ArrayList<>();
+    private RetryItem[] retryItems = new RetryItem[0]; // same order as requests; null if not a retry
+    private int totalEstimatedBytes;
+    private long startNanos;
+    private CompletableFuture<BulkResponse> response;
+
+    // The events of the first 'handedOff' requests have been released, or are now owned by someone else.
+    private int handedOff;
+
+    // One for each hedged request sent for this batch; complete when no copy is in flight.
+    private final List<CompletableFuture<Void>> hedgesSettled = new ArrayList<>();
+
+    private void add(EventDocWriteRequest request, RetryItem retryItem) {
+      if (requests.size() == retryItems.length) {
+        retryItems = Arrays.copyOf(retryItems, Math.max(16, retryItems.length * 2));
+      }
+      retryItems[requests.size()] = retryItem;
+      requests.add(request);
+      totalEstimatedBytes += request.estimatedSizeInBytes();
+    }
+
+    private void reset() {
+      lane = null;
+      Arrays.fill(retryItems, 0, requests.size(), null);
+      requests.clear();
+      totalEstimatedBytes = 0;
+      response = null;
+      handedOff = 0;
+      hedgesSettled.clear();
+    }
+
+    /**
+     * Releases the events of the requests that have not been handed off yet.
+     * Safe to call more than once; each event is released exactly once.
+     */
+    private void releaseRemaining() {
+      for (int i = handedOff; i < requests.size(); i++) {
+        requests.get(i).getEvent().release();
+      }
+      handedOff = requests.size();
+    }
+  }
+
+  /**
+   * A request that failed and is waiting to be retried, with its own backoff schedule.
+   */
+  private static class RetryItem {
+    private final EventDocWriteRequest request;
+    private final Iterator<TimeValue> waitIntervals;
+    private final long firstAttemptNanos;
+    private long dueNanos;
+    private boolean superseded;
+
+    private RetryItem(EventDocWriteRequest request, Iterator<TimeValue> waitIntervals, long firstAttemptNanos) {
+      this.request = request;
+      this.waitIntervals = waitIntervals;
+      this.firstAttemptNanos = firstAttemptNanos;
+    }
+  }
+
+  /**
+   * The documents of a completed batch whose hedged request has a copy still in flight.
+   * That copy writes the same versions the batch already wrote, but it must not
+   * overwrite a newer version sent after the batch completed.
+   */
+  private static class Straggler {
+    private final String[] keys;
+    private final CompletableFuture<Void> settled;
+
+    private Straggler(String[] keys, CompletableFuture<Void> settled) {
+      this.keys = keys;
+      this.settled = settled;
+    }
+  }
+
+  /**
+   * Sets the callback to run (on any thread) when something happens that {@link #flush()}
+   * should deal with: a bulk request completes, the losing copy of a hedged request settles,
+   * or the spill log replays some events. This lets the caller sleep until then,
+   * instead of polling.
+   */
+  public void setWakeupListener(Runnable listener) {
+    this.wakeupListener = requireNonNull(listener);
+  }
 
-  // Map from vbucket to checkpoint of last ignored event.
-  private final Map<Integer, Checkpoint> ignoreBuffer = new HashMap<>();
+  private void wakeup() {
+    wakeupListener.run();
+  }
 
   /**
    * Appends the given event to the write buffer.
@@ -156,21 +436,10 @@ public class ElasticsearchWriter implements Closeable {
           LOGGER.trace("Skipping event, no matching type: {}", RedactableArgument.user(event));
         }
 
-        if (buffer.isEmpty()) {
-          // can ignore immediately
-          final Checkpoint checkpoint = event.getCheckpoint();
-          if (isMetadata(event)) {
-            // Avoid cycle where writing the checkpoints triggers another DCP event.
-            LOGGER.debug("Ignoring metadata, not updating checkpoint for {}", event);
-            checkpointService.setWithoutMarkingDirty(event.getVbucket(), event.getCheckpoint());
-          } else {
-            LOGGER.debug("Ignoring event, immediately updating checkpoint for {}", event);
-            checkpointService.set(event.getVbucket(), checkpoint);
-          }
-        } else {
-          // ignore later after we've completed a bulk request and saved
-          ignoreBuffer.put(event.getVbucket(), event.getCheckpoint());
-        }
+        // The checkpoint is updated immediately if there are no earlier events
+        // for the same vbucket still in progress, otherwise when they complete.
+        LOGGER.debug("Ignoring event {}", event);
+        checkpointTracker.ignore(event);
         return;
 
       } finally {
@@ -178,76 +447,410 @@ public class ElasticsearchWriter implements Closeable {
       }
     }
 
+    checkpointTracker.track(event);
+
     // Do this *after* skipping unrecognized / ignored events, so that
-    // an ignored deletion does not evict a previously buffered mutation.
-    bufferBytes += request.estimatedSizeInBytes();
-    final EventDocWriteRequest evicted = buffer.put(event.getKey(), request);
+    // an ignored deletion does not supersede a pending retry.
+    final Object inFlight = inFlightKeys.get(event.getKey());
+    if (inFlight instanceof RetryItem) {
+      supersede((RetryItem) inFlight);
+    }
+
+    if (request instanceof EventRejectionIndexRequest && spool((EventRejectionIndexRequest) request)) {
+      checkpointTracker.updateCheckpoints();
+      return;
+    }
+
+    // Likewise, an ignored deletion does not evict a previously buffered mutation.
+    // A document always maps to the same index, so any earlier version is in the same lane.
+    final Lane lane = laneFor(request);
+    if (lane.buffer.isEmpty()) {
+      lane.bufferStartNanos = System.nanoTime();
+    }
+    lane.bufferBytes += request.estimatedSizeInBytes();
+    final EventDocWriteRequest evicted = lane.buffer.put(event.getKey(), request);
     if (evicted != null) {
-      bufferBytes -= evicted.estimatedSizeInBytes();
+      lane.bufferBytes -= evicted.estimatedSizeInBytes();
+      checkpointTracker.complete(evicted.getEvent());
       evicted.getEvent().release();
+    } else {
+      lane.onBuffered();
     }
 
-    if (bufferIsFull()) {
-      flush();
+    if (bufferIsFull(lane)) {
+      flush(lane);
     }
   }
 
-  private Checkpoint adjustForIgnoredEvents(int vbucket, Checkpoint checkpoint) {
-    final Checkpoint ignored = ignoreBuffer.remove(vbucket);
-    if (ignored == null) {
-      return checkpoint;
+  private Lane laneFor(EventDocWriteRequest request) {
+    if (!indexIsolation) {
+      return defaultLane;
     }
-
-    if (ignored.getVbuuid() != checkpoint.getVbuuid()) {
-      // can't compare the seqnos :-/
-      LOGGER.debug("vbuuid of ignored event does not match last written event (rollback?); will disregard ignored event when updating checkpoint.");
-      return checkpoint;
+    final String name = indexToGroup.getOrDefault(request.index(), request.index());
+    Lane lane = lanes.get(name);
+    if (lane == null) {
+      lane = new Lane(name);
+      lanes.put(name, lane);
+      allLanes.add(lane);
     }
+    return lane;
+  }
 
-    if (Long.compareUnsigned(ignored.getSeqno(), checkpoint.getSeqno()) > 0) {
-      LOGGER.debug("Adjusting vbucket {} checkpoint {} for ignored events -> {}", vbucket, checkpoint, ignored);
-      return ignored;
+  /**
+   * Hands a rejection log entry to the spool (if there is one, and it has room)
+   * and completes the entry's event.
+   *
+   * @return false if the entry should be sent to Elasticsearch by this writer instead
+   */
+  private boolean spool(EventRejectionIndexRequest request) {
+    if (rejectionSpool == null || !rejectionSpool.append(request)) {
+      return false;
     }
+    final Event e = request.getEvent();
+    checkpointTracker.complete(e);
+    e.release();
+    return true;
+  }
 
-    return checkpoint;
+  /**
+   * Abandons a retry because a newer version of the same document is about to be written.
+   */
+  private void supersede(RetryItem item) {
+    final Event e = item.request.getEvent();
+    LOGGER.debug("Abandoning retry of {} because a newer version has arrived.", e);
+    item.superseded = true;
+    inFlightKeys.remove(e.getKey());
+    checkpointTracker.complete(e);
+    e.release();
   }
 
-  private boolean bufferIsFull() {
-    return buffer.size() >= bufferActionsThreshold || bufferBytes >= bufferBytesThreshold;
+  private boolean bufferIsFull(Lane lane) {
+    return lane.buffer.size() >= sizeController.actionsLimit() || lane.bufferBytes >= sizeController.bytesLimit();
   }
 
+  /**
+   * Sends the buffered requests and any retries that are due (if any), then waits until
+   * fewer than {@code pipelineDepth} requests are in flight. Completes any requests
+   * that have already finished.
+   * <p>
+   * If lingering is enabled, a buffer that isn't full is only sent once it has
+   * lingered long enough; until then, this method just completes finished requests.
+   * <p>
+   * With index isolation enabled, a lane that already has {@code pipelineDepth} requests
+   * in flight doesn't block the other lanes unless its buffer is full.
+   */
   public void flush() throws InterruptedException {
-    if (buffer.isEmpty()) {
-      return;
+    onSpillReplayed();
+    releaseSettledStragglers();
+    for (int i = 0; i < allLanes.size(); i++) {
+      if (!flush(allLanes.get(i))) {
+        return; // interrupted
+      }
+    }
+  }
+
+  /**
+   * @return false if the thread was interrupted, otherwise true
+   */
+  private boolean flush(Lane lane) throws InterruptedException {
+    while (!lane.pendingBatches.isEmpty() && lane.pendingBatches.peekFirst().response.isDone()) {
+      if (!completeOldestBatch(lane)) {
+        return false;
+      }
+    }
+
+    lane.blocked = false;
+    if (bufferIsDue(lane) || hasDueRetries(lane)) {
+      if (indexIsolation && !bufferIsFull(lane)
+          && (lane.pendingBatches.size() >= pipelineDepth
+          || findInFlightConflict(lane) != null || findStraggler(lane) != null)) {
+        // Don't make the other lanes wait; try again on the next flush.
+        lane.blocked = true;
+        return true;
+      }
+
+      // Elasticsearch makes no promises about the order in which concurrent bulk requests
+      // are applied, so a document must not be written by more than one pending request.
+      PendingBatch conflict;
+      while ((conflict = findInFlightConflict(lane)) != null) {
+        if (!completeOldestBatch(conflict.lane)) {
+          return false;
+        }
+      }
+
+      while (lane.pendingBatches.size() >= pipelineDepth) {
+        if (!completeOldestBatch(lane)) {
+          return false;
+        }
+      }
+
+      Straggler straggler;
+      while ((straggler = findStraggler(lane)) != null) {
+        if (!awaitSettled(straggler)) {
+          return false;
+        }
+      }
+
+      if (!send(lane)) {
+        return false;
+      }
+    }
+
+    if (!indexIsolation) {
+      while (lane.pendingBatches.size() >= pipelineDepth) {
+        if (!completeOldestBatch(lane)) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  private boolean bufferIsDue(Lane lane) {
+    return !lane.buffer.isEmpty() && (bufferIsFull(lane) || lingerRemainingNanos(lane) == 0);
+  }
+
+  /**
+   * Returns how much longer the buffered requests may wait for more events before they
+   * should be sent, zero if they should be sent now, or -1 if nothing is buffered.
+   * Lanes waiting for earlier requests to complete are not considered.
+   */
+  private long lingerRemainingNanos() {
+    long result = -1;
+    for (int i = 0; i < allLanes.size(); i++) {
+      final Lane lane = allLanes.get(i);
+      if (!lane.buffer.isEmpty() && !lane.blocked) {
+        final long remaining = lingerRemainingNanos(lane);
+        result = result < 0 ? remaining : Math.min(result, remaining);
+      }
+    }
+    return result;
+  }
+
+  private long lingerRemainingNanos(Lane lane) {
+    final long nowNanos = System.nanoTime();
+    final long oldestReceivedNanos = lane.buffer.valueAt(0).getEvent().getReceivedNanos();
+    final long remaining = Math.min(
+        lingerNanos - (nowNanos - lane.bufferStartNanos),
+        lingerMaxLatencyNanos - (nowNanos - oldestReceivedNanos));
+    return Math.max(0, remaining);
+  }
+
+  /**
+   * Returns how long the caller may wait for new events before calling {@link #flush()} again
+   * (because buffered requests have lingered long enough, or a retry is due), or -1 if it may
+   * wait indefinitely. Progress made by other threads is signalled through the
+   * {@linkplain #setWakeupListener wakeup listener} instead.
+   */
+  public long flushDelayNanos() {
+    long result = lingerRemainingNanos();
+    final long nowNanos = System.nanoTime();
+    for (int i = 0; i < allLanes.size(); i++) {
+      final Lane lane = allLanes.get(i);
+      // A blocked lane's retries go out with its buffer, once a pending request completes.
+      final RetryItem next = lane.blocked ? null : nextRetry(lane);
+      if (next != null) {
+        final long remaining = Math.max(0, next.dueNanos - nowNanos);
+        result = result < 0 ? remaining : Math.min(result, remaining);
+      }
+    }
+    return result;
+  }
+
+  private static boolean hasDueRetries(Lane lane) {
+    final RetryItem next = nextRetry(lane);
+    return next != null && System.nanoTime() - next.dueNanos >= 0;
+  }
+
+  /**
+   * Returns the retry item that will be due first, discarding any superseded items ahead of it.
+   */
+  @Nullable
+  private static RetryItem nextRetry(Lane lane) {
+    RetryItem next;
+    while ((next = lane.retryQueue.peek()) != null && next.superseded) {
+      lane.retryQueue.remove();
+    }
+    return next;
+  }
+
+  /**
+   * Returns a pending batch that writes one of the documents in the lane's buffer, or null if there is none.
+   */
+  private PendingBatch findInFlightConflict(Lane lane) {
+    if (inFlightKeys.isEmpty()) {
+      return null;
+    }
+    for (int i = 0; i < lane.buffer.size(); i++) {
+      // Any retry item for a buffered key was superseded, so only pending batches can conflict.
+      final Object inFlight = inFlightKeys.get(lane.buffer.keyAt(i));
+      if (inFlight instanceof PendingBatch) {
+        return (PendingBatch) inFlight;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns a straggler that might still write one of the documents in the lane's buffer, or null if there is none.
+   */
+  private Straggler findStraggler(Lane lane) {
+    if (stragglerKeys.isEmpty()) {
+      return null;
+    }
+    for (int i = 0; i < lane.buffer.size(); i++) {
+      final Straggler straggler = stragglerKeys.get(lane.buffer.keyAt(i));
+      if (straggler != null) {
+        return straggler;
+      }
     }
+    return null;
+  }
 
+  /**
+   * @return false if the thread was interrupted, otherwise true
+   */
+  private boolean awaitSettled(Straggler straggler) {
     try {
-      synchronized (this) {
-        requestInProgress = true;
-        requestStartNanos = System.nanoTime();
+      straggler.settled.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    } catch (ExecutionException e) {
+      throw new AssertionError("settled future should never fail", e);
+    }
+    releaseSettledStragglers();
+    return true;
+  }
+
+  private void releaseSettledStragglers() {
+    for (int i = stragglers.size() - 1; i >= 0; i--) {
+      final Straggler straggler = stragglers.get(i);
+      if (straggler.settled.isDone()) {
+        for (String key : straggler.keys) {
+          stragglerKeys.remove(key, straggler);
+        }
+        stragglers.remove(i);
       }
+    }
+  }
 
-      final int totalActionCount = buffer.size();
-      final int totalEstimatedBytes = bufferBytes;
-      LOGGER.debug("Starting bulk request: {} actions for ~{} bytes", totalActionCount, totalEstimatedBytes);
+  /**
+   * If a hedged request for the batch still has a copy in flight, prevents newer versions
+   * of the batch's documents from being sent until that copy is done.
+   */
+  private void trackStraggler(PendingBatch batch) {
+    final List<CompletableFuture<?>> waitFor = new ArrayList<>(0);
+    for (CompletableFuture<Void> settled : batch.hedgesSettled) {
+      if (!settled.isDone()) {
+        waitFor.add(settled);
+      }
+    }
+    if (waitFor.isEmpty()) {
+      return;
+    }
 
-      final long startNanos = System.nanoTime();
+    final List<String> keys = new ArrayList<>(batch.requests.size());
+    for (EventDocWriteRequest r : batch.requests) {
+      if (!(r instanceof EventRejectionIndexRequest)) {
+        final String key = r.getEvent().getKey();
+        keys.add(key);
+        // An older straggler for the same document must settle first.
+        final Straggler older = stragglerKeys.get(key);
+        if (older != null) {
+          waitFor.add(older.settled);
+        }
+      }
+    }
 
-      List<EventDocWriteRequest> requests = new ArrayList<>(buffer.values());
-      clearBuffer();
+    final Straggler straggler = new Straggler(keys.toArray(new String[0]),
+        CompletableFuture.allOf(waitFor.toArray(new CompletableFuture[0])));
+    straggler.settled.thenRun(this::wakeup);
+    for (String key : straggler.keys) {
+      stragglerKeys.put(key, straggler);
+    }
+    stragglers.add(straggler);
+  }
+
+  /**
+   * @return false if the thread was interrupted, otherwise true
+   */
+  private boolean send(Lane lane) throws InterruptedException {
+    if (pressureMonitor != null && !spilling) {
+      // Wait before taking anything out of the buffer, so nothing is lost if interrupted.
+      pressureMonitor.acquire(lane.buffer.size());
+    }
+
+    final PendingBatch batch = freeBatches.isEmpty() ? new PendingBatch() : freeBatches.removeFirst();
+    batch.lane = lane;
+    for (int i = 0; i < lane.buffer.size(); i++) {
+      batch.add(lane.buffer.valueAt(i), null);
+    }
+    lane.onUnbuffered(lane.buffer.size());
+    clearBuffer(lane);
+
+    int retryCount = 0;
+    while (hasDueRetries(lane)) {
+      final RetryItem item = lane.retryQueue.remove();
+      batch.add(item.request, item);
+      retryCount++;
+    }
+
+    final List<EventDocWriteRequest> requests = batch.requests;
+    batchSizeHistogram.update(requests.size());
+    LOGGER.debug("Starting bulk request: {} actions ({} retries) for ~{} bytes", requests.size(), retryCount, batch.totalEstimatedBytes);
+
+    if (spilling) {
+      try {
+        return spill(batch);
+      } finally {
+        batch.reset();
+        freeBatches.addLast(batch);
+        updateOldestRequestStart();
+      }
+    }
+
+    for (int i = 0; i < requests.size(); i++) {
+      final EventDocWriteRequest r = requests.get(i);
+      if (!(r instanceof EventRejectionIndexRequest)) {
+        inFlightKeys.put(r.getEvent().getKey(), batch);
+      }
+    }
+
+    batch.startNanos = System.nanoTime();
+    batch.response = bulkAsync(batch);
+    batch.response.whenComplete((response, failure) -> wakeup());
+    lane.pendingBatches.addLast(batch);
+    lane.onSent();
+    updateOldestRequestStart();
+    return true;
+  }
+
+  /**
+   * Waits for the oldest pending bulk request to complete. Items that fail with a temporary
+   * error are moved to the retry queue. If the whole request fails, it is retried (blocking
+   * this writer) until Elasticsearch accepts it.
+   *
+   * @return false if the thread was interrupted, otherwise true
+   */
+  private boolean completeOldestBatch(Lane lane) throws InterruptedException {
+    final PendingBatch batch = lane.pendingBatches.peekFirst();
+    final List<EventDocWriteRequest> requests = batch.requests;
 
+    try {
+      final int totalActionCount = requests.size();
       final Iterator<TimeValue> waitIntervals = backoffPolicy.iterator();
-      final Map<Integer, EventDocWriteRequest> vbucketToLastEvent = lenientIndex(r -> r.getEvent().getVbucket(), requests);
 
+      CompletableFuture<BulkResponse> attempt = batch.response;
+      long attemptStartNanos = batch.startNanos;
       int attemptCounter = 1;
-      long indexingTookNanos = 0;
       long totalRetryDelayMillis = 0;
 
       while (true) {
         if (Thread.interrupted()) {
-          requests.forEach(r -> r.getEvent().release());
+          batch.releaseRemaining();
           Thread.currentThread().interrupt();
-          return;
+          return false;
         }
 
         if (attemptCounter == 1) {
@@ -256,19 +859,14 @@ public class ElasticsearchWriter implements Closeable {
           LOGGER.info("Bulk request attempt #{}", attemptCounter++);
         }
 
-
-        final List<EventDocWriteRequest> requestsToRetry = new ArrayList<>(0);
-        final BulkRequest bulkRequest = newBulkRequest(requests);
-        bulkRequest.timeout(bulkRequestTimeout);
-
-        final RetryReporter retryReporter = RetryReporter.forLogger(LOGGER);
-
         try {
-          final BulkResponse bulkResponse = client.bulk(bulkRequest, RequestOptions.DEFAULT);
+          final BulkResponse bulkResponse = await(attempt);
           final long nowNanos = System.nanoTime();
           final BulkItemResponse[] responses = bulkResponse.getItems();
+          final RetryReporter retryReporter = RetryReporter.forLogger(LOGGER);
+          int retryCount = 0;
 
-          indexingTookNanos += bulkResponse.getTook().nanos();
+          sizeController.onResponse(attemptStartNanos, bulkResponse.getTook().millis(), responses.length, countThrottled(responses));
 
           for (int i = 0; i < responses.length; i++) {
             final BulkItemResponse response = responses[i];
@@ -276,23 +874,32 @@ public class ElasticsearchWriter implements Closeable {
             final EventDocWriteRequest request = requests.get(i);
             final Event e = request.getEvent();
 
+            // Whatever happens next, this item's event is released, retried, or owned by its rejection request.
+            batch.handedOff = i + 1;
+
             if (failure == null) {
-              updateLatencyMetrics(e, nowNanos);
+              inFlightKeys.remove(e.getKey(), batch);
+              updateLatencyMetrics(lane, e, nowNanos);
+              checkpointTracker.complete(e);
               e.release();
               continue;
             }
 
             if (isRetryable(failure)) {
               retryReporter.add(e, failure);
-              requestsToRetry.add(request);
+              scheduleRetry(request, batch.retryItems[i], batch.startNanos);
+              retryCount++;
               continue;
             }
 
+            inFlightKeys.remove(e.getKey(), batch);
+
             if (request instanceof EventRejectionIndexRequest) {
               // ES rejected the rejection log entry! Total fail.
               LOGGER.error("Failed to index rejection document for event {}; status code: {} {}", RedactableArgument.user(e), failure.getStatus(), failure.getMessage());
               Metrics.rejectionLogFailureMeter().mark();
-              updateLatencyMetrics(e, nowNanos);
+              updateLatencyMetrics(lane, e, nowNanos);
+              checkpointTracker.complete(e);
               e.release();
 
             } else {
@@ -301,17 +908,45 @@ public class ElasticsearchWriter implements Closeable {
 
               // don't release event; the request factory assumes ownership
               final EventRejectionIndexRequest rejectionLogRequest = requestFactory.newRejectionLogRequest(request, failure);
-              if (rejectionLogRequest != null) {
-                requestsToRetry.add(rejectionLogRequest);
+              if (rejectionLogRequest == null) {
+                checkpointTracker.complete(e);
+              } else if (!spool(rejectionLogRequest)) {
+                // send it with the next batch
+                scheduleRetry(rejectionLogRequest, null, batch.startNanos);
               }
             }
 
             runQuietly("error listener", () -> errorListener.onFailedIndexResponse(e, response));
           }
 
-          Metrics.indexingRetryMeter().mark(requestsToRetry.size());
+          trackStraggler(batch);
+
+          if (retryCount != 0) {
+            retryReporter.report();
+            Metrics.indexingRetryMeter().mark(retryCount);
+          }
+
+          checkpointTracker.updateCheckpoints();
+
+          Metrics.bytesMeter().mark(batch.totalEstimatedBytes);
+          Metrics.indexTimePerDocument().update(bulkResponse.getTook().nanos() / totalActionCount, NANOSECONDS);
+          if (totalRetryDelayMillis != 0) {
+            Metrics.retryDelayTimer().update(totalRetryDelayMillis, MILLISECONDS);
+          }
+
+          if (LOGGER.isInfoEnabled()) {
+            final long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - batch.startNanos);
+            final ByteSizeValue prettySize = new ByteSizeValue(batch.totalEstimatedBytes, ByteSizeUnit.BYTES);
+            LOGGER.info("Wrote {} actions ~{} in {} ms",
+                totalActionCount, prettySize, elapsedMillis);
+          }
+
+          return true;
 
-          requests = requestsToRetry;
+        } catch (InterruptedException e) {
+          batch.releaseRemaining();
+          Thread.currentThread().interrupt();
+          return false;
 
         } catch (ElasticsearchStatusException e) {
           if (e.status() == RestStatus.UNAUTHORIZED) {
@@ -319,6 +954,10 @@ public class ElasticsearchWriter implements Closeable {
             // todo coordinator.awaitNewConfig("Elasticsearch credentials no longer valid.")
           }
 
+          if (e.status() == RestStatus.TOO_MANY_REQUESTS) {
+            sizeController.onOverload(attemptStartNanos);
+          }
+
           // Anything else probably means the cluster topology is in transition. Retry!
           LOGGER.warn("Bulk request failed with status {}", e.status(), e);
 
@@ -330,10 +969,11 @@ public class ElasticsearchWriter implements Closeable {
             LOGGER.warn("Bulk request failed; could not connect to Elasticsearch.");
           } else {
             LOGGER.warn("Bulk request failed", e);
+            sizeController.onOverload(attemptStartNanos);
           }
 
         } catch (RuntimeException e) {
-          requests.forEach(r -> r.getEvent().release());
+          batch.releaseRemaining();
 
           // If the worker thread was interrupted, someone wants the worker to stop!
           propagateCauseIfPossible(e, InterruptedException.class);
@@ -343,49 +983,332 @@ public class ElasticsearchWriter implements Closeable {
           throw e;
         }
 
-        if (requests.isEmpty()) {
-          // EXIT!
-          for (Map.Entry<Integer, EventDocWriteRequest> entry : vbucketToLastEvent.entrySet()) {
-            final int vbucket = entry.getKey();
-            Checkpoint checkpoint = entry.getValue().getEvent().getCheckpoint();
-            checkpoint = adjustForIgnoredEvents(vbucket, checkpoint);
-            checkpointService.set(entry.getKey(), checkpoint);
-          }
-
-          // might have some "ignore" checkpoints left over in the buffer if there
-          // were no writes for the same vbucket
-          for (Map.Entry<Integer, Checkpoint> entry : ignoreBuffer.entrySet()) {
-            checkpointService.set(entry.getKey(), entry.getValue());
-          }
-
-          Metrics.bytesMeter().mark(totalEstimatedBytes);
-          Metrics.indexTimePerDocument().update(indexingTookNanos / totalActionCount, NANOSECONDS);
-          if (totalRetryDelayMillis != 0) {
-            Metrics.retryDelayTimer().update(totalRetryDelayMillis, MILLISECONDS);
-          }
-
-          if (LOGGER.isInfoEnabled()) {
-            final long elapsedMillis = NANOSECONDS.toMillis(System.nanoTime() - startNanos);
-            final ByteSizeValue prettySize = new ByteSizeValue(totalEstimatedBytes, ByteSizeUnit.BYTES);
-            LOGGER.info("Wrote {} actions ~{} in {} ms",
-                totalActionCount, prettySize, elapsedMillis);
-          }
-
-          return;
+        // The whole request failed. If Elasticsearch has been unavailable for a while, spill it.
+        if (spillLog != null && (spilling || System.nanoTime() - batch.startNanos >= spillAfterNanos)) {
+          return spill(batch);
         }
 
-        // retry!
-        retryReporter.report();
+        // Otherwise, retry!
         Metrics.bulkRetriesMeter().mark();
         final TimeValue retryDelay = waitIntervals.next(); // todo check for hasNext? bail out or continue?
         LOGGER.info("Retrying bulk request in {}", retryDelay);
         MILLISECONDS.sleep(retryDelay.millis());
         totalRetryDelayMillis += retryDelay.millis();
+        attemptStartNanos = System.nanoTime();
+        attempt = bulkAsync(batch);
+      }
+    } finally {
+      lane.pendingBatches.removeFirst();
+      lane.onCompleted();
+      batch.reset();
+      freeBatches.addLast(batch);
+      updateOldestRequestStart();
+    }
+  }
+
+  /**
+   * Puts the request in the retry queue, to be sent with a later batch once its backoff delay expires.
+   *
+   * @param item the request's existing retry state, or null if this is the first failure
+   */
+  private void scheduleRetry(EventDocWriteRequest request, RetryItem item, long firstAttemptNanos) {
+    final long nowNanos = System.nanoTime();
+    final Lane lane = laneFor(request);
+
+    if (!(request instanceof EventRejectionIndexRequest) && lane.buffer.containsKey(request.getEvent().getKey())) {
+      // A newer version of the document arrived while this request was in flight.
+      inFlightKeys.remove(request.getEvent().getKey());
+      checkpointTracker.complete(request.getEvent());
+      request.getEvent().release();
+      return;
+    }
+
+    if (item == null) {
+      item = new RetryItem(request, backoffPolicy.iterator(), firstAttemptNanos);
+      if (request instanceof EventRejectionIndexRequest) {
+        // no need to wait before the first attempt
+        item.dueNanos = nowNanos;
+        lane.retryQueue.add(item);
+        return;
+      }
+    }
+
+    final TimeValue retryDelay = item.waitIntervals.hasNext() ? item.waitIntervals.next() : MAX_RETRY_DELAY;
+    item.dueNanos = nowNanos + retryDelay.nanos();
+    lane.retryQueue.add(item);
+
+    if (!(request instanceof EventRejectionIndexRequest)) {
+      inFlightKeys.put(request.getEvent().getKey(), item);
+    }
+  }
+
+  /**
+   * Writes the batch's requests to the spill log instead of sending them to Elasticsearch,
+   * waiting for room if the spill is full. The events are completed and released, but their
+   * checkpoints are held back until the spill log has replayed them.
+   *
+   * @return false if the thread was interrupted (in which case the events are released), otherwise true
+   */
+  private boolean spill(PendingBatch batch) {
+    final List<EventDocWriteRequest> requests = batch.requests;
+    if (!spilling) {
+      spilling = true;
+      LOGGER.warn("Elasticsearch has been unavailable for at least {}; spilling bulk requests to disk.",
+          TimeValue.timeValueNanos(spillAfterNanos));
+    }
+
+    final ByteBuf items = encoder.encodeUncompressed(requests);
+    try {
+      while (!spillLog.append(items, requests.size())) {
+        // The spill is full; wait for the replayers to make room.
+        MILLISECONDS.sleep(SPILL_FULL_POLL_MILLIS);
+        onSpillReplayed();
       }
+    } catch (InterruptedException e) {
+      batch.releaseRemaining();
+      Thread.currentThread().interrupt();
+      return false;
     } finally {
-      synchronized (this) {
-        requestInProgress = false;
+      items.release();
+    }
+
+    spilledActions += requests.size();
+    for (int i = 0; i < requests.size(); i++) {
+      final EventDocWriteRequest r = requests.get(i);
+      final Event e = r.getEvent();
+      if (!(r instanceof EventRejectionIndexRequest)) {
+        // Newer versions of the document are spilled too (and replayed in order) until spilling stops.
+        inFlightKeys.remove(e.getKey());
       }
+      checkpointTracker.completeSpilled(e, spilledActions);
+    }
+    checkpointTracker.updateCheckpoints();
+    batch.releaseRemaining();
+    return true;
+  }
+
+  /**
+   * Saves the checkpoints held back by spilled events the spill log has replayed so far,
+   * and stops spilling once everything has been replayed.
+   */
+  private void onSpillReplayed() {
+    if (!spilling) {
+      return;
+    }
+
+    final long replayed = spillLog.replayedActions();
+    if (replayed != replayedActions) {
+      replayedActions = replayed;
+      checkpointTracker.replayed(replayed);
+    }
+
+    if (replayedActions == spilledActions) {
+      spilling = false;
+      LOGGER.info("Finished replaying spilled bulk requests; sending requests to Elasticsearch again.");
+    }
+  }
+
+  private CompletableFuture<BulkResponse> bulkAsync(PendingBatch batch) {
+    final List<EventDocWriteRequest> requests = batch.requests;
+    if (shardRouter == null) {
+      return bulkAsync(client.getLowLevelClient(), requests, batch);
+    }
+
+    // Group the items by the node holding their primary shard, remembering each item's position.
+    final Map<RestClient, List<Integer>> nodeToPositions = new LinkedHashMap<>();
+    for (int i = 0; i < requests.size(); i++) {
+      nodeToPositions.computeIfAbsent(shardRouter.clientFor(requests.get(i)), c -> new ArrayList<>()).add(i);
+    }
+
+    if (nodeToPositions.size() == 1) {
+      return routedBulkAsync(nodeToPositions.keySet().iterator().next(), requests, batch);
+    }
+
+    final List<List<Integer>> positionLists = new ArrayList<>(nodeToPositions.size());
+    final List<CompletableFuture<BulkResponse>> subResponses = new ArrayList<>(nodeToPositions.size());
+    nodeToPositions.forEach((nodeClient, positions) -> {
+      final List<EventDocWriteRequest> subRequests = new ArrayList<>(positions.size());
+      positions.forEach(i -> subRequests.add(requests.get(i)));
+      positionLists.add(positions);
+      subResponses.add(routedBulkAsync(nodeClient, subRequests, batch));
+    });
+
+    // If any sub-request fails, the whole batch is retried. Items that were already
+    // written are written again, which is harmless since the content is the same.
+    final int itemCount = requests.size();
+    return CompletableFuture.allOf(subResponses.toArray(new CompletableFuture[0]))
+        .thenApply(ignore -> {
+          final BulkItemResponse[] merged = new BulkItemResponse[itemCount];
+          long tookMillis = 0;
+          for (int i = 0; i < subResponses.size(); i++) {
+            final BulkResponse subResponse = subResponses.get(i).join();
+            final BulkItemResponse[] items = subResponse.getItems();
+            final List<Integer> positions = positionLists.get(i);
+            for (int j = 0; j < items.length; j++) {
+              merged[positions.get(j)] = items[j];
+            }
+            // The sub-requests run in parallel, so the slowest one determines the overall time.
+            tookMillis = Math.max(tookMillis, subResponse.getTook().millis());
+          }
+          return new BulkResponse(merged, tookMillis);
+        });
+  }
+
+  /**
+   * Sends a bulk request to a specific node, and asks the shard router to refresh its
+   * routing table if the response suggests the table is out of date.
+   */
+  private CompletableFuture<BulkResponse> routedBulkAsync(RestClient nodeClient, List<EventDocWriteRequest> requests,
+                                                         PendingBatch batch) {
+    return bulkAsync(nodeClient, requests, batch).whenComplete((response, failure) -> {
+      if (failure != null || hasUnavailableShard(response.getItems())) {
+        shardRouter.requestRefresh();
+      }
+    });
+  }
+
+  private static boolean hasUnavailableShard(BulkItemResponse[] responses) {
+    for (BulkItemResponse r : responses) {
+      if (r.isFailed() && r.getFailure().getStatus() == RestStatus.SERVICE_UNAVAILABLE) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private CompletableFuture<BulkResponse> bulkAsync(RestClient restClient, List<EventDocWriteRequest> requests,
+                                                   PendingBatch batch) {
+    // Bypass the high-level client's BulkRequest so document content can be copied
+    // straight from the DCP buffers into the request body.
+    final ByteBuf body;
+    try {
+      body = encoder.encode(requests);
+    } catch (Exception e) {
+      final CompletableFuture<BulkResponse> result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+      return result;
+    }
+
+    if (hedger == null) {
+      return bulkAsync(restClient, body);
+    }
+
+    // The load-balancing client sends the hedge to the next node in its rotation.
+    final BulkRequestHedger.HedgedResponse hedged = hedger.send(body,
+        b -> bulkAsync(restClient, b),
+        b -> bulkAsync(client.getLowLevelClient(), b));
+    batch.hedgesSettled.add(hedged.settled);
+    return hedged.response;
+  }
+
+  /**
+   * Sends an encoded bulk request, releasing the body when done. May be called from any thread.
+   */
+  private CompletableFuture<BulkResponse> bulkAsync(RestClient restClient, ByteBuf body) {
+    return bulkAsync(restClient, body, bulkRequestTimeout, encoder.isCompressing());
+  }
+
+  /**
+   * Sends a bulk request body produced by a {@link BulkRequestEncoder}, releasing the body when done.
+   * HTTP error responses complete the result with the same exception the high-level client would throw.
+   * May be called from any thread.
+   */
+  static CompletableFuture<BulkResponse> bulkAsync(RestClient restClient, ByteBuf body, TimeValue timeout, boolean compressed) {
+    final CompletableFuture<BulkResponse> result = new CompletableFuture<>();
+    final Request request = new Request("POST", "/_bulk");
+    request.addParameter("timeout", timeout.getStringRep());
+    final ByteBufEntity entity = new ByteBufEntity(body, BulkRequestEncoder.CONTENT_TYPE);
+    if (compressed) {
+      entity.setContentEncoding(BulkRequestEncoder.GZIP_CONTENT_ENCODING);
+    }
+    request.setEntity(entity);
+
+    restClient.performRequestAsync(request, new ResponseListener() {
+      @Override
+      public void onSuccess(Response response) {
+        body.release();
+        try {
+          result.complete(parseBulkResponse(response));
+        } catch (Exception e) {
+          result.completeExceptionally(e);
+        }
+      }
+
+      @Override
+      public void onFailure(Exception e) {
+        body.release();
+        result.completeExceptionally(translateFailure(e));
+      }
+    });
+    return result;
+  }
+
+  private static int countThrottled(BulkItemResponse[] responses) {
+    int count = 0;
+    for (BulkItemResponse r : responses) {
+      if (r.isFailed() && r.getFailure().getStatus() == RestStatus.TOO_MANY_REQUESTS) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private static BulkResponse parseBulkResponse(Response response) throws IOException {
+    try (InputStream is = response.getEntity().getContent();
+         XContentParser parser = XContentType.JSON.xContent().createParser(
+             NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, is)) {
+      return BulkResponse.fromXContent(parser);
+    }
+  }
+
+  /**
+   * Converts HTTP error responses into the same exception the high-level client would throw,
+   * so they're handled the same way by the retry loop.
+   */
+  private static Exception translateFailure(Exception e) {
+    if (e instanceof ResponseException) {
+      final int statusCode = ((ResponseException) e).getResponse().getStatusLine().getStatusCode();
+      final RestStatus status = RestStatus.fromCode(statusCode);
+      if (status != null) {
+        return new ElasticsearchStatusException(e.getMessage(), status, e);
+      }
+    }
+    return e;
+  }
+
+  private static BulkResponse await(CompletableFuture<BulkResponse> response) throws InterruptedException, IOException {
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      Throwables.propagateIfPossible(cause, IOException.class);
+      throw new RuntimeException(cause);
+    }
+  }
+
+  private void updateOldestRequestStart() {
+    // Items waiting to be retried count as in progress since their first attempt.
+    boolean inProgress = false;
+    long oldestStartNanos = 0;
+
+    for (int i = 0; i < allLanes.size(); i++) {
+      final Lane lane = allLanes.get(i);
+      final PendingBatch oldest = lane.pendingBatches.peekFirst();
+      if (oldest != null && (!inProgress || oldest.startNanos - oldestStartNanos < 0)) {
+        inProgress = true;
+        oldestStartNanos = oldest.startNanos;
+      }
+      for (RetryItem item : lane.retryQueue) {
+        if (!item.superseded && (!inProgress || item.firstAttemptNanos - oldestStartNanos < 0)) {
+          inProgress = true;
+          oldestStartNanos = item.firstAttemptNanos;
+        }
+      }
+    }
+
+    synchronized (this) {
+      requestInProgress = inProgress;
+      requestStartNanos = oldestStartNanos;
     }
   }
 
@@ -393,14 +1316,15 @@ public class ElasticsearchWriter implements Closeable {
     return requestInProgress ? System.nanoTime() - requestStartNanos : 0;
   }
 
-  private static void updateLatencyMetrics(Event e, long nowNanos) {
+  private static void updateLatencyMetrics(Lane lane, Event e, long nowNanos) {
     final long elapsedNanos = nowNanos - e.getReceivedNanos();
     Metrics.latencyTimer().update(elapsedNanos, NANOSECONDS);
+    lane.recordLatency(elapsedNanos);
   }
 
-  private void clearBuffer() {
-    buffer.clear();
-    bufferBytes = 0;
+  private static void clearBuffer(Lane lane) {
+    lane.buffer.clear();
+    lane.bufferBytes = 0;
   }
 
   private static final Set<RestStatus> fatalStatuses = Collections.unmodifiableSet(
@@ -409,17 +1333,18 @@ public class ElasticsearchWriter implements Closeable {
           RestStatus.NOT_FOUND // index does not exist (auto-creation disabled, or deleting from non-existent index)
       ));
 
-  private static boolean isRetryable(BulkItemResponse.Failure f) {
+  static boolean isRetryable(BulkItemResponse.Failure f) {
     return !fatalStatuses.contains(f.getStatus());
     // todo Auth failures are also permanent. Need to see how they're surfaced, and decide how to handle.
   }
 
-  private BulkRequest newBulkRequest(Iterable<EventDocWriteRequest> requests) {
-    final BulkRequest bulkRequest = new BulkRequest();
-    for (EventDocWriteRequest r : requests) {
-      bulkRequest.add(r);
-    }
-    return bulkRequest;
+  /**
+   * Like {@link #isRetryable(BulkItemResponse.Failure)}, but for the HTTP status code of a bulk item
+   * parsed some other way. Items stored on disk and replayed later are retried under the same rules.
+   */
+  static boolean isRetryable(int itemStatusCode) {
+    final RestStatus status = RestStatus.fromCode(itemStatusCode);
+    return status == null || !fatalStatuses.contains(status);
   }
 
   private static void runQuietly(String description, Runnable r) {
@@ -430,16 +1355,36 @@ public class ElasticsearchWriter implements Closeable {
     }
   }
 
-  private static <K, V> Map<K, V> lenientIndex(Function<V, K> keyGenerator, Iterable<V> items) {
-    final Map<K, V> result = new HashMap<>();
-    for (V item : items) {
-      result.put(keyGenerator.apply(item), item);
-    }
-    return result;
-  }
-
   @Override
   public void close() {
-    buffer.values().forEach(e -> e.getEvent().release());
+    for (Lane lane : allLanes) {
+      for (int i = 0; i < lane.buffer.size(); i++) {
+        lane.buffer.valueAt(i).getEvent().release();
+      }
+      lane.onUnbuffered(lane.buffer.size());
+      clearBuffer(lane);
+
+      PendingBatch batch;
+      while ((batch = lane.pendingBatches.pollFirst()) != null) {
+        batch.releaseRemaining();
+        lane.onCompleted();
+      }
+
+      for (RetryItem item : lane.retryQueue) {
+        if (!item.superseded) {
+          item.request.getEvent().release();
+        }
+      }
+      lane.retryQueue.clear();
+    }
+    freeBatches.clear();
+    inFlightKeys.clear();
+    stragglers.clear();
+    stragglerKeys.clear();
+    if (spillLog != null) {
+      spillLog.close();
+    }
+    encoder.close();
+    updateOldestRequestStart();
   }
 }
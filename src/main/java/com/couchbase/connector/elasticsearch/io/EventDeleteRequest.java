@@ -19,10 +19,13 @@ package com.couchbase.connector.elasticsearch.io;
 import com.couchbase.connector.dcp.Event;
 import org.elasticsearch.action.delete.DeleteRequest;
 
+import javax.annotation.Nullable;
+
 import static java.util.Objects.requireNonNull;
 
 public class EventDeleteRequest extends DeleteRequest implements EventDocWriteRequest<DeleteRequest> {
   private final Event event;
+  private BulkActionPrefix actionPrefix;
 
   public EventDeleteRequest(String index, String type, Event event) {
     super(index, type, event.getKey());
@@ -34,6 +37,20 @@ public class EventDeleteRequest extends DeleteRequest implements EventDocWriteRe
     return event;
   }
 
+  /**
+   * Sets the pre-encoded start of the action line, which must agree with
+   * the request's op type, index, type and pipeline.
+   */
+  public void setActionPrefix(BulkActionPrefix actionPrefix) {
+    this.actionPrefix = actionPrefix;
+  }
+
+  @Nullable
+  @Override
+  public BulkActionPrefix getActionPrefix() {
+    return actionPrefix;
+  }
+
   @Override
   public int estimatedSizeInBytes() {
     return REQUEST_OVERHEAD;
@@ -20,6 +20,8 @@ import com.couchbase.connector.dcp.Event;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.bulk.BulkRequest;
 
+import javax.annotation.Nullable;
+
 /**
  * An Elasticsearch request with an attached DCP event.
  * Streamlines bulk request retry handling, simpler than using the
@@ -33,6 +35,13 @@ public interface EventDocWriteRequest<T> extends DocWriteRequest<T> {
 
   Event getEvent();
 
+  /**
+   * Returns the pre-encoded start of this request's bulk action line,
+   * or null if the encoder should build it from the request's properties.
+   */
+  @Nullable
+  BulkActionPrefix getActionPrefix();
+
   /**
    * Returns {@link #REQUEST_OVERHEAD} plus the size of the request content.
    */
@@ -16,13 +16,18 @@
 
 package com.couchbase.connector.elasticsearch.io;
 
+import com.couchbase.client.dcp.message.MessageUtil;
 import com.couchbase.connector.dcp.Event;
 import org.elasticsearch.action.index.IndexRequest;
 
+import javax.annotation.Nullable;
+
 import static java.util.Objects.requireNonNull;
 
 public class EventIndexRequest extends IndexRequest implements EventDocWriteRequest<IndexRequest> {
   private final Event event;
+  private BulkActionPrefix actionPrefix;
+  private boolean sourceFromEvent;
 
   public EventIndexRequest(String index, String type, Event event) {
     super(index, type, event.getKey());
@@ -34,8 +39,44 @@ public class EventIndexRequest extends IndexRequest implements EventDocWriteRequ
     return event;
   }
 
+  /**
+   * Sets the pre-encoded start of the action line, which must agree with
+   * the request's op type, index, type and pipeline.
+   */
+  public void setActionPrefix(BulkActionPrefix actionPrefix) {
+    this.actionPrefix = actionPrefix;
+  }
+
+  @Nullable
+  @Override
+  public BulkActionPrefix getActionPrefix() {
+    return actionPrefix;
+  }
+
+  /**
+   * Indicates the document content should be copied verbatim from the event
+   * when the bulk request is encoded, instead of being read from {@link #source()}.
+   */
+  public void setSourceFromEvent() {
+    this.sourceFromEvent = true;
+  }
+
+  public boolean isSourceFromEvent() {
+    return sourceFromEvent;
+  }
+
+  /**
+   * Returns true if the request has content, either from the event or an explicit source.
+   */
+  public boolean hasSource() {
+    return sourceFromEvent || source() != null;
+  }
+
   @Override
   public int estimatedSizeInBytes() {
-    return REQUEST_OVERHEAD + source().length();
+    final int contentLength = sourceFromEvent
+        ? MessageUtil.getContent(event.getByteBuf()).readableBytes()
+        : source().length();
+    return REQUEST_OVERHEAD + contentLength;
   }
 }
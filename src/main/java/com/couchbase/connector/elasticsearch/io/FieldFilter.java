@@ -0,0 +1,172 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.fasterxml.jackson.core.JsonPointer;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Include and exclude rules for document fields, compiled so they can be
+ * applied one token at a time while a document is streamed.
+ * <p>
+ * The rules that might still match a path are tracked as a bit set, so there
+ * may be at most 64 include and exclude pointers in total.
+ * <p>
+ * Thread-safe.
+ */
+class FieldFilter {
+  static final FieldFilter NONE = new FieldFilter(new ArrayList<>(), new ArrayList<>(), null);
+
+  // What to do with a value, according to the rules that match its path.
+  static final int DROP = 0;
+  static final int KEEP = 1; // keep it and everything inside it, except for excluded fields
+  static final int DESCEND = 2; // keep only the parts that are included, if any
+
+  private static final int MAX_RULES = Long.SIZE;
+
+  // Path segments of each rule, root first. A segment like "/0" matches
+  // both a field named "0" and the first element of an array.
+  private final String[][] properties;
+  private final int[][] indexes;
+
+  private final long includeRules;
+  private final long excludeRules;
+
+  // Bit sets of the rules with N path segments, indexed by N.
+  private final long[] rulesOfLength;
+
+  @Nullable
+  private final Meter savedBytes;
+
+  FieldFilter(List<JsonPointer> include, List<JsonPointer> exclude, @Nullable Meter savedBytes) {
+    final int ruleCount = include.size() + exclude.size();
+    if (ruleCount > MAX_RULES) {
+      throw new IllegalArgumentException("Too many include and exclude pointers; the limit is " + MAX_RULES + " but got " + ruleCount);
+    }
+
+    final List<JsonPointer> rules = new ArrayList<>(include);
+    rules.addAll(exclude);
+
+    this.properties = new String[ruleCount][];
+    this.indexes = new int[ruleCount][];
+    this.savedBytes = savedBytes;
+
+    int maxLength = 0;
+    for (int r = 0; r < ruleCount; r++) {
+      final List<String> segmentProperties = new ArrayList<>();
+      final List<Integer> segmentIndexes = new ArrayList<>();
+      for (JsonPointer p = rules.get(r); !p.matches(); p = p.tail()) {
+        segmentProperties.add(p.getMatchingProperty());
+        segmentIndexes.add(p.getMatchingIndex());
+      }
+      if (segmentProperties.isEmpty()) {
+        throw new IllegalArgumentException("Empty JSON pointer would match the whole document");
+      }
+      properties[r] = segmentProperties.toArray(new String[0]);
+      indexes[r] = segmentIndexes.stream().mapToInt(Integer::intValue).toArray();
+      maxLength = Math.max(maxLength, properties[r].length);
+    }
+
+    this.rulesOfLength = new long[maxLength + 1];
+    for (int r = 0; r < ruleCount; r++) {
+      rulesOfLength[properties[r].length] |= 1L << r;
+    }
+
+    this.includeRules = mask(0, include.size());
+    this.excludeRules = mask(include.size(), ruleCount);
+  }
+
+  private static long mask(int fromBit, int toBit) {
+    long result = 0;
+    for (int i = fromBit; i < toBit; i++) {
+      result |= 1L << i;
+    }
+    return result;
+  }
+
+  boolean isEmpty() {
+    return includeRules == 0 && excludeRules == 0;
+  }
+
+  /**
+   * Returns the rules that might match paths inside the document root.
+   */
+  long rootRules() {
+    return includeRules | excludeRules;
+  }
+
+  /**
+   * Returns the decision for the document root's fields; everything is
+   * kept unless there are include rules.
+   */
+  int rootDecision() {
+    return includeRules == 0 ? KEEP : DESCEND;
+  }
+
+  /**
+   * Of the given rules that match a container at the given depth,
+   * returns the ones that also match the given child.
+   *
+   * @param depth number of path segments leading to the container (zero for the document root)
+   * @param name field name of the child, or null if the container is an array
+   * @param index array index of the child, or -1 if the container is an object
+   */
+  long childRules(long containerRules, int depth, @Nullable String name, int index) {
+    long result = 0;
+    for (long remaining = containerRules; remaining != 0; remaining &= remaining - 1) {
+      final int r = Long.numberOfTrailingZeros(remaining);
+      if (name != null ? name.equals(properties[r][depth]) : index == indexes[r][depth]) {
+        result |= 1L << r;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Decides what to do with a child, given the rules it matches (from {@link #childRules})
+   * and the decision for its container.
+   *
+   * @param depth number of path segments leading to the child
+   */
+  int decide(long childRules, int depth, int containerDecision) {
+    final long ending = depth < rulesOfLength.length ? rulesOfLength[depth] : 0;
+    if ((childRules & excludeRules & ending) != 0) {
+      return DROP;
+    }
+    if (containerDecision == KEEP || (childRules & includeRules & ending) != 0) {
+      return KEEP;
+    }
+    return (childRules & includeRules) != 0 ? DESCEND : DROP;
+  }
+
+  /**
+   * Returns the rules that still matter inside a child that is kept in full.
+   */
+  long rulesInsideKeptChild(long childRules) {
+    return childRules & excludeRules;
+  }
+
+  void recordSavedBytes(long bytes) {
+    if (savedBytes != null && bytes > 0) {
+      savedBytes.mark(bytes);
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+
+/**
+ * Decides whether some bytes are exactly one JSON Object, without tokenizing them.
+ * <p>
+ * Accepts exactly the same inputs as Jackson's UTF-8 parser with default features,
+ * including Jackson's leniencies: UTF-8 is only checked for well-formed sequences
+ * (overlong encodings and encoded surrogates are accepted) and unicode escapes
+ * are not checked for unpaired surrogates. Inputs that Jackson would sniff as
+ * UTF-16 or UTF-32, and documents nested more than {@value MAX_DEPTH} levels deep,
+ * are rare enough that they are simply handed to Jackson.
+ * <p>
+ * Does not allocate memory, except when validating direct buffers larger than
+ * {@value MAX_RETAINED_SCRATCH_BYTES} bytes.
+ */
+final class JsonValidator {
+  private JsonValidator() {
+    throw new AssertionError("not instantiable");
+  }
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  private static final int MAX_DEPTH = Long.SIZE; // one bit per level says whether it's an array
+  private static final int MAX_RETAINED_SCRATCH_BYTES = 1024 * 1024;
+
+  private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[8 * 1024]);
+
+  private static final int INVALID = 0;
+  private static final int VALID = 1;
+  private static final int UNDECIDED = 2;
+
+  // What the scanner expects next (after skipping whitespace)
+  private static final int FIRST_FIELD = 0; // field name or end of object
+  private static final int FIELD = 1;
+  private static final int FIRST_ELEMENT = 2; // value or end of array
+  private static final int VALUE = 3;
+  private static final int AFTER_VALUE = 4; // comma, or end of current container
+
+  // ASCII bytes that need no special handling inside a string
+  private static final boolean[] PLAIN_STRING_BYTES = new boolean[256];
+
+  static {
+    for (int c = 0x20; c < 0x80; c++) {
+      PLAIN_STRING_BYTES[c] = c != '"' && c != '\\';
+    }
+  }
+
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+  private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+
+  static boolean isSingleObject(byte[] bytes) {
+    return isSingleObject(bytes, 0, bytes.length);
+  }
+
+  static boolean isSingleObject(byte[] bytes, int offset, int length) {
+    final int result = scan(bytes, offset, offset + length);
+    return result == UNDECIDED ? isSingleObjectAccordingToJackson(bytes, offset, length) : result == VALID;
+  }
+
+  /**
+   * Validates the buffer's readable bytes, without changing its reader index.
+   */
+  static boolean isSingleObject(ByteBuf buf) {
+    final int index = buf.readerIndex();
+    final int length = buf.readableBytes();
+    if (buf.hasArray()) {
+      return isSingleObject(buf.array(), buf.arrayOffset() + index, length);
+    }
+
+    byte[] bytes = scratch.get();
+    if (bytes.length < length) {
+      bytes = new byte[length];
+      if (length <= MAX_RETAINED_SCRATCH_BYTES) {
+        scratch.set(bytes);
+      }
+    }
+    buf.getBytes(index, bytes, 0, length);
+    return isSingleObject(bytes, 0, length);
+  }
+
+  /**
+   * For content already known to be valid JSON, returns true if the root is an object.
+   */
+  static boolean isObject(ByteBuf validJson) {
+    final int end = validJson.writerIndex();
+    for (int i = validJson.readerIndex(); i < end; i++) {
+      final byte c = validJson.getByte(i);
+      if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+        return c == '{';
+      }
+    }
+    return false;
+  }
+
+  private static boolean isSingleObjectAccordingToJackson(byte[] bytes, int offset, int length) {
+    try (JsonParser parser = jsonFactory.createParser(bytes, offset, length)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+      parser.skipChildren();
+      // otherwise multiple JSON roots, or trailing garbage
+      return parser.nextToken() == null;
+
+    } catch (IOException | RuntimeException e) {
+      // malformed
+      return false;
+    }
+  }
+
+  private static int scan(final byte[] b, int i, final int end) {
+    if (mightNotBeUtf8(b, i, end)) {
+      return UNDECIDED;
+    }
+    if (end - i >= 3 && b[i] == (byte) 0xEF && b[i + 1] == (byte) 0xBB && b[i + 2] == (byte) 0xBF) {
+      i += 3; // byte order mark
+    }
+
+    i = skipWhitespace(b, i, end);
+    if (i == end || b[i] != '{') {
+      return INVALID;
+    }
+    i++;
+
+    long arrays = 0; // bit N is set if the container at depth N is an array
+    int depth = 1;
+    int state = FIRST_FIELD;
+
+    while (true) {
+      i = skipWhitespace(b, i, end);
+      if (i == end) {
+        return INVALID; // truncated
+      }
+      final byte c = b[i];
+
+      switch (state) {
+        case FIRST_FIELD:
+          if (c == '}') {
+            i++;
+            if (--depth == 0) {
+              return skipWhitespace(b, i, end) == end ? VALID : INVALID;
+            }
+            state = AFTER_VALUE;
+            break;
+          }
+          // fall through
+
+        case FIELD:
+          if (c != '"' || (i = skipString(b, i + 1, end)) < 0) {
+            return INVALID;
+          }
+          i = skipWhitespace(b, i, end);
+          if (i == end || b[i] != ':') {
+            return INVALID;
+          }
+          i++;
+          state = VALUE;
+          break;
+
+        case FIRST_ELEMENT:
+          if (c == ']') {
+            i++;
+            depth--;
+            state = AFTER_VALUE;
+            break;
+          }
+          // fall through
+
+        case VALUE:
+          if (c == '{' || c == '[') {
+            if (depth == MAX_DEPTH) {
+              return UNDECIDED;
+            }
+            if (c == '[') {
+              arrays |= 1L << depth;
+              state = FIRST_ELEMENT;
+            } else {
+              arrays &= ~(1L << depth);
+              state = FIRST_FIELD;
+            }
+            depth++;
+            i++;
+            break;
+          }
+          if ((i = skipScalar(b, i, end)) < 0) {
+            return INVALID;
+          }
+          state = AFTER_VALUE;
+          break;
+
+        default: // AFTER_VALUE
+          final boolean inArray = (arrays & (1L << (depth - 1))) != 0;
+          if (c == ',') {
+            i++;
+            state = inArray ? VALUE : FIELD;
+          } else if (c == (inArray ? ']' : '}')) {
+            i++;
+            if (--depth == 0) {
+              return skipWhitespace(b, i, end) == end ? VALID : INVALID;
+            }
+          } else {
+            return INVALID;
+          }
+          break;
+      }
+    }
+  }
+
+  /**
+   * Returns true if Jackson's encoding detection might decide the input is not UTF-8.
+   * It only does that if one of the first four bytes is zero, or the input starts
+   * with a UTF-16 or UTF-32 byte order mark.
+   */
+  private static boolean mightNotBeUtf8(byte[] b, int i, int end) {
+    if (i == end) {
+      return false;
+    }
+    if (b[i] == (byte) 0xFE || b[i] == (byte) 0xFF) {
+      return true;
+    }
+    final int limit = Math.min(end, i + 4);
+    for (int j = i; j < limit; j++) {
+      if (b[j] == 0) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static int skipWhitespace(byte[] b, int i, int end) {
+    while (i < end) {
+      final byte c = b[i];
+      // Most tokens are not preceded by whitespace, so check for printable ASCII first.
+      if (c > ' ' || (c != ' ' && c != '\n' && c != '\r' && c != '\t')) {
+        break;
+      }
+      i++;
+    }
+    return i;
+  }
+
+  /**
+   * @param i index of the first byte of the value
+   * @return index after the value, or -1 if invalid
+   */
+  private static int skipScalar(byte[] b, int i, int end) {
+    switch (b[i]) {
+      case '"':
+        return skipString(b, i + 1, end);
+      case 't':
+        return skipLiteral(b, i, end, TRUE);
+      case 'f':
+        return skipLiteral(b, i, end, FALSE);
+      case 'n':
+        return skipLiteral(b, i, end, NULL);
+      default:
+        return skipNumber(b, i, end);
+    }
+  }
+
+  private static int skipLiteral(byte[] b, int i, int end, byte[] literal) {
+    if (end - i < literal.length) {
+      return -1;
+    }
+    for (byte expected : literal) {
+      if (b[i++] != expected) {
+        return -1;
+      }
+    }
+    // Whatever follows is checked by the caller, which only accepts whitespace or punctuation.
+    return i;
+  }
+
+  private static int skipNumber(byte[] b, int i, int end) {
+    if (b[i] == '-' && ++i == end) {
+      return -1;
+    }
+
+    // Integer part. Leading zeroes are not allowed.
+    if (b[i] == '0') {
+      i++;
+      if (i < end && isDigit(b[i])) {
+        return -1;
+      }
+    } else if (isDigit(b[i])) {
+      i = skipDigits(b, i + 1, end);
+    } else {
+      return -1;
+    }
+
+    if (i < end && b[i] == '.') {
+      i++;
+      if (i == end || !isDigit(b[i])) {
+        return -1;
+      }
+      i = skipDigits(b, i + 1, end);
+    }
+
+    if (i < end && (b[i] == 'e' || b[i] == 'E')) {
+      i++;
+      if (i < end && (b[i] == '+' || b[i] == '-')) {
+        i++;
+      }
+      if (i == end || !isDigit(b[i])) {
+        return -1;
+      }
+      i = skipDigits(b, i + 1, end);
+    }
+
+    return i;
+  }
+
+  private static int skipDigits(byte[] b, int i, int end) {
+    while (i < end && isDigit(b[i])) {
+      i++;
+    }
+    return i;
+  }
+
+  private static boolean isDigit(byte c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * @param i index after the opening quote
+   * @return index after the closing quote, or -1 if invalid
+   */
+  private static int skipString(byte[] b, int i, int end) {
+    while (true) {
+      // Fast path for printable ASCII
+      while (i < end && PLAIN_STRING_BYTES[b[i] & 0xFF]) {
+        i++;
+      }
+      if (i == end) {
+        return -1; // unterminated
+      }
+
+      final int c = b[i++] & 0xFF;
+      if (c == '"') {
+        return i;
+      }
+
+      if (c == '\\') {
+        if (i == end) {
+          return -1;
+        }
+        switch (b[i++]) {
+          case '"':
+          case '\\':
+          case '/':
+          case 'b':
+          case 'f':
+          case 'n':
+          case 'r':
+          case 't':
+            break;
+          case 'u':
+            if (end - i < 4) {
+              return -1;
+            }
+            for (int n = 0; n < 4; n++) {
+              if (!isHexDigit(b[i++])) {
+                return -1;
+              }
+            }
+            break;
+          default:
+            return -1;
+        }
+        continue;
+      }
+
+      if (c < 0x20) {
+        return -1; // unescaped control character
+      }
+
+      // Start of a multi-byte UTF-8 sequence
+      final int continuationBytes;
+      if ((c & 0xE0) == 0xC0) {
+        continuationBytes = 1;
+      } else if ((c & 0xF0) == 0xE0) {
+        continuationBytes = 2;
+      } else if ((c & 0xF8) == 0xF0) {
+        continuationBytes = 3;
+      } else {
+        return -1;
+      }
+      if (end - i < continuationBytes) {
+        return -1;
+      }
+      for (int n = 0; n < continuationBytes; n++) {
+        if ((b[i++] & 0xC0) != 0x80) {
+          return -1;
+        }
+      }
+    }
+  }
+
+  private static boolean isHexDigit(byte c) {
+    return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import java.util.Arrays;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A minimal hash map from document ID to value, using open addressing
+ * so that adding and removing entries does not allocate memory
+ * (except when the table needs to grow).
+ * <p>
+ * NOT THREAD SAFE.
+ */
+class KeyMap<V> {
+  private static final int INITIAL_CAPACITY = 64; // must be power of 2
+
+  private String[] keys = new String[INITIAL_CAPACITY];
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int mask = INITIAL_CAPACITY - 1;
+  private int size;
+
+  /**
+   * Spreads the bits of the key's hash code, since the table index is taken from the low bits.
+   * String caches its hash code, so this is cheap to call repeatedly.
+   */
+  static int hash(String key) {
+    final int h = key.hashCode() * 0x9E3779B9;
+    return h ^ (h >>> 16);
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  V get(String key) {
+    final int i = indexOf(key);
+    return i < 0 ? null : (V) values[i];
+  }
+
+  boolean containsKey(String key) {
+    return indexOf(key) >= 0;
+  }
+
+  /**
+   * @return the previous value associated with the key, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  V put(String key, V value) {
+    requireNonNull(value);
+
+    int i = hash(key) & mask;
+    for (String k; (k = keys[i]) != null; i = (i + 1) & mask) {
+      if (k.equals(key)) {
+        final V previous = (V) values[i];
+        values[i] = value;
+        return previous;
+      }
+    }
+
+    keys[i] = key;
+    values[i] = value;
+    if (++size > keys.length / 2) {
+      resize(keys.length * 2);
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value, or null if the key was not present.
+   */
+  @SuppressWarnings("unchecked")
+  V remove(String key) {
+    final int i = indexOf(key);
+    if (i < 0) {
+      return null;
+    }
+    final V previous = (V) values[i];
+    delete(i);
+    return previous;
+  }
+
+  /**
+   * Removes the entry only if the key is currently associated with the given value (compared by identity).
+   *
+   * @return true if the entry was removed.
+   */
+  boolean remove(String key, Object value) {
+    final int i = indexOf(key);
+    if (i < 0 || values[i] != value) {
+      return false;
+    }
+    delete(i);
+    return true;
+  }
+
+  /**
+   * Removes all entries, but keeps the table at its current size.
+   */
+  void clear() {
+    if (size != 0) {
+      Arrays.fill(keys, null);
+      Arrays.fill(values, null);
+      size = 0;
+    }
+  }
+
+  private int indexOf(String key) {
+    for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+      final String k = keys[i];
+      if (k == null) {
+        return -1;
+      }
+      if (k.equals(key)) {
+        return i;
+      }
+    }
+  }
+
+  private void delete(int i) {
+    // Backward-shift deletion; later entries in the same probe sequence move up to fill the gap,
+    // so lookups never need to skip over tombstones.
+    size--;
+    int gap = i;
+    for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+      final int home = hash(keys[j]) & mask;
+      if (((j - home) & mask) >= ((j - gap) & mask)) {
+        keys[gap] = keys[j];
+        values[gap] = values[j];
+        gap = j;
+      }
+    }
+    keys[gap] = null;
+    values[gap] = null;
+  }
+
+  private void resize(int newCapacity) {
+    final String[] oldKeys = keys;
+    final Object[] oldValues = values;
+    keys = new String[newCapacity];
+    values = new Object[newCapacity];
+    mask = newCapacity - 1;
+
+    for (int j = 0; j < oldKeys.length; j++) {
+      final String k = oldKeys[j];
+      if (k != null) {
+        int i = hash(k) & mask;
+        while (keys[i] != null) {
+          i = (i + 1) & mask;
+        }
+        keys[i] = k;
+        values[i] = oldValues[j];
+      }
+    }
+  }
+}
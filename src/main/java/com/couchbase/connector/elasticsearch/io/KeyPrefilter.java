@@ -0,0 +1,145 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.dcp.message.DcpMutationMessage;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.config.es.TypeConfig.IdPrefixMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IdRegexInferredIndexMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IdRegexMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IndexMatcher;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+import static com.couchbase.connector.dcp.DcpHelper.keyLength;
+import static com.couchbase.connector.dcp.DcpHelper.keyOffset;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Recognizes raw DCP messages the {@link RequestFactory} would not turn into
+ * a request, by comparing the document ID bytes with the literal ID prefixes of
+ * the type rules. Lets the connector discard these events on the IO thread
+ * without decoding the document ID or queueing them for a writer.
+ * <p>
+ * An event is discarded if its first possible match is a prefix rule for a type
+ * that is ignored (or whose deletions are ignored), or if no rule could match it.
+ * If the first rule that could match is a regular expression, the event is kept
+ * so the writer can make the final decision.
+ * <p>
+ * Thread-safe.
+ */
+public class KeyPrefilter implements Predicate<ByteBuf> {
+  private static final int NO_RULE = Integer.MAX_VALUE;
+
+  private static final class TrieNode {
+    private byte[] labels = new byte[0];
+    private TrieNode[] children = new TrieNode[0];
+    private int firstRule = NO_RULE; // lowest rule whose literal prefix ends here
+
+    private TrieNode child(byte b) {
+      for (int i = 0; i < labels.length; i++) {
+        if (labels[i] == b) {
+          return children[i];
+        }
+      }
+      return null;
+    }
+
+    private TrieNode getOrAddChild(byte b) {
+      TrieNode child = child(b);
+      if (child == null) {
+        child = new TrieNode();
+        labels = Arrays.copyOf(labels, labels.length + 1);
+        labels[labels.length - 1] = b;
+        children = Arrays.copyOf(children, children.length + 1);
+        children[children.length - 1] = child;
+      }
+      return child;
+    }
+  }
+
+  private final TrieNode trie = new TrieNode();
+  private final TypeConfig[] types;
+  private final boolean[] exact; // whether a prefix match is the whole rule
+
+  public KeyPrefilter(List<TypeConfig> types) {
+    this.types = types.toArray(new TypeConfig[0]);
+    this.exact = new boolean[this.types.length];
+
+    for (int r = 0; r < this.types.length; r++) {
+      final IndexMatcher matcher = this.types[r].matcher();
+      if (matcher instanceof IdPrefixMatcher) {
+        final IdPrefixMatcher prefixMatcher = (IdPrefixMatcher) matcher;
+        if (prefixMatcher.index() != null) { // otherwise never matches
+          exact[r] = true;
+          add(prefixMatcher.prefix(), r);
+        }
+
+      } else if (matcher instanceof IdRegexMatcher) {
+        final IdRegexMatcher regexMatcher = (IdRegexMatcher) matcher;
+        if (regexMatcher.index() != null) { // otherwise never matches
+          add(TypeMatcher.literalPrefix(regexMatcher.pattern().pattern()), r);
+        }
+
+      } else if (matcher instanceof IdRegexInferredIndexMatcher) {
+        add(TypeMatcher.literalPrefix(((IdRegexInferredIndexMatcher) matcher).pattern().pattern()), r);
+
+      } else {
+        add("", r);
+      }
+    }
+  }
+
+  private void add(String literalPrefix, int rule) {
+    if (!literalPrefix.isEmpty() && Character.isHighSurrogate(literalPrefix.charAt(literalPrefix.length() - 1))) {
+      // Half a code point can't be encoded; settle for a shorter prefix.
+      literalPrefix = literalPrefix.substring(0, literalPrefix.length() - 1);
+    }
+    TrieNode node = trie;
+    for (byte b : literalPrefix.getBytes(UTF_8)) {
+      node = node.getOrAddChild(b);
+    }
+    node.firstRule = Math.min(node.firstRule, rule);
+  }
+
+  /**
+   * Returns true if the given DCP mutation, deletion or expiration message can be discarded.
+   */
+  @Override
+  public boolean test(ByteBuf message) {
+    final int offset = keyOffset(message);
+    final int length = keyLength(message);
+
+    TrieNode node = trie;
+    int firstRule = node.firstRule;
+    for (int i = 0; i < length && (node = node.child(message.getByte(offset + i))) != null; i++) {
+      firstRule = Math.min(firstRule, node.firstRule);
+    }
+
+    if (firstRule == NO_RULE) {
+      return true; // no matching type
+    }
+    if (!exact[firstRule]) {
+      return false; // depends on a regular expression
+    }
+    final TypeConfig type = types[firstRule];
+    return type.ignore() || (type.ignoreDeletes() && !DcpMutationMessage.is(message));
+  }
+}
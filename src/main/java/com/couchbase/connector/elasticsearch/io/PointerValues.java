@@ -0,0 +1,149 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Values captured at a set of JSON pointers while a document is parsed for some other
+ * purpose, so the document doesn't need to be parsed again to look them up.
+ * As with Jackson's pointer filter, the first matching value wins.
+ * <p>
+ * NOT THREAD SAFE.
+ */
+public class PointerValues {
+  public static final PointerValues NONE = new PointerValues();
+
+  private final JsonPointer[] pointers;
+
+  // Path segments of each pointer, root first. A segment like "/0" matches
+  // both a field named "0" and the first element of an array.
+  private final String[][] properties;
+  private final int[][] indexes;
+
+  private final boolean[] found;
+  private final String[] values;
+  private int remaining;
+
+  public PointerValues(JsonPointer... pointers) {
+    this.pointers = pointers.clone();
+    this.properties = new String[pointers.length][];
+    this.indexes = new int[pointers.length][];
+    this.found = new boolean[pointers.length];
+    this.values = new String[pointers.length];
+    this.remaining = pointers.length;
+
+    for (int i = 0; i < pointers.length; i++) {
+      final List<String> segmentProperties = new ArrayList<>();
+      final List<Integer> segmentIndexes = new ArrayList<>();
+      for (JsonPointer p = pointers[i]; !p.matches(); p = p.tail()) {
+        segmentProperties.add(p.getMatchingProperty());
+        segmentIndexes.add(p.getMatchingIndex());
+      }
+      properties[i] = segmentProperties.toArray(new String[0]);
+      indexes[i] = segmentIndexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+  }
+
+  public int size() {
+    return pointers.length;
+  }
+
+  public JsonPointer pointer(int i) {
+    return pointers[i];
+  }
+
+  /**
+   * Returns true if there are pointers whose values have not been found yet.
+   */
+  public boolean hasRemaining() {
+    return remaining != 0;
+  }
+
+  /**
+   * Returns true if the document has a value (possibly null or non-scalar) at the pointer.
+   */
+  public boolean found(int i) {
+    return found[i];
+  }
+
+  /**
+   * Returns the scalar value at the pointer as a string, or null if there is no
+   * such value, or the value is null or not a scalar.
+   */
+  @Nullable
+  public String value(int i) {
+    return values[i];
+  }
+
+  /**
+   * Checks whether the value at the parser's current token is at any of the pointers.
+   * Must be called for every value token (scalars, and the start of objects and arrays).
+   */
+  public void capture(JsonParser parser) throws IOException {
+    if (remaining == 0) {
+      return;
+    }
+
+    final JsonToken token = parser.getCurrentToken();
+    // For the start of an object or array, the parser has already entered the new container.
+    final JsonStreamContext container = token.isStructStart()
+        ? parser.getParsingContext().getParent()
+        : parser.getParsingContext();
+
+    for (int i = 0; i < pointers.length; i++) {
+      if (!found[i] && matches(i, container)) {
+        found[i] = true;
+        values[i] = token.isScalarValue() ? parser.getValueAsString() : null;
+        remaining--;
+      }
+    }
+  }
+
+  /**
+   * Returns true if the value whose container is {@code context} is at the pointer.
+   */
+  private boolean matches(int pointerIndex, JsonStreamContext context) {
+    final String[] segmentProperties = properties[pointerIndex];
+    final int[] segmentIndexes = indexes[pointerIndex];
+
+    // Compare the deepest segment first, since that's the most likely to differ.
+    for (int i = segmentProperties.length - 1; i >= 0; i--) {
+      if (context.inObject()) {
+        if (!segmentProperties[i].equals(context.getCurrentName())) {
+          return false;
+        }
+      } else if (context.inArray()) {
+        if (segmentIndexes[i] != context.getCurrentIndex()) {
+          return false;
+        }
+      } else {
+        return false; // pointer is deeper than the value
+      }
+      context = context.getParent();
+    }
+    return context.inRoot();
+  }
+}
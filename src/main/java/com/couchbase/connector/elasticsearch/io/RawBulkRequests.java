@@ -0,0 +1,99 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Sends bulk request bodies that are already encoded, for background tasks
+ * that replay stored items and don't need the retry machinery of {@link ElasticsearchWriter}.
+ */
+class RawBulkRequests {
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private RawBulkRequests() {
+    throw new AssertionError("not instantiable");
+  }
+
+  /**
+   * Sends the bulk request and waits for the response.
+   * <p>
+   * Items are classified the same way {@link ElasticsearchWriter} classifies them: only
+   * a few statuses (like 400 Bad Request) are permanent failures. Items that failed for
+   * any other reason should be retried along with the rest of the request.
+   * Writing the other items again is harmless, since their content is the same.
+   *
+   * @return the items that failed permanently (usually none), like <code>{"index":{"status":400,...}}</code>.
+   * Use {@link #itemResult} and {@link #itemAction} to take them apart.
+   * @throws IOException if the request failed, or any item failed with a retryable error
+   */
+  static List<JsonNode> send(RestClient client, byte[] body) throws IOException {
+    final Request request = new Request("POST", "/_bulk");
+    request.setEntity(new NByteArrayEntity(body, BulkRequestEncoder.CONTENT_TYPE));
+    final Response response = client.performRequest(request);
+
+    final JsonNode result;
+    try (InputStream is = response.getEntity().getContent()) {
+      result = mapper.readTree(is);
+    }
+    if (!result.path("errors").asBoolean()) {
+      return Collections.emptyList();
+    }
+
+    final List<JsonNode> failures = new ArrayList<>();
+    for (JsonNode item : result.path("items")) {
+      final JsonNode itemResult = itemResult(item);
+      if (!itemResult.has("error")) {
+        continue;
+      }
+      final int status = itemResult.path("status").asInt();
+      if (ElasticsearchWriter.isRetryable(status)) {
+        throw new IOException("Bulk request item failed with status " + status + ": " + itemResult.path("error"));
+      }
+      failures.add(item);
+    }
+    return failures;
+  }
+
+  /**
+   * Unwraps an item like <code>{"index":{...}}</code>.
+   */
+  static JsonNode itemResult(JsonNode item) {
+    final Iterator<JsonNode> values = item.elements();
+    return values.hasNext() ? values.next() : item;
+  }
+
+  /**
+   * Returns the action of an item like <code>{"index":{...}}</code>.
+   */
+  static String itemAction(JsonNode item) {
+    final Iterator<String> names = item.fieldNames();
+    return names.hasNext() ? names.next() : "";
+  }
+}
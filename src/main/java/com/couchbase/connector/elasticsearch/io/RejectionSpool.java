@@ -0,0 +1,377 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.couchbase.client.core.logging.RedactableArgument;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Stores rejection log entries in a memory-mapped file on local disk, and ships them
+ * to the rejection log index from a background thread. This way a rejection log index
+ * that is unavailable (or rejecting writes) doesn't hold up indexing of other documents.
+ * <p>
+ * The file is a ring buffer of bulk request items. The read and write positions are
+ * stored in the file header, so entries not yet shipped when the connector stops
+ * are shipped after it restarts. (Since the file is memory-mapped, the entries
+ * survive a crash of the connector process, but not necessarily of the OS.)
+ * <p>
+ * Thread-safe.
+ */
+public class RejectionSpool implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(RejectionSpool.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final Meter overflowMeter = Metrics.meter("rejectionSpoolOverflow");
+
+  static final String FILENAME = "rejection-spool.dat";
+
+  private static final int MAGIC = 0x43425253; // "CBRS"
+  private static final int VERSION = 1;
+
+  // magic (int), version (int), read position (long), write position (long), reserved
+  private static final int HEADER_SIZE = 32;
+  private static final int READ_POSITION_OFFSET = 8;
+  private static final int WRITE_POSITION_OFFSET = 16;
+
+  // Each record is its length (int), when it was written (epoch millis), then the bulk request item.
+  // Records are padded to a multiple of 4 bytes, so there's always room for a wrap marker.
+  private static final int RECORD_HEADER_SIZE = 12;
+
+  // Means the rest of the ring buffer is unused; the next record is at the start.
+  private static final int WRAP_MARKER = -1;
+
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 60_000;
+
+  private final File file;
+  private final RestClient client;
+  private final int batchSize;
+  private final FileChannel channel;
+  private final FileLock lock;
+  private final MappedByteBuffer buffer;
+  private final int capacity;
+  private final Thread drainer;
+
+  // Positions are offsets into an unbounded stream of bytes; the ring buffer
+  // holds the bytes between the read and write positions.
+  @GuardedBy("this")
+  private long readPosition;
+
+  @GuardedBy("this")
+  private long writePosition;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  /**
+   * @param size size of the spool file. Ignored if the file already exists, so its contents are preserved.
+   * @param batchSize max number of entries to ship in one bulk request
+   */
+  public RejectionSpool(RestClient client, File dir, long size, int batchSize) throws IOException {
+    this.client = requireNonNull(client);
+    this.batchSize = batchSize;
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create rejection spool directory: " + dir);
+    }
+
+    this.file = new File(dir, FILENAME);
+    final boolean existing = file.length() > HEADER_SIZE;
+    this.channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE);
+    try {
+      this.lock = channel.tryLock();
+      if (lock == null) {
+        throw new IOException("Rejection spool file is in use by another process: " + file);
+      }
+
+      final long fileSize = existing ? channel.size() : size;
+      if (fileSize - HEADER_SIZE < 1024 || fileSize > Integer.MAX_VALUE) {
+        throw new IOException("Rejection spool size must be between 1 KB and 2 GB, but got " + fileSize + " bytes");
+      }
+      this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+      this.capacity = (int) (fileSize - HEADER_SIZE) & ~3;
+
+      if (existing && buffer.getInt(0) == MAGIC && buffer.getInt(4) == VERSION) {
+        readPosition = buffer.getLong(READ_POSITION_OFFSET);
+        writePosition = buffer.getLong(WRITE_POSITION_OFFSET);
+        if (readPosition < 0 || writePosition < readPosition || writePosition - readPosition > capacity) {
+          LOGGER.warn("Rejection spool file {} is corrupt; discarding its contents.", file);
+          readPosition = writePosition = 0;
+        } else if (writePosition != readPosition) {
+          LOGGER.info("Rejection spool file {} has {} bytes of entries to ship.", file, writePosition - readPosition);
+        }
+      } else if (existing) {
+        LOGGER.warn("Rejection spool file {} is not recognized; discarding its contents.", file);
+      }
+
+      buffer.putInt(0, MAGIC);
+      buffer.putInt(4, VERSION);
+      buffer.putLong(READ_POSITION_OFFSET, readPosition);
+      buffer.putLong(WRITE_POSITION_OFFSET, writePosition);
+
+    } catch (Throwable t) {
+      channel.close();
+      throw t;
+    }
+
+    this.drainer = new Thread(this::drain, "rejection-spool-drainer");
+    this.drainer.setDaemon(true);
+
+    Metrics.gauge("rejectionSpoolBytes", () -> this::usedBytes);
+    Metrics.gauge("rejectionSpoolLagMs", () -> this::lagMillis);
+  }
+
+  public void start() {
+    drainer.start();
+  }
+
+  /**
+   * Adds an entry to the spool. The caller remains responsible for releasing the request's event.
+   *
+   * @return false if the spool is full (or closed), in which case the caller should
+   * write the entry to Elasticsearch itself.
+   */
+  public boolean append(EventRejectionIndexRequest request) {
+    final byte[] item;
+    try {
+      item = encode(request);
+    } catch (IOException e) {
+      LOGGER.warn("Failed to encode rejection log entry", e);
+      return false;
+    }
+    return append(item);
+  }
+
+  /**
+   * @param item a bulk request item: the action line and (unless the action is a delete) the source line
+   */
+  boolean append(byte[] item) {
+    final int recordSize = align(RECORD_HEADER_SIZE + item.length);
+
+    synchronized (this) {
+      if (closed) {
+        return false;
+      }
+
+      int offset = physicalOffset(writePosition);
+      final int remaining = capacity - offset;
+      final int wrapPadding = remaining < recordSize ? remaining : 0;
+      if (writePosition - readPosition + wrapPadding + recordSize > capacity) {
+        overflowMeter.mark();
+        return false;
+      }
+
+      if (wrapPadding != 0) {
+        buffer.putInt(HEADER_SIZE + offset, WRAP_MARKER);
+        writePosition += wrapPadding;
+        offset = 0;
+      }
+
+      buffer.putInt(HEADER_SIZE + offset, item.length);
+      buffer.putLong(HEADER_SIZE + offset + 4, System.currentTimeMillis());
+      final ByteBuffer dest = buffer.duplicate();
+      dest.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+      dest.put(item);
+
+      // Publish the record only after it's completely written.
+      writePosition += recordSize;
+      buffer.putLong(WRITE_POSITION_OFFSET, writePosition);
+      notifyAll();
+      return true;
+    }
+  }
+
+  /**
+   * Returns the bulk request item (action line and source) for the rejection log entry.
+   */
+  private static byte[] encode(EventRejectionIndexRequest request) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    try (JsonGenerator json = mapper.getFactory().createGenerator(out)) {
+      json.writeStartObject();
+      json.writeObjectFieldStart("index");
+      json.writeStringField("_index", request.index());
+      json.writeStringField("_type", request.type());
+      json.writeStringField("_id", request.id());
+      json.writeEndObject();
+      json.writeEndObject();
+    }
+    out.write('\n');
+    request.source().writeTo(out);
+    out.write('\n');
+    return out.toByteArray();
+  }
+
+  private static int align(int size) {
+    return (size + 3) & ~3;
+  }
+
+  @GuardedBy("this")
+  private int physicalOffset(long position) {
+    return (int) (position % capacity);
+  }
+
+  /**
+   * Returns the position of the next record at or after the given position, skipping any wrap marker.
+   */
+  @GuardedBy("this")
+  private long skipWrapMarker(long position) {
+    final int offset = physicalOffset(position);
+    return buffer.getInt(HEADER_SIZE + offset) == WRAP_MARKER ? position + (capacity - offset) : position;
+  }
+
+  public synchronized long usedBytes() {
+    return writePosition - readPosition;
+  }
+
+  /**
+   * Returns how long the oldest entry has been waiting to be shipped, or zero if there are no entries.
+   */
+  public synchronized long lagMillis() {
+    if (readPosition == writePosition) {
+      return 0;
+    }
+    final int offset = physicalOffset(skipWrapMarker(readPosition));
+    return Math.max(0, System.currentTimeMillis() - buffer.getLong(HEADER_SIZE + offset + 4));
+  }
+
+  /**
+   * Entries copied from the spool, waiting to be shipped.
+   */
+  private static class Batch {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private long endPosition;
+    private int entryCount;
+  }
+
+  /**
+   * Waits until the spool has entries, then copies up to {@code batchSize} of them.
+   *
+   * @return null if the spool was closed
+   */
+  private synchronized Batch awaitBatch() throws InterruptedException {
+    while (!closed && readPosition == writePosition) {
+      wait();
+    }
+    if (closed) {
+      return null;
+    }
+
+    final Batch batch = new Batch();
+    long position = readPosition;
+    while (position != writePosition && batch.entryCount < batchSize) {
+      position = skipWrapMarker(position);
+      final int offset = physicalOffset(position);
+      final int length = buffer.getInt(HEADER_SIZE + offset);
+      final ByteBuffer src = buffer.duplicate();
+      src.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+      final byte[] item = new byte[length];
+      src.get(item);
+      batch.body.write(item, 0, length);
+      position += align(RECORD_HEADER_SIZE + length);
+      batch.entryCount++;
+    }
+    batch.endPosition = position;
+    return batch;
+  }
+
+  private synchronized void commit(Batch batch) {
+    readPosition = batch.endPosition;
+    buffer.putLong(READ_POSITION_OFFSET, readPosition);
+  }
+
+  private void drain() {
+    long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+    try {
+      Batch batch;
+      while ((batch = awaitBatch()) != null) {
+        try {
+          ship(batch);
+          commit(batch);
+          retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+
+        } catch (Exception e) {
+          LOGGER.warn("Failed to ship {} rejection log entries; will retry in {} ms.", batch.entryCount, retryDelayMillis, e);
+          Thread.sleep(retryDelayMillis);
+          retryDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis * 2);
+        }
+      }
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Writes the batch to Elasticsearch.
+   *
+   * @throws IOException if the batch should be retried
+   */
+  private void ship(Batch batch) throws IOException {
+    for (JsonNode item : RawBulkRequests.send(client, batch.body.toByteArray())) {
+      final JsonNode failure = RawBulkRequests.itemResult(item);
+      LOGGER.error("Failed to index rejection log entry for document {}; status code: {} {}",
+          RedactableArgument.user(failure.path("_id").asText()), failure.path("status").asInt(), failure.path("error"));
+      Metrics.rejectionLogFailureMeter().mark();
+    }
+    LOGGER.debug("Shipped {} rejection log entries", batch.entryCount);
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+
+    drainer.interrupt();
+    try {
+      drainer.join(SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    buffer.force();
+    lock.release();
+    channel.close();
+  }
+}
@@ -23,11 +23,7 @@ import com.couchbase.connector.config.es.RejectLogConfig;
 import com.couchbase.connector.config.es.TypeConfig;
 import com.couchbase.connector.dcp.Event;
 import com.couchbase.connector.elasticsearch.Metrics;
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonPointer;
-import com.fasterxml.jackson.core.filter.FilteringParserDelegate;
-import com.fasterxml.jackson.core.filter.JsonPointerBasedFilter;
 import org.elasticsearch.action.DocWriteRequest;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.common.Nullable;
@@ -35,27 +31,47 @@ import org.immutables.value.Value;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static com.couchbase.connector.dcp.DcpHelper.isMetadata;
-import static java.util.Objects.requireNonNull;
 
 public class RequestFactory {
   private static final Logger LOGGER = LoggerFactory.getLogger(RequestFactory.class);
 
   private static final Timer newIndexRequestTimer = Metrics.timer("newIndexReq");
-  private static final JsonFactory factory = new JsonFactory();
 
   private final DocumentTransformer documentTransformer;
 
-  private final List<TypeConfig> types;
+  private final TypeMatcher typeMatcher;
+  private final Map<TypeConfig, FieldFilter> fieldFilters = new IdentityHashMap<>();
   private final RejectLogConfig rejectLogConfig;
 
+  @Nullable
+  private final BulkActionPrefix rejectionActionPrefix;
+
   public RequestFactory(List<TypeConfig> types, DocStructureConfig docStructureConfig, RejectLogConfig rejectLogConfig) {
-    this.types = requireNonNull(types);
+    this.typeMatcher = new TypeMatcher(types);
     this.documentTransformer = new DefaultDocumentTransformer(docStructureConfig);
     this.rejectLogConfig = rejectLogConfig;
+    this.rejectionActionPrefix = rejectLogConfig.index() == null ? null
+        : new BulkActionPrefix(DocWriteRequest.OpType.INDEX, rejectLogConfig.index(), rejectLogConfig.typeName(), null);
+
+    for (int i = 0; i < types.size(); i++) {
+      final TypeConfig type = types.get(i);
+      final boolean filtered = !type.include().isEmpty() || !type.exclude().isEmpty();
+      fieldFilters.put(type, !filtered ? FieldFilter.NONE : new FieldFilter(type.include(), type.exclude(),
+          Metrics.meter("fieldFilterSavedBytes." + metricLabel(i))));
+    }
+  }
+
+  /**
+   * Identifies a type in metric names by its position in the config file,
+   * since several types may write to the same index.
+   */
+  private static String metricLabel(int typeIndex) {
+    return "type" + (typeIndex + 1);
   }
 
   @Nullable
@@ -64,7 +80,9 @@ public class RequestFactory {
       origRequest.getEvent().release();
       return null;
     }
-    return new EventRejectionIndexRequest(rejectLogConfig.index(), rejectLogConfig.typeName(), origRequest, f);
+    final EventRejectionIndexRequest request = new EventRejectionIndexRequest(rejectLogConfig.index(), rejectLogConfig.typeName(), origRequest, f);
+    request.setActionPrefix(rejectionActionPrefix);
+    return request;
   }
 
   @Nullable
@@ -74,8 +92,10 @@ public class RequestFactory {
       return null;
     }
     final DocWriteRequest.OpType opType = origEvent.isMutation() ? DocWriteRequest.OpType.INDEX : DocWriteRequest.OpType.DELETE;
-    return new EventRejectionIndexRequest(rejectLogConfig.index(), rejectLogConfig.typeName(),
+    final EventRejectionIndexRequest request = new EventRejectionIndexRequest(rejectLogConfig.index(), rejectLogConfig.typeName(),
         origEvent, matchResult.index(), matchResult.typeConfig().type(), opType, failure.getMessage());
+    request.setActionPrefix(rejectionActionPrefix);
+    return request;
   }
 
   @Nullable
@@ -87,7 +107,7 @@ public class RequestFactory {
     // Want to hear some good news? Elasticsearch document IDs are limited to 512 bytes,
     // but Couchbase IDs are never longer than 250 bytes.
 
-    final MatchResult matchResult = match(e);
+    final MatchResult matchResult = typeMatcher.match(e);
     if (matchResult == null || matchResult.typeConfig().ignore()) {
       return null; // skip it!
     }
@@ -99,7 +119,9 @@ public class RequestFactory {
 
   @Nullable
   private EventDeleteRequest newDeleteRequest(final Event event, final MatchResult matchResult) {
-    return new EventDeleteRequest(matchResult.index(), matchResult.typeConfig().type(), event);
+    final EventDeleteRequest request = new EventDeleteRequest(matchResult.index(), matchResult.typeConfig().type(), event);
+    request.setActionPrefix(matchResult.deleteActionPrefix());
+    return request;
   }
 
   @Nullable
@@ -108,11 +130,18 @@ public class RequestFactory {
       final Timer.Context timerContext = newIndexRequestTimer.time();
       EventIndexRequest request = new EventIndexRequest(matchResult.index(), matchResult.typeConfig().type(), event);
       request.setPipeline(matchResult.typeConfig().pipeline());
-      request.routing(getRouting(event, matchResult.typeConfig().routing()));
-      documentTransformer.setSourceFromEventContent(request, event);
+      request.setActionPrefix(matchResult.indexActionPrefix());
+
+      // Look up the routing value while the transformer parses the document, instead of parsing it again.
+      final JsonPointer routingPointer = matchResult.typeConfig().routing();
+      final PointerValues pointers = routingPointer == null ? PointerValues.NONE : new PointerValues(routingPointer);
+      documentTransformer.setSourceFromEventContent(request, event, pointers, fieldFilters.get(matchResult.typeConfig()));
+      if (routingPointer != null && request.hasSource()) {
+        request.routing(getRouting(event, pointers));
+      }
 
       timerContext.stop();
-      return request.source() == null ? null : request;
+      return request.hasSource() ? request : null;
 
     } catch (Exception failure) {
       LOGGER.warn("Failed to create doc write request for {} ; adding an entry to the rejection log instead.", RedactableArgument.user(event), failure);
@@ -121,22 +150,15 @@ public class RequestFactory {
     }
   }
 
-  private String getRouting(Event event, JsonPointer routingPointer) throws IOException {
-    requireNonNull(event);
-    if (routingPointer == null) {
-      return null;
-    }
-
-    final JsonParser parser = new FilteringParserDelegate(
-        factory.createParser(event.getContent()), new JsonPointerBasedFilter(routingPointer), false, false);
-
-    if (parser.nextToken() == null) {
+  private static String getRouting(Event event, PointerValues pointers) {
+    final JsonPointer routingPointer = pointers.pointer(0);
+    if (!pointers.found(0)) {
       LOGGER.warn("Document '{}' has no field matching routing JSON pointer '{}'",
           RedactableArgument.user(event.getKey()), routingPointer);
       return null;
     }
 
-    final String routingValue = parser.getValueAsString();
+    final String routingValue = pointers.value(0);
     if (routingValue == null) {
       LOGGER.warn("Document '{}' has a null or non-scalar value for routing JSON pointer '{}'",
           RedactableArgument.user(event.getKey()), routingPointer);
@@ -152,19 +174,22 @@ public class RequestFactory {
     TypeConfig typeConfig();
 
     String index();
-  }
 
-  @Nullable // null means no match
-  private MatchResult match(final Event event) {
-    for (TypeConfig type : types) {
-      String index = type.matcher().getIndexIfMatches(event);
-      if (index != null) {
-        return ImmutableMatchResult.builder()
-            .typeConfig(type)
-            .index(index)
-            .build();
-      }
+    /**
+     * Start of the bulk action line for indexing a document at this destination.
+     * Match results are cached by the type matcher, so this is encoded once per destination.
+     */
+    @Value.Lazy
+    default BulkActionPrefix indexActionPrefix() {
+      return new BulkActionPrefix(DocWriteRequest.OpType.INDEX, index(), typeConfig().type(), typeConfig().pipeline());
+    }
+
+    /**
+     * Start of the bulk action line for deleting a document at this destination.
+     */
+    @Value.Lazy
+    default BulkActionPrefix deleteActionPrefix() {
+      return new BulkActionPrefix(DocWriteRequest.OpType.DELETE, index(), typeConfig().type(), null);
     }
-    return null;
   }
 }
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.couchbase.connector.config.es.ShardRoutingConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpHost;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.cluster.routing.Murmur3HashFunction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Knows which Elasticsearch node holds the primary copy of each shard,
+ * so bulk request items can be sent directly to the node that will index them
+ * instead of being forwarded by whichever node receives the request.
+ * <p>
+ * The shard for a document is calculated the same way Elasticsearch does it,
+ * by hashing the routing value (or the document ID) with murmur3.
+ * <p>
+ * The routing table is refreshed in the background whenever the cluster state changes,
+ * and on demand when a request suggests the table is out of date. If the shard or its
+ * node is unknown (for example, the index doesn't exist yet), the item is sent using
+ * the default client. Sending an item to the wrong node is harmless; Elasticsearch
+ * forwards it to the right one.
+ * <p>
+ * Thread-safe.
+ */
+public class ShardRouter implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(ShardRouter.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final Meter refreshMeter = Metrics.meter("shardRoutingRefresh");
+  private static final Meter fallbackMeter = Metrics.meter("shardRoutingFallback");
+
+  private static final String CLUSTER_STATE_PATH = "/_cluster/state/version,routing_table,metadata";
+  private static final String CLUSTER_STATE_FILTER = String.join(",",
+      "state_uuid",
+      "metadata.indices.*.settings.index.number_of_shards",
+      "metadata.indices.*.settings.index.routing_partition_size",
+      "metadata.indices.*.routing_num_shards",
+      "metadata.indices.*.aliases",
+      "routing_table.indices.*.shards.*.primary",
+      "routing_table.indices.*.shards.*.state",
+      "routing_table.indices.*.shards.*.node");
+
+  private static final String NODES_PATH = "/_nodes/http";
+  private static final String NODES_FILTER = "nodes.*.http.publish_address";
+
+  /**
+   * Where to send items for the shards of a single index.
+   */
+  private static class IndexRouting {
+    private final int routingNumShards;
+    private final int routingFactor;
+    private final RestClient[] primaryClients; // indexed by shard number; null if unknown
+
+    private IndexRouting(int numberOfShards, int routingNumShards, RestClient[] primaryClients) {
+      this.routingNumShards = routingNumShards;
+      this.routingFactor = routingNumShards / numberOfShards;
+      this.primaryClients = primaryClients;
+    }
+
+    private RestClient primaryClient(String effectiveRouting) {
+      // Same as OperationRouting.calculateScaledShardId (ignoring routing partitions)
+      final int hash = Murmur3HashFunction.hash(effectiveRouting);
+      final int shard = Math.floorMod(hash, routingNumShards) / routingFactor;
+      return primaryClients[shard];
+    }
+  }
+
+  private final RestClient defaultClient;
+  private final Function<HttpHost, RestClient> nodeClientFactory;
+  private final String scheme;
+  private final ScheduledExecutorService executor;
+  private final AtomicBoolean refreshRequested = new AtomicBoolean();
+
+  // Clients are never closed until the router is closed, since a writer may still be using one.
+  private final Map<HttpHost, RestClient> nodeClients = new ConcurrentHashMap<>();
+
+  // Keys are index names and aliases that point to a single index.
+  private volatile Map<String, IndexRouting> indexToRouting = emptyMap();
+
+  // Only accessed by the executor thread.
+  private String stateUuid;
+
+  /**
+   * @param defaultClient used for items whose primary shard location is unknown,
+   * and for fetching the routing table.
+   * @param nodeClientFactory creates clients for talking to individual nodes.
+   * @param secureConnection whether to talk to the nodes using HTTPS.
+   */
+  public ShardRouter(RestClient defaultClient, Function<HttpHost, RestClient> nodeClientFactory,
+                     boolean secureConnection, ShardRoutingConfig config) {
+    this.defaultClient = requireNonNull(defaultClient);
+    this.nodeClientFactory = requireNonNull(nodeClientFactory);
+    this.scheme = secureConnection ? "https" : "http";
+    this.executor = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("shard-router").setDaemon(true).build());
+
+    final long intervalMillis = config.refreshInterval().millis();
+    executor.scheduleWithFixedDelay(this::refresh, 0, intervalMillis, MILLISECONDS);
+  }
+
+  /**
+   * Returns the client for the node holding the primary shard the request will be written to,
+   * or the default client if the location of the shard is not known.
+   */
+  public RestClient clientFor(DocWriteRequest<?> request) {
+    final IndexRouting routing = indexToRouting.get(request.index());
+    final String effectiveRouting = request.routing() != null ? request.routing() : request.id();
+    final RestClient result = routing == null || effectiveRouting == null ? null : routing.primaryClient(effectiveRouting);
+    if (result == null) {
+      fallbackMeter.mark();
+      return defaultClient;
+    }
+    return result;
+  }
+
+  /**
+   * Schedules an immediate refresh of the routing table, even if the cluster state
+   * appears not to have changed. Called when a request fails in a way that
+   * suggests a node has gone away or a shard has moved.
+   */
+  public void requestRefresh() {
+    if (refreshRequested.compareAndSet(false, true)) {
+      try {
+        executor.execute(this::refresh);
+      } catch (RuntimeException e) {
+        // rejected because the router is closed
+        LOGGER.debug("Failed to schedule routing table refresh", e);
+      }
+    }
+  }
+
+  private void refresh() {
+    final boolean forced = refreshRequested.getAndSet(false);
+    try {
+      final JsonNode state = get(CLUSTER_STATE_PATH, CLUSTER_STATE_FILTER);
+      final String newStateUuid = state.path("state_uuid").asText();
+      if (!forced && newStateUuid.equals(stateUuid)) {
+        return;
+      }
+
+      final Map<String, HttpHost> nodeIdToHost = parseNodes(get(NODES_PATH, NODES_FILTER));
+      indexToRouting = parseRoutingTable(state, nodeIdToHost);
+      stateUuid = newStateUuid;
+      refreshMeter.mark();
+      LOGGER.debug("Updated shard routing table for cluster state {}", stateUuid);
+
+    } catch (Exception e) {
+      LOGGER.warn("Failed to refresh shard routing table; will try again later.", e);
+      stateUuid = null;
+    }
+  }
+
+  private JsonNode get(String path, String filter) throws IOException {
+    final Request request = new Request("GET", path);
+    request.addParameter("filter_path", filter);
+    final Response response = defaultClient.performRequest(request);
+    try (InputStream is = response.getEntity().getContent()) {
+      return mapper.readTree(is);
+    }
+  }
+
+  private Map<String, HttpHost> parseNodes(JsonNode nodesInfo) {
+    final Map<String, HttpHost> result = new HashMap<>();
+    final Iterator<Map.Entry<String, JsonNode>> nodes = nodesInfo.path("nodes").fields();
+    while (nodes.hasNext()) {
+      final Map.Entry<String, JsonNode> node = nodes.next();
+      final String publishAddress = node.getValue().path("http").path("publish_address").asText(null);
+      if (publishAddress != null) {
+        result.put(node.getKey(), parsePublishAddress(publishAddress, scheme));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param address either "host:port", or "hostname/ip:port" if the node was configured with a hostname.
+   */
+  static HttpHost parsePublishAddress(String address, String scheme) {
+    final int slash = address.indexOf('/');
+    if (slash != -1) {
+      // Prefer the hostname, since it's more likely to match the node's TLS certificate.
+      final String port = address.substring(address.lastIndexOf(':') + 1);
+      address = slash == 0 ? address.substring(1) : address.substring(0, slash) + ":" + port;
+    }
+    return HttpHost.create(scheme + "://" + address);
+  }
+
+  private Map<String, IndexRouting> parseRoutingTable(JsonNode state, Map<String, HttpHost> nodeIdToHost) {
+    final Map<String, IndexRouting> result = new HashMap<>();
+    final Map<String, Integer> aliasCounts = new HashMap<>();
+
+    final JsonNode routingTable = state.path("routing_table").path("indices");
+    final Iterator<Map.Entry<String, JsonNode>> indices = state.path("metadata").path("indices").fields();
+    while (indices.hasNext()) {
+      final Map.Entry<String, JsonNode> index = indices.next();
+      final String indexName = index.getKey();
+      final JsonNode metadata = index.getValue();
+      final JsonNode settings = metadata.path("settings").path("index");
+
+      final int numberOfShards = settings.path("number_of_shards").asInt(0);
+      final int routingPartitionSize = settings.path("routing_partition_size").asInt(1);
+      if (numberOfShards <= 0 || routingPartitionSize != 1) {
+        // Partitioned indexes spread each routing value over several shards. Let Elasticsearch sort it out.
+        continue;
+      }
+      final int routingNumShards = metadata.path("routing_num_shards").asInt(numberOfShards);
+
+      final RestClient[] primaryClients = new RestClient[numberOfShards];
+      final Iterator<Map.Entry<String, JsonNode>> shards = routingTable.path(indexName).path("shards").fields();
+      while (shards.hasNext()) {
+        final Map.Entry<String, JsonNode> shard = shards.next();
+        final int shardNumber = Integer.parseInt(shard.getKey());
+        for (JsonNode copy : shard.getValue()) {
+          if (copy.path("primary").asBoolean() && isActive(copy.path("state").asText())) {
+            final HttpHost host = nodeIdToHost.get(copy.path("node").asText());
+            if (host != null && shardNumber < numberOfShards) {
+              primaryClients[shardNumber] = nodeClients.computeIfAbsent(host, nodeClientFactory);
+            }
+          }
+        }
+      }
+
+      final IndexRouting routing = new IndexRouting(numberOfShards, routingNumShards, primaryClients);
+      result.put(indexName, routing);
+      for (JsonNode alias : metadata.path("aliases")) {
+        aliasCounts.merge(alias.asText(), 1, Integer::sum);
+        result.putIfAbsent(alias.asText(), routing);
+      }
+    }
+
+    // An alias that points to more than one index can't be written to anyway.
+    aliasCounts.forEach((alias, count) -> {
+      if (count > 1) {
+        result.remove(alias);
+      }
+    });
+
+    return result;
+  }
+
+  private static boolean isActive(String shardState) {
+    // A relocating shard is still held by its original node until the relocation completes.
+    return shardState.equals("STARTED") || shardState.equals("RELOCATING");
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+    for (RestClient client : nodeClients.values()) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        LOGGER.warn("Failed to close Elasticsearch node client", e);
+      }
+    }
+    nodeClients.clear();
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Meter;
+import com.couchbase.client.core.logging.RedactableArgument;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.connector.config.es.RejectLogConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Bulk request actions spilled by one writer, stored in a sequence of memory-mapped
+ * segment files. A background thread replays the actions in order, at a limited rate,
+ * retrying until Elasticsearch accepts them. Segment files are deleted once replayed.
+ * <p>
+ * Actions are retried or rejected according to the same rules the writer uses.
+ * Rejected actions go to the rejection log.
+ * <p>
+ * Thread-safe. Records are appended by the writer's thread, and read by the replayer.
+ */
+class SpillLog implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpillLog.class);
+
+  private static final ObjectMapper mapper = new ObjectMapper();
+
+  private static final Meter spillMeter = Metrics.meter("spillActions");
+  private static final Meter replayMeter = Metrics.meter("spillReplayActions");
+
+  // Each record is the length of the bulk request items (int), the number of actions (int), then the items.
+  private static final int RECORD_HEADER_SIZE = 8;
+
+  private static final long INITIAL_RETRY_DELAY_MILLIS = 1000;
+  private static final long MAX_RETRY_DELAY_MILLIS = 30_000;
+
+  private static class Segment {
+    private final File file;
+    private final MappedByteBuffer buffer;
+    private int writeOffset;
+    private int readOffset;
+
+    private Segment(File file, MappedByteBuffer buffer) {
+      this.file = file;
+      this.buffer = buffer;
+    }
+  }
+
+  /**
+   * Records copied from the log, waiting to be replayed.
+   */
+  private static class Batch {
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private int actionCount;
+    private long recordBytes;
+    private Segment endSegment;
+    private int endOffset;
+  }
+
+  private final SpillStore store;
+  private final File dir;
+  private final Thread replayer;
+  private final Runnable replayListener;
+
+  // Total number of actions replayed so far. Actions are replayed in the order they were appended.
+  private volatile long replayedActions;
+
+  @GuardedBy("this")
+  private final Deque<Segment> segments = new ArrayDeque<>();
+
+  @GuardedBy("this")
+  private int segmentCounter;
+
+  @GuardedBy("this")
+  private long unreplayedBytes;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  SpillLog(SpillStore store, File dir, Runnable replayListener) throws IOException {
+    this.store = store;
+    this.dir = dir;
+    this.replayListener = replayListener;
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create spill directory: " + dir);
+    }
+    this.replayer = new Thread(this::replay, "spill-replayer-" + dir.getName());
+    this.replayer.setDaemon(true);
+  }
+
+  void start() {
+    replayer.start();
+  }
+
+  /**
+   * Appends a record containing the given bulk request items.
+   *
+   * @return false if the spill is full, or the record could not be written
+   */
+  boolean append(ByteBuf items, int actionCount) {
+    final int recordSize = RECORD_HEADER_SIZE + items.readableBytes();
+    if (!store.reserve(recordSize)) {
+      return false;
+    }
+
+    synchronized (this) {
+      try {
+        if (closed) {
+          store.release(recordSize);
+          return false;
+        }
+
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.buffer.capacity() - tail.writeOffset < recordSize) {
+          tail = newSegment((int) Math.max(store.config().segmentSize().getBytes(), recordSize));
+          segments.addLast(tail);
+        }
+
+        final int offset = tail.writeOffset;
+        tail.buffer.putInt(offset, items.readableBytes());
+        tail.buffer.putInt(offset + 4, actionCount);
+        final ByteBuffer dest = tail.buffer.duplicate();
+        dest.position(offset + RECORD_HEADER_SIZE);
+        dest.limit(offset + recordSize);
+        items.getBytes(items.readerIndex(), dest);
+
+        tail.writeOffset += recordSize;
+        unreplayedBytes += recordSize;
+        spillMeter.mark(actionCount);
+        notifyAll();
+        return true;
+
+      } catch (IOException e) {
+        LOGGER.warn("Failed to write spill file in {}", dir, e);
+        store.release(recordSize);
+        return false;
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private Segment newSegment(int size) throws IOException {
+    final File file = new File(dir, String.format("segment-%08d.spill", segmentCounter++));
+    try (FileChannel channel = FileChannel.open(file.toPath(), READ, WRITE, CREATE_NEW)) {
+      // The mapping remains valid after the channel is closed.
+      return new Segment(file, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+  }
+
+  /**
+   * Returns the total number of actions replayed so far.
+   */
+  long replayedActions() {
+    return replayedActions;
+  }
+
+  @GuardedBy("this")
+  private boolean hasUnreplayedRecords() {
+    final Segment head = segments.peekFirst();
+    return head != null && (head.readOffset < head.writeOffset || segments.size() > 1);
+  }
+
+  /**
+   * Waits until the log has records to replay, then copies about {@code replayBatchSize} actions' worth.
+   *
+   * @return null if the log was closed
+   */
+  private synchronized Batch awaitBatch() throws InterruptedException {
+    while (!closed && !hasUnreplayedRecords()) {
+      wait();
+    }
+    if (closed) {
+      return null;
+    }
+
+    final int batchSize = store.config().replayBatchSize();
+    final Batch batch = new Batch();
+    final Iterator<Segment> i = segments.iterator();
+    Segment segment = i.next();
+    int offset = segment.readOffset;
+
+    while (batch.actionCount < batchSize) {
+      if (offset == segment.writeOffset) {
+        if (!i.hasNext()) {
+          break;
+        }
+        // The writer has moved on to the next segment, so this one is complete.
+        segment = i.next();
+        offset = segment.readOffset;
+        continue;
+      }
+
+      final int length = segment.buffer.getInt(offset);
+      final int actionCount = segment.buffer.getInt(offset + 4);
+      final byte[] items = new byte[length];
+      final ByteBuffer src = segment.buffer.duplicate();
+      src.position(offset + RECORD_HEADER_SIZE);
+      src.get(items);
+      batch.body.write(items, 0, length);
+
+      offset += RECORD_HEADER_SIZE + length;
+      batch.actionCount += actionCount;
+      batch.recordBytes += RECORD_HEADER_SIZE + length;
+    }
+
+    batch.endSegment = segment;
+    batch.endOffset = offset;
+    return batch;
+  }
+
+  private void commit(Batch batch) {
+    synchronized (this) {
+      while (segments.peekFirst() != batch.endSegment) {
+        deleteSegment(segments.removeFirst());
+      }
+      batch.endSegment.readOffset = batch.endOffset;
+      unreplayedBytes -= batch.recordBytes;
+    }
+
+    store.release(batch.recordBytes);
+    replayMeter.mark(batch.actionCount);
+    replayedActions += batch.actionCount; // only the replayer thread writes this
+    replayListener.run();
+  }
+
+  private static void deleteSegment(Segment segment) {
+    if (!segment.file.delete()) {
+      LOGGER.warn("Failed to delete spill file {}", segment.file);
+    }
+  }
+
+  private void replay() {
+    long retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+    try {
+      Batch batch;
+      while ((batch = awaitBatch()) != null) {
+        store.replayLimiter().acquire(batch.actionCount);
+        try {
+          final List<JsonNode> failures = RawBulkRequests.send(store.client(), batch.body.toByteArray());
+          if (!failures.isEmpty()) {
+            reject(failures);
+          }
+          commit(batch);
+          retryDelayMillis = INITIAL_RETRY_DELAY_MILLIS;
+
+        } catch (Exception e) {
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          LOGGER.warn("Failed to replay {} spilled actions; will retry in {} ms.", batch.actionCount, retryDelayMillis, e);
+          Thread.sleep(retryDelayMillis);
+          retryDelayMillis = Math.min(MAX_RETRY_DELAY_MILLIS, retryDelayMillis * 2);
+        }
+      }
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  /**
+   * Records the permanently failed items in the rejection log (if there is one).
+   * Entries the rejection spool has no room for are written to Elasticsearch directly.
+   *
+   * @throws IOException if the entries could not be written, in which case the batch should be retried
+   */
+  private void reject(List<JsonNode> failures) throws IOException {
+    final RejectLogConfig rejectLog = store.rejectLog();
+    final RejectionSpool spool = store.rejectionSpool();
+    final ByteArrayOutputStream unspooled = new ByteArrayOutputStream();
+
+    for (JsonNode item : failures) {
+      final JsonNode failure = RawBulkRequests.itemResult(item);
+      LOGGER.warn("Permanent failure to index spilled action for document {}; status code: {} {}",
+          RedactableArgument.user(failure.path("_id").asText()), failure.path("status").asInt(), failure.path("error"));
+      Metrics.rejectionMeter().mark();
+
+      if (rejectLog != null) {
+        final byte[] entry = encodeRejection(rejectLog, item);
+        if (spool == null || !spool.append(entry)) {
+          unspooled.write(entry, 0, entry.length);
+        }
+      }
+    }
+
+    if (unspooled.size() != 0) {
+      for (JsonNode item : RawBulkRequests.send(store.client(), unspooled.toByteArray())) {
+        final JsonNode failure = RawBulkRequests.itemResult(item);
+        LOGGER.error("Failed to index rejection document for document {}; status code: {} {}",
+            RedactableArgument.user(failure.path("_id").asText()), failure.path("status").asInt(), failure.path("error"));
+        Metrics.rejectionLogFailureMeter().mark();
+      }
+    }
+  }
+
+  /**
+   * Returns a rejection log bulk request item for a failed item, with the same content as
+   * the entries {@link EventRejectionIndexRequest} creates for actions rejected the first time around.
+   */
+  private static byte[] encodeRejection(RejectLogConfig rejectLog, JsonNode item) throws IOException {
+    final JsonNode failure = RawBulkRequests.itemResult(item);
+    final JsonNode error = failure.path("error");
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    try (JsonGenerator json = mapper.getFactory().createGenerator(out)) {
+      json.writeStartObject();
+      json.writeObjectFieldStart("index");
+      json.writeStringField("_index", rejectLog.index());
+      json.writeStringField("_type", rejectLog.typeName());
+      json.writeStringField("_id", failure.path("_id").asText());
+      json.writeEndObject();
+      json.writeEndObject();
+    }
+    out.write('\n');
+    try (JsonGenerator json = mapper.getFactory().createGenerator(out)) {
+      json.writeStartObject();
+      json.writeStringField("index", failure.path("_index").asText());
+      json.writeStringField("type", failure.path("_type").asText());
+      json.writeStringField("action", RawBulkRequests.itemAction(item).toUpperCase(Locale.ROOT));
+      json.writeStringField("error", "Elasticsearch exception [type=" + error.path("type").asText()
+          + ", reason=" + error.path("reason").asText() + "]");
+      json.writeEndObject();
+    }
+    out.write('\n');
+    return out.toByteArray();
+  }
+
+  /**
+   * Stops replaying, and deletes the spill files.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      notifyAll();
+    }
+
+    replayer.interrupt();
+    try {
+      replayer.join(SECONDS.toMillis(5));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (this) {
+      store.release(unreplayedBytes);
+      unreplayedBytes = 0;
+      segments.clear();
+    }
+    SpillStore.deleteRecursively(dir);
+  }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.RejectLogConfig;
+import com.couchbase.connector.config.es.SpillConfig;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.google.common.util.concurrent.RateLimiter;
+import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * The directory where writers spill bulk request actions while Elasticsearch is unavailable.
+ * Each writer has its own {@link SpillLog} in a subdirectory. Limits the total size
+ * of the spill files, and the rate at which all writers replay spilled actions.
+ * <p>
+ * Spill files are not reused after a restart. A writer never advances a checkpoint past a
+ * spilled event until the event has been replayed, so any events left in the spill when the
+ * connector stops are streamed from Couchbase again when it restarts.
+ * <p>
+ * Spilled actions that Elasticsearch rejects during replay are recorded in the
+ * rejection log (if one is configured), just like actions rejected the first time around.
+ * <p>
+ * Thread-safe.
+ */
+public class SpillStore implements Closeable {
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpillStore.class);
+
+  private static final String LOG_DIR_PREFIX = "log-";
+
+  private final RestClient client;
+  private final File dir;
+  private final SpillConfig config;
+  @Nullable
+  private final RejectLogConfig rejectLog;
+  @Nullable
+  private final RejectionSpool rejectionSpool;
+  private final RateLimiter replayLimiter;
+  private final FileChannel lockChannel;
+  private final FileLock lock;
+
+  private final AtomicLong usedBytes = new AtomicLong();
+  private final AtomicInteger logCounter = new AtomicInteger();
+
+  public SpillStore(RestClient client, File dir, SpillConfig config) throws IOException {
+    this(client, dir, config, null, null);
+  }
+
+  /**
+   * @param rejectLog where to record spilled actions rejected during replay, or null to just log them
+   * @param rejectionSpool if not null, rejection log entries are handed to this spool
+   */
+  public SpillStore(RestClient client, File dir, SpillConfig config,
+                    @Nullable RejectLogConfig rejectLog, @Nullable RejectionSpool rejectionSpool) throws IOException {
+    this.client = requireNonNull(client);
+    this.dir = requireNonNull(dir);
+    this.config = requireNonNull(config);
+    this.rejectLog = rejectLog == null || rejectLog.index() == null ? null : rejectLog;
+    this.rejectionSpool = rejectionSpool;
+    this.replayLimiter = RateLimiter.create(config.replayRate());
+
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create spill directory: " + dir);
+    }
+
+    this.lockChannel = FileChannel.open(new File(dir, "lock").toPath(), WRITE, CREATE);
+    this.lock = lockChannel.tryLock();
+    if (lock == null) {
+      lockChannel.close();
+      throw new IOException("Spill directory is in use by another process: " + dir);
+    }
+
+    deleteLeftovers();
+
+    Metrics.gauge("spillBytes", () -> usedBytes::get);
+  }
+
+  private void deleteLeftovers() throws IOException {
+    final File[] logDirs = dir.listFiles(f -> f.isDirectory() && f.getName().startsWith(LOG_DIR_PREFIX));
+    if (logDirs == null) {
+      throw new IOException("Failed to list spill directory: " + dir);
+    }
+    for (File logDir : logDirs) {
+      LOGGER.info("Discarding spill files from previous run in {}; the events will be streamed again from Couchbase.", logDir);
+      deleteRecursively(logDir);
+    }
+  }
+
+  static void deleteRecursively(File file) {
+    final File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteRecursively(child);
+      }
+    }
+    if (!file.delete() && file.exists()) {
+      LOGGER.warn("Failed to delete spill file {}", file);
+    }
+  }
+
+  /**
+   * Returns a new, empty spill log, and starts replaying anything written to it.
+   */
+  SpillLog newLog() {
+    return newLog(() -> {
+    });
+  }
+
+  /**
+   * @param replayListener called by the replayer thread each time it finishes replaying some actions
+   */
+  SpillLog newLog(Runnable replayListener) {
+    try {
+      final SpillLog log = new SpillLog(this, new File(dir, LOG_DIR_PREFIX + logCounter.getAndIncrement()), replayListener);
+      log.start();
+      return log;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Claims room for a record in the spill.
+   *
+   * @return false if the spill is full
+   */
+  boolean reserve(long bytes) {
+    while (true) {
+      final long used = usedBytes.get();
+      // An empty spill always has room, even for a record larger than the limit.
+      if (used != 0 && used + bytes > config.maxSize().getBytes()) {
+        return false;
+      }
+      if (usedBytes.compareAndSet(used, used + bytes)) {
+        return true;
+      }
+    }
+  }
+
+  void release(long bytes) {
+    usedBytes.addAndGet(-bytes);
+  }
+
+  public long usedBytes() {
+    return usedBytes.get();
+  }
+
+  RestClient client() {
+    return client;
+  }
+
+  SpillConfig config() {
+    return config;
+  }
+
+  @Nullable
+  RejectLogConfig rejectLog() {
+    return rejectLog;
+  }
+
+  @Nullable
+  RejectionSpool rejectionSpool() {
+    return rejectionSpool;
+  }
+
+  RateLimiter replayLimiter() {
+    return replayLimiter;
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.release();
+    lockChannel.close();
+  }
+}
@@ -0,0 +1,388 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import com.codahale.metrics.Counter;
+import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.config.es.TypeConfig.IdPrefixMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IdRegexInferredIndexMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IdRegexMatcher;
+import com.couchbase.connector.config.es.TypeConfig.IndexMatcher;
+import com.couchbase.connector.dcp.Event;
+import com.couchbase.connector.elasticsearch.Metrics;
+import com.couchbase.connector.elasticsearch.io.RequestFactory.MatchResult;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Finds the first type whose document ID rule matches an event, without
+ * trying every rule in turn.
+ * <p>
+ * Literal ID prefixes (including the literal start of a regular expression)
+ * are compiled into a trie, so one walk over the document ID finds every rule
+ * that could match. Regular expressions without a literal start are combined
+ * into a single alternation. Java's regex engine tries alternatives in order,
+ * so the first alternative that matches is also the first matching rule.
+ * The remaining candidates are checked in the order they appear in the config,
+ * so the first matching type still wins.
+ * <p>
+ * Match results are created once per rule (or once per inferred index) and reused.
+ * <p>
+ * Thread-safe.
+ */
+public class TypeMatcher {
+  private static final int MAX_CACHED_INFERRED_RESULTS_PER_RULE = 10_000;
+  private static final Pattern NUMBERED_BACK_REFERENCE = Pattern.compile("\\\\[1-9]");
+
+  private enum Kind {
+    PREFIX, // matches as soon as the trie walk reaches it
+    REGEX, // checked with its own pattern
+    COMBINED_REGEX, // checked with the combined pattern
+    INFERRED_REGEX, // checked with its own pattern; index comes from a capturing group
+    OTHER // unknown matcher implementation
+  }
+
+  private static final class TrieNode {
+    private char[] labels = new char[0];
+    private TrieNode[] children = new TrieNode[0];
+    private int[] rules = new int[0]; // rules whose literal prefix ends here
+
+    @Nullable
+    private TrieNode child(char c) {
+      final int i = Arrays.binarySearch(labels, c);
+      return i < 0 ? null : children[i];
+    }
+
+    private TrieNode getOrAddChild(char c) {
+      int i = Arrays.binarySearch(labels, c);
+      if (i < 0) {
+        i = -(i + 1);
+        labels = insert(labels, i, c);
+        children = insert(children, i, new TrieNode());
+      }
+      return children[i];
+    }
+
+    private static char[] insert(char[] array, int i, char value) {
+      final char[] result = Arrays.copyOf(array, array.length + 1);
+      System.arraycopy(array, i, result, i + 1, array.length - i);
+      result[i] = value;
+      return result;
+    }
+
+    private static TrieNode[] insert(TrieNode[] array, int i, TrieNode value) {
+      final TrieNode[] result = Arrays.copyOf(array, array.length + 1);
+      System.arraycopy(array, i, result, i + 1, array.length - i);
+      result[i] = value;
+      return result;
+    }
+  }
+
+  /**
+   * Per-thread state, so matching doesn't allocate.
+   */
+  private final class Scratch {
+    private final long[] candidates = new long[alwaysCandidates.length];
+    private final Matcher[] matchers = new Matcher[types.length];
+    private Matcher combinedMatcher;
+
+    private Matcher matcher(int rule, String key) {
+      final Matcher m = matchers[rule];
+      return m == null ? (matchers[rule] = patterns[rule].matcher(key)) : m.reset(key);
+    }
+
+    private Matcher combinedMatcher(String key) {
+      final Matcher m = combinedMatcher;
+      return m == null ? (combinedMatcher = combinedPattern.matcher(key)) : m.reset(key);
+    }
+  }
+
+  private final TypeConfig[] types;
+  private final Kind[] kinds;
+  private final Pattern[] patterns;
+  private final MatchResult[] results; // for rules with a fixed index
+  private final List<ConcurrentMap<String, MatchResult>> inferredResults = new ArrayList<>();
+  private final Counter[] hits;
+  private final Counter misses = Metrics.counter("typeRuleHits.none");
+
+  private final TrieNode trie = new TrieNode();
+  private final long[] alwaysCandidates; // bit set of rules that aren't in the trie
+
+  @Nullable
+  private final Pattern combinedPattern;
+  private final int[] combinedRules;
+  private final String[] combinedGroupNames;
+
+  private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+  public TypeMatcher(List<TypeConfig> types) {
+    final int count = types.size();
+    this.types = types.toArray(new TypeConfig[0]);
+    this.kinds = new Kind[count];
+    this.patterns = new Pattern[count];
+    this.results = new MatchResult[count];
+    this.hits = new Counter[count];
+    this.alwaysCandidates = new long[(count + Long.SIZE - 1) / Long.SIZE];
+
+    final List<Integer> combinable = new ArrayList<>();
+
+    for (int r = 0; r < count; r++) {
+      final TypeConfig type = this.types[r];
+      final IndexMatcher matcher = type.matcher();
+      hits[r] = Metrics.counter("typeRuleHits." + (r + 1));
+      inferredResults.add(null);
+
+      if (matcher instanceof IdPrefixMatcher) {
+        final IdPrefixMatcher prefixMatcher = (IdPrefixMatcher) matcher;
+        if (prefixMatcher.index() != null) { // otherwise never matches
+          kinds[r] = Kind.PREFIX;
+          results[r] = newResult(type, prefixMatcher.index());
+          addToTrie(prefixMatcher.prefix(), r);
+        }
+
+      } else if (matcher instanceof IdRegexMatcher) {
+        final IdRegexMatcher regexMatcher = (IdRegexMatcher) matcher;
+        if (regexMatcher.index() != null) { // otherwise never matches
+          kinds[r] = Kind.REGEX;
+          patterns[r] = regexMatcher.pattern();
+          results[r] = newResult(type, regexMatcher.index());
+          final String literalPrefix = literalPrefix(patterns[r].pattern());
+          if (!literalPrefix.isEmpty()) {
+            addToTrie(literalPrefix, r);
+          } else if (isCombinable(patterns[r])) {
+            combinable.add(r);
+          } else {
+            addAlwaysCandidate(r);
+          }
+        }
+
+      } else if (matcher instanceof IdRegexInferredIndexMatcher) {
+        kinds[r] = Kind.INFERRED_REGEX;
+        patterns[r] = ((IdRegexInferredIndexMatcher) matcher).pattern();
+        inferredResults.set(r, new ConcurrentHashMap<>());
+        addToTrie(literalPrefix(patterns[r].pattern()), r);
+
+      } else {
+        kinds[r] = Kind.OTHER;
+        addAlwaysCandidate(r);
+      }
+    }
+
+    this.combinedPattern = combine(combinable);
+    if (combinedPattern == null) {
+      // Not worth it (or not possible); check them one at a time.
+      combinable.forEach(this::addAlwaysCandidate);
+      combinable.clear();
+    }
+    this.combinedRules = combinable.stream().mapToInt(Integer::intValue).toArray();
+    this.combinedGroupNames = new String[count];
+    for (int r : combinedRules) {
+      kinds[r] = Kind.COMBINED_REGEX;
+      combinedGroupNames[r] = combinedGroupName(r);
+      addAlwaysCandidate(r);
+    }
+  }
+
+  private static MatchResult newResult(TypeConfig type, String index) {
+    return ImmutableMatchResult.builder()
+        .typeConfig(type)
+        .index(index)
+        .build();
+  }
+
+  private void addToTrie(String prefix, int rule) {
+    TrieNode node = trie;
+    for (int i = 0; i < prefix.length(); i++) {
+      node = node.getOrAddChild(prefix.charAt(i));
+    }
+    node.rules = Arrays.copyOf(node.rules, node.rules.length + 1);
+    node.rules[node.rules.length - 1] = rule;
+  }
+
+  private void addAlwaysCandidate(int rule) {
+    alwaysCandidates[rule / Long.SIZE] |= 1L << rule;
+  }
+
+  /**
+   * Returns the literal text every match of the regular expression must start with.
+   * Conservative; may return less than the full literal start, or an empty string.
+   */
+  static String literalPrefix(String regex) {
+    if (regex.indexOf('|') >= 0) {
+      return ""; // top-level alternation would need more careful analysis
+    }
+    int i = 0;
+    while (i < regex.length() && "\\^$.|?*+()[]{}".indexOf(regex.charAt(i)) < 0) {
+      i++;
+    }
+    if (i < regex.length() && "?*+{".indexOf(regex.charAt(i)) >= 0) {
+      i--; // the quantifier makes the preceding character optional or repeatable
+    }
+    return regex.substring(0, Math.max(0, i));
+  }
+
+  /**
+   * Returns true if the pattern can be embedded in a larger one without changing its meaning.
+   * Numbered back-references would refer to the wrong group once the pattern is combined.
+   */
+  private static boolean isCombinable(Pattern pattern) {
+    return pattern.flags() == 0 && !NUMBERED_BACK_REFERENCE.matcher(pattern.pattern()).find();
+  }
+
+  private static String combinedGroupName(int rule) {
+    return "cbesRule" + rule;
+  }
+
+  @Nullable
+  private Pattern combine(List<Integer> rules) {
+    if (rules.size() < 2) {
+      return null;
+    }
+    final StringBuilder combined = new StringBuilder();
+    for (int r : rules) {
+      if (combined.length() > 0) {
+        combined.append('|');
+      }
+      combined.append("(?<").append(combinedGroupName(r)).append('>').append(patterns[r].pattern()).append(')');
+    }
+    try {
+      return Pattern.compile(combined.toString());
+    } catch (PatternSyntaxException e) {
+      return null; // for example, two patterns use the same group name
+    }
+  }
+
+  /**
+   * Returns the type of the first rule that matches the event's document ID, or null if none match.
+   */
+  @Nullable
+  public MatchResult match(Event event) {
+    return match(event.getKey(), event);
+  }
+
+  /**
+   * Visible for testing. Requires every type to use one of the known document ID matchers.
+   */
+  @Nullable
+  MatchResult match(String key) {
+    return match(key, null);
+  }
+
+  @Nullable
+  private MatchResult match(String key, @Nullable Event event) {
+    final Scratch s = scratch.get();
+
+    final long[] candidates = s.candidates;
+    System.arraycopy(alwaysCandidates, 0, candidates, 0, candidates.length);
+    TrieNode node = trie;
+    for (int i = 0; ; i++) {
+      for (int r : node.rules) {
+        candidates[r / Long.SIZE] |= 1L << r;
+      }
+      if (i == key.length() || (node = node.child(key.charAt(i))) == null) {
+        break;
+      }
+    }
+
+    int combinedWinner = -2; // not computed yet
+    for (int word = 0; word < candidates.length; word++) {
+      for (long bits = candidates[word]; bits != 0; bits &= bits - 1) {
+        final int r = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+        final MatchResult result;
+        switch (kinds[r]) {
+          case PREFIX:
+            result = results[r];
+            break;
+
+          case REGEX:
+            result = s.matcher(r, key).matches() ? results[r] : null;
+            break;
+
+          case COMBINED_REGEX:
+            if (combinedWinner == -2) {
+              combinedWinner = matchCombined(s, key);
+            }
+            result = r == combinedWinner ? results[r] : null;
+            break;
+
+          case INFERRED_REGEX: {
+            final Matcher m = s.matcher(r, key);
+            result = m.matches() ? inferredResult(r, m.group("index")) : null;
+            break;
+          }
+
+          default:
+            result = inferredResult(r, types[r].matcher().getIndexIfMatches(requireNonNull(event)));
+            break;
+        }
+
+        if (result != null) {
+          hits[r].inc();
+          return result;
+        }
+      }
+    }
+
+    misses.inc();
+    return null;
+  }
+
+  /**
+   * Returns the first combined rule that matches, or -1 if none match.
+   */
+  private int matchCombined(Scratch s, String key) {
+    final Matcher m = s.combinedMatcher(key);
+    if (m.matches()) {
+      for (int r : combinedRules) {
+        if (m.start(combinedGroupNames[r]) != -1) {
+          return r;
+        }
+      }
+    }
+    return -1;
+  }
+
+  @Nullable
+  private MatchResult inferredResult(int rule, @Nullable String index) {
+    if (index == null) {
+      return null; // doesn't count as a match
+    }
+    final ConcurrentMap<String, MatchResult> cache = inferredResults.get(rule);
+    if (cache == null) {
+      return newResult(types[rule], index);
+    }
+    final MatchResult cached = cache.get(index);
+    if (cached != null) {
+      return cached;
+    }
+    final MatchResult result = newResult(types[rule], index);
+    if (cache.size() < MAX_CACHED_INFERRED_RESULTS_PER_RULE) {
+      cache.putIfAbsent(index, result);
+    }
+    return result;
+  }
+}
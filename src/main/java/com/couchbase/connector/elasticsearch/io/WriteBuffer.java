@@ -0,0 +1,126 @@
+/*
+ * Copyright 2019 Couchbase, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.couchbase.connector.elasticsearch.io;
+
+import java.util.Arrays;
+
+/**
+ * Holds the requests waiting to be sent in the next bulk request, in the order they
+ * were added, with at most one request per document ID. Adding a request for a
+ * document that is already buffered replaces the old request in place.
+ * <p>
+ * Backed by arrays that are reused after {@link #clear()}, so steady-state
+ * buffering does not allocate memory.
+ * <p>
+ * NOT THREAD SAFE.
+ */
+class WriteBuffer<V> {
+  private static final int INITIAL_CAPACITY = 64; // must be power of 2
+
+  private String[] keys = new String[INITIAL_CAPACITY];
+  private Object[] values = new Object[INITIAL_CAPACITY];
+  private int size;
+
+  // Open-addressing hash table of (position + 1), or zero for an empty slot.
+  // Always at least twice as large as the number of entries.
+  private int[] index = new int[INITIAL_CAPACITY * 2];
+  private int mask = index.length - 1;
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * @return the request previously buffered for the same key, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  V put(String key, V value) {
+    int i = KeyMap.hash(key) & mask;
+    for (int p; (p = index[i]) != 0; i = (i + 1) & mask) {
+      if (keys[p - 1].equals(key)) {
+        final V previous = (V) values[p - 1];
+        values[p - 1] = value;
+        return previous;
+      }
+    }
+
+    if (size == keys.length) {
+      keys = Arrays.copyOf(keys, size * 2);
+      values = Arrays.copyOf(values, size * 2);
+    }
+    keys[size] = key;
+    values[size] = value;
+    index[i] = ++size;
+
+    if (size * 2 > index.length) {
+      rehash(index.length * 2);
+    }
+    return null;
+  }
+
+  boolean containsKey(String key) {
+    for (int i = KeyMap.hash(key) & mask, p; (p = index[i]) != 0; i = (i + 1) & mask) {
+      if (keys[p - 1].equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns the key at the given position, in insertion order.
+   */
+  String keyAt(int position) {
+    return keys[position];
+  }
+
+  /**
+   * Returns the value at the given position, in insertion order.
+   */
+  @SuppressWarnings("unchecked")
+  V valueAt(int position) {
+    return (V) values[position];
+  }
+
+  /**
+   * Removes all entries, but keeps the backing arrays for reuse.
+   */
+  void clear() {
+    if (size != 0) {
+      Arrays.fill(keys, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      Arrays.fill(index, 0);
+      size = 0;
+    }
+  }
+
+  private void rehash(int newCapacity) {
+    index = new int[newCapacity];
+    mask = newCapacity - 1;
+    for (int p = 0; p < size; p++) {
+      int i = KeyMap.hash(keys[p]) & mask;
+      while (index[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      index[i] = p + 1;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.couchbase.connector.dcp;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class CheckpointServiceTest {
+  private static final SnapshotMarker SNAPSHOT = new SnapshotMarker(0, 100);
+
+  private MemoryCheckpointDao dao;
+  private CheckpointService service;
+
+  @Before
+  public void setup() throws Exception {
+    dao = new MemoryCheckpointDao();
+    dao.save("bucket", Collections.emptyMap());
+    service = new CheckpointService("bucket", dao);
+    service.init(Collections.singletonList(0L));
+  }
+
+  private static Checkpoint checkpoint(long seqno) {
+    return new Checkpoint(1, seqno, SNAPSHOT);
+  }
+
+  private Checkpoint saved() throws Exception {
+    service.save();
+    return dao.load("bucket", singleton(0)).get(0);
+  }
+
+  @Test
+  public void firstEventAdvancesImmediately() throws Exception {
+    service.skip(0, 0, checkpoint(5), false);
+    assertEquals(checkpoint(5), saved());
+  }
+
+  @Test
+  public void waitsForPredecessor() throws Exception {
+    service.set(0, checkpoint(1));
+    service.skip(0, 2, checkpoint(3), false);
+    service.skip(0, 3, checkpoint(4), false);
+    assertEquals(checkpoint(1), saved());
+
+    service.set(0, checkpoint(2));
+    assertEquals(checkpoint(4), saved());
+  }
+
+  @Test
+  public void doesNotPassLaterEventInProgress() throws Exception {
+    service.skip(0, 1, checkpoint(2), false);
+    // event 3 sent to a writer
+    service.skip(0, 3, checkpoint(4), false);
+    assertNull(saved());
+
+    // Only the most recent run is remembered, so the checkpoint stops short of event 2.
+    service.set(0, checkpoint(1));
+    assertEquals(checkpoint(1), saved());
+
+    service.set(0, checkpoint(3));
+    assertEquals(checkpoint(4), saved());
+  }
+
+  @Test
+  public void metadataAloneDoesNotMarkDirty() throws Exception {
+    service.skip(0, 0, checkpoint(1), true);
+    service.skip(0, 1, checkpoint(2), true);
+    assertNull(saved());
+
+    service.skip(0, 2, checkpoint(3), false);
+    assertEquals(checkpoint(3), saved());
+  }
+}
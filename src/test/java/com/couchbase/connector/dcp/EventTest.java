@@ -0,0 +1,107 @@
+package com.couchbase.connector.dcp;
+
+import com.couchbase.client.dcp.transport.netty.ChannelFlowController;
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EventTest {
+  private static final SnapshotMarker SNAPSHOT = new SnapshotMarker(0, 100);
+
+  private static class CountingFlowController implements ChannelFlowController {
+    private int ackedBytes;
+
+    @Override
+    public void ack(ByteBuf message) {
+      ack(message.readableBytes());
+    }
+
+    @Override
+    public void ack(int numBytes) {
+      ackedBytes += numBytes;
+    }
+  }
+
+  private static ByteBuf mutation(String key, String content) {
+    final byte[] keyBytes = key.getBytes(UTF_8);
+    final byte[] contentBytes = content.getBytes(UTF_8);
+    final int extrasLength = 31;
+    final int bodyLength = extrasLength + keyBytes.length + contentBytes.length;
+
+    final ByteBuf message = Unpooled.buffer();
+    message.writeByte(0x80); // magic
+    message.writeByte(0x57); // mutation
+    message.writeShort(keyBytes.length);
+    message.writeByte(extrasLength);
+    message.writeByte(Event.DATATYPE_JSON);
+    message.writeShort(7); // vbucket
+    message.writeInt(bodyLength);
+    message.writeZero(12); // opaque, cas
+    message.writeLong(42); // seqno
+    message.writeZero(extrasLength - 8);
+    message.writeBytes(keyBytes);
+    message.writeBytes(contentBytes);
+    return message;
+  }
+
+  @Test
+  public void readsMessage() {
+    final CountingFlowController flowController = new CountingFlowController();
+    final ByteBuf message = mutation("user::ü", "{}");
+    final Event event = new Event(message, flowController, 1, SNAPSHOT);
+
+    assertEquals(7, event.getVbucket());
+    assertEquals(42, event.getSeqno());
+    assertTrue(event.isMutation());
+    assertTrue(event.isJson());
+    assertEquals("user::ü", event.getKey());
+    assertArrayEquals("{}".getBytes(UTF_8), event.getContent());
+
+    event.release();
+    assertEquals(0, message.refCnt());
+    assertEquals(message.writerIndex(), flowController.ackedBytes);
+    assertEquals("user::ü", event.getKey());
+  }
+
+  @Test
+  public void keyOffsetIsRelativeToReaderIndex() {
+    final ByteBuf message = Unpooled.buffer();
+    message.writeZero(3);
+    message.writeBytes(mutation("foo", "{}"));
+    message.readerIndex(3);
+
+    assertEquals("foo", message.toString(DcpHelper.keyOffset(message), DcpHelper.keyLength(message), UTF_8));
+  }
+
+  @Test
+  public void compactEventAcksAndReleasesMessageImmediately() {
+    final CountingFlowController flowController = new CountingFlowController();
+    final ByteBuf message = mutation("foo", "{\"bar\":1}");
+    final int messageLength = message.writerIndex();
+    final Event event = new Event(message, flowController, 1, SNAPSHOT, true);
+
+    assertEquals(0, message.refCnt());
+    assertEquals(messageLength, flowController.ackedBytes);
+    assertTrue(event.isCompact());
+
+    final AtomicInteger released = new AtomicInteger();
+    event.setReleaseListener(released::incrementAndGet);
+
+    assertEquals(42, event.getSeqno());
+    assertEquals("foo", event.getKey());
+    assertArrayEquals("{\"bar\":1}".getBytes(UTF_8), event.getContent());
+    assertEquals(messageLength, event.getByteBuf().capacity());
+
+    event.release();
+    assertEquals(0, event.getByteBuf().refCnt());
+    assertEquals(messageLength, flowController.ackedBytes);
+    assertEquals(1, released.get());
+  }
+}
@@ -0,0 +1,176 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.connector.config.es.ImmutableHedgingConfig;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BulkRequestHedgerTest {
+  private BulkRequestHedger hedger;
+
+  @After
+  public void tearDown() {
+    if (hedger != null) {
+      hedger.close();
+    }
+  }
+
+  /**
+   * A fake sender whose requests complete when the test says so.
+   */
+  private static class Sender implements Function<ByteBuf, CompletableFuture<BulkResponse>> {
+    private final CompletableFuture<BulkResponse> response = new CompletableFuture<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Override
+    public CompletableFuture<BulkResponse> apply(ByteBuf body) {
+      calls.incrementAndGet();
+      return response.whenComplete((r, t) -> body.release());
+    }
+  }
+
+  private static BulkResponse newResponse() {
+    return new BulkResponse(new BulkItemResponse[0], 1);
+  }
+
+  private static ByteBuf newBody() {
+    return Unpooled.copiedBuffer("{}\n", UTF_8);
+  }
+
+  private void newHedger(int budgetPercent) {
+    hedger = new BulkRequestHedger(ImmutableHedgingConfig.builder()
+        .enabled(true)
+        .percentile(90)
+        .minDelay(TimeValue.timeValueMillis(10))
+        .budgetPercent(budgetPercent)
+        .build());
+  }
+
+  private void recordLatencies(int count, long millis) {
+    for (int i = 0; i < count; i++) {
+      hedger.recordLatency(MILLISECONDS.toNanos(millis));
+    }
+  }
+
+  @Test
+  public void noHedgeWithoutHistory() throws Exception {
+    newHedger(100);
+    final Sender primary = new Sender();
+    final Sender backup = new Sender();
+    final ByteBuf body = newBody();
+
+    final BulkRequestHedger.HedgedResponse hedged = hedger.send(body, primary, backup);
+    assertEquals(-1, hedger.currentDelayMillis());
+    MILLISECONDS.sleep(100);
+    assertEquals(0, backup.calls.get());
+    assertFalse(hedged.settled.isDone());
+
+    final BulkResponse response = newResponse();
+    primary.response.complete(response);
+    assertSame(response, hedged.response.get());
+    assertTrue(hedged.settled.isDone());
+    assertEquals(0, body.refCnt());
+  }
+
+  @Test
+  public void delayIsPercentileOfRecentLatencies() throws Exception {
+    newHedger(100);
+    recordLatencies(900, 20);
+    recordLatencies(100, 500);
+    assertEquals(20, hedger.currentDelayMillis());
+
+    // never less than the minimum delay
+    recordLatencies(1000, 1);
+    assertEquals(10, hedger.currentDelayMillis());
+  }
+
+  @Test
+  public void hedgeWins() throws Exception {
+    newHedger(100);
+    recordLatencies(100, 1);
+
+    final Sender primary = new Sender();
+    final Sender backup = new Sender();
+    final ByteBuf body = newBody();
+    final BulkRequestHedger.HedgedResponse hedged = hedger.send(body, primary, backup);
+
+    final BulkResponse hedgeResponse = newResponse();
+    backup.response.complete(hedgeResponse);
+    assertSame(hedgeResponse, hedged.response.get(5, SECONDS));
+    assertEquals(1, backup.calls.get());
+
+    // The original request is still in flight.
+    assertFalse(hedged.settled.isDone());
+    assertEquals(1, body.refCnt());
+
+    primary.response.complete(newResponse());
+    assertTrue(hedged.settled.isDone());
+    assertSame(hedgeResponse, hedged.response.get());
+    assertEquals(0, body.refCnt());
+  }
+
+  @Test
+  public void failsOnlyIfBothCopiesFail() throws Exception {
+    newHedger(100);
+    recordLatencies(100, 1);
+
+    final Sender primary = new Sender();
+    final Sender backup = new Sender();
+    final BulkRequestHedger.HedgedResponse hedged = hedger.send(newBody(), primary, backup);
+
+    while (backup.calls.get() == 0) {
+      MILLISECONDS.sleep(1);
+    }
+    primary.response.completeExceptionally(new IOException("primary failed"));
+    assertFalse(hedged.response.isDone());
+
+    backup.response.completeExceptionally(new IOException("backup failed"));
+    try {
+      hedged.response.get();
+      fail("expected failure");
+    } catch (ExecutionException e) {
+      assertEquals("primary failed", e.getCause().getMessage());
+    }
+    assertTrue(hedged.settled.isDone());
+  }
+
+  @Test
+  public void budgetLimitsHedges() throws Exception {
+    newHedger(1);
+    recordLatencies(100, 1);
+
+    final Sender primary = new Sender();
+    final Sender backup = new Sender();
+    final ByteBuf body = newBody();
+    final BulkRequestHedger.HedgedResponse hedged = hedger.send(body, primary, backup);
+
+    // Only one percent of a hedge has been earned.
+    MILLISECONDS.sleep(100);
+    assertEquals(0, backup.calls.get());
+    assertEquals(1, body.refCnt());
+    assertFalse(hedged.settled.isDone());
+
+    primary.response.complete(newResponse());
+    assertTrue(hedged.settled.isDone());
+    assertEquals(0, body.refCnt());
+  }
+}
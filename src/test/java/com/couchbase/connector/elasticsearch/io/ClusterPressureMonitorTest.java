@@ -0,0 +1,121 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.ImmutableClusterPressureConfig;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClusterPressureMonitorTest {
+  private HttpServer server;
+  private RestClient client;
+  private ClusterPressureMonitor monitor;
+
+  // The node stats served by the stub Elasticsearch server.
+  private volatile String nodeStats;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/_nodes/stats", exchange -> {
+      final byte[] body = nodeStats.getBytes(UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.start();
+
+    client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build();
+    monitor = new ClusterPressureMonitor(client, ImmutableClusterPressureConfig.builder()
+        .enabled(true)
+        .pollInterval(TimeValue.timeValueSeconds(5))
+        .maxWriteQueue(100)
+        .maxHeapPercent(90)
+        .minRate(10)
+        .build());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    monitor.close();
+    client.close();
+    server.stop(0);
+  }
+
+  @Test
+  public void longWriteQueueTriggersThrottling() throws Exception {
+    setNodeStats(5, 0, 50);
+    monitor.poll();
+    assertEquals(-1, monitor.currentRate());
+
+    setNodeStats(500, 0, 50);
+    monitor.poll();
+    assertEquals(10, monitor.currentRate()); // no writes yet, so drop straight to the minimum
+  }
+
+  @Test
+  public void newRejectionsTriggerThrottling() throws Exception {
+    setNodeStats(0, 7, 50);
+    monitor.poll(); // first sighting of the node; rejections may be old
+    assertEquals(-1, monitor.currentRate());
+
+    monitor.poll(); // no new rejections
+    assertEquals(-1, monitor.currentRate());
+
+    setNodeStats(0, 8, 50);
+    monitor.poll();
+    assertTrue(monitor.currentRate() > 0);
+  }
+
+  @Test
+  public void fullHeapTriggersThrottling() throws Exception {
+    setNodeStats(0, 0, 95);
+    monitor.poll();
+    assertTrue(monitor.currentRate() > 0);
+  }
+
+  @Test
+  public void unthrottlesWhenPressureSubsides() throws Exception {
+    setNodeStats(500, 0, 50);
+    monitor.poll();
+    assertEquals(10, monitor.currentRate());
+
+    // Still using the whole limit, so it should grow instead of going away.
+    setNodeStats(0, 0, 50);
+    monitor.acquire(5);
+    monitor.acquire(5);
+    Thread.sleep(500);
+    monitor.poll();
+    assertTrue(monitor.currentRate() > 10);
+
+    // Not using the limit, so it should go away.
+    Thread.sleep(100);
+    monitor.poll();
+    assertEquals(-1, monitor.currentRate());
+  }
+
+  @Test
+  public void legacyBulkThreadPool() throws Exception {
+    nodeStats = "{\"nodes\":{\"node1\":{\"thread_pool\":{\"bulk\":{\"queue\":500,\"rejected\":0}}}}}";
+    monitor.poll();
+    assertEquals(10, monitor.currentRate());
+  }
+
+  private void setNodeStats(long writeQueue, long rejected, int heapUsedPercent) {
+    nodeStats = "{\"nodes\":{\"node1\":{" +
+        "\"jvm\":{\"mem\":{\"heap_used_percent\":" + heapUsedPercent + "}}," +
+        "\"thread_pool\":{\"write\":{\"queue\":" + writeQueue + ",\"rejected\":" + rejected + "}}}}}";
+  }
+}
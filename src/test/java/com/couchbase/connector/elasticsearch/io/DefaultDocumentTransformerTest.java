@@ -1,12 +1,22 @@
 package com.couchbase.connector.elasticsearch.io;
 
+import com.couchbase.connector.config.es.ImmutableDocStructureConfig;
+import com.fasterxml.jackson.core.JsonPointer;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.List;
 
 import static java.math.BigInteger.ONE;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class DefaultDocumentTransformerTest {
   private static final BigInteger MAX_UNSIGNED_LONG = new BigInteger("2").pow(64).subtract(ONE);
@@ -47,6 +57,146 @@ public class DefaultDocumentTransformerTest {
     assertCounter(null, "1a");
   }
 
+  private static DefaultDocumentTransformer transformer(String metadataFieldName, boolean topLevel, boolean wrapCounters) {
+    return new DefaultDocumentTransformer(ImmutableDocStructureConfig.builder()
+        .metadataFieldName(metadataFieldName)
+        .documentContentAtTopLevel(topLevel)
+        .wrapCounters(wrapCounters)
+        .build());
+  }
+
+  private static String transform(DefaultDocumentTransformer transformer, String json) {
+    final byte[] result = transformer.transform(json.getBytes(UTF_8), g -> g.writeString("m"), "doc");
+    return result == null ? null : new String(result, UTF_8);
+  }
+
+  @Test
+  public void transformWrapsContent() {
+    final DefaultDocumentTransformer t = transformer("meta", false, false);
+    assertEquals("{\"doc\":{\"a\":1,\"b\":[true,{\"c\":null}]},\"meta\":\"m\"}",
+        transform(t, "{\"a\":1, \"b\":[true, {\"c\":null}]}"));
+    assertEquals("{\"doc\":{\"meta\":1},\"meta\":\"m\"}", transform(t, "{\"meta\":1}"));
+  }
+
+  @Test
+  public void transformInjectsMetadataAtTopLevel() {
+    final DefaultDocumentTransformer t = transformer("meta", true, false);
+    assertEquals("{\"a\":{\"meta\":2},\"meta\":\"m\"}", transform(t, "{\"a\":{\"meta\":2}}"));
+    assertEquals("{\"meta\":\"m\"}", transform(t, "{}"));
+  }
+
+  @Test
+  public void transformDetectsMetadataConflict() {
+    assertEquals("{\"meta\":1,\"a\":2}", transform(transformer("meta", true, false), "{\"meta\":1,\"a\":2}"));
+    assertEquals("{\"doc\":{\"a\":1}}", transform(transformer("doc", false, false), "{\"a\":1}"));
+  }
+
+  @Test
+  public void transformWithoutMetadata() {
+    assertEquals("{\"doc\":{\"a\":\"x\"}}", transform(transformer(null, false, false), "{\"a\":\"x\"}"));
+  }
+
+  @Test
+  public void transformCounters() {
+    assertEquals("{\"doc\":{\"value\":7},\"meta\":\"m\"}", transform(transformer("meta", false, true), "7"));
+    assertEquals("{\"value\":-1}", transform(transformer(null, true, true), MAX_UNSIGNED_LONG.toString()));
+    assertNull(transform(transformer("meta", false, false), "7"));
+    assertNull(transform(transformer("meta", false, true), "-1"));
+  }
+
+  @Test
+  public void transformRejectsNonObjects() {
+    final DefaultDocumentTransformer t = transformer("meta", false, true);
+    assertNull(transform(t, "[1,2]"));
+    assertNull(transform(t, "\"abc\""));
+    assertNull(transform(t, "{\"a\":"));
+    assertNull(transform(t, "{\"a\":1"));
+    assertNull(transform(t, ""));
+  }
+
+  @Test
+  public void transformCapturesPointerValues() {
+    final PointerValues pointers = new PointerValues(
+        JsonPointer.compile("/a/b"),
+        JsonPointer.compile("/list/1"),
+        JsonPointer.compile("/obj"),
+        JsonPointer.compile("/nil"),
+        JsonPointer.compile("/missing"),
+        JsonPointer.compile("/a/0"));
+
+    final String json = "{\"a\":{\"0\":\"zero\",\"b\":7},\"list\":[false,true],\"obj\":{},\"nil\":null,\"b\":\"x\",\"a\":{\"b\":8}}";
+    assertEquals("{\"doc\":" + json + "}",
+        new String(transformer(null, false, false).transform(json.getBytes(UTF_8), g -> g.writeString("m"), "doc", pointers, FieldFilter.NONE), UTF_8));
+
+    assertPointer(pointers, 0, "7"); // first match wins
+    assertPointer(pointers, 1, "true");
+    assertPointer(pointers, 2, null);
+    assertPointer(pointers, 3, null);
+    assertFalse(pointers.found(4));
+    assertPointer(pointers, 5, "zero");
+  }
+
+  @Test
+  public void pointerIndexesMatchArrayElements() {
+    final PointerValues pointers = new PointerValues(JsonPointer.compile("/0/x"), JsonPointer.compile("/y/0/1"));
+    transformer(null, false, false).transform("{\"0\":[{\"x\":1}],\"y\":[[1,{}],2]}".getBytes(UTF_8), g -> {
+    }, "doc", pointers, FieldFilter.NONE);
+    assertFalse(pointers.found(0));
+    assertPointer(pointers, 1, null);
+  }
+
+  private static String filter(String json, List<String> include, List<String> exclude) {
+    final FieldFilter filter = new FieldFilter(
+        include.stream().map(JsonPointer::compile).collect(toList()),
+        exclude.stream().map(JsonPointer::compile).collect(toList()),
+        null);
+    final byte[] result = transformer("meta", true, false)
+        .transform(json.getBytes(UTF_8), g -> g.writeString("m"), "doc", PointerValues.NONE, filter);
+    return result == null ? null : new String(result, UTF_8);
+  }
+
+  @Test
+  public void transformFiltersFields() {
+    final String json = "{\"a\":1,\"blob\":\"xxx\",\"nested\":{\"keep\":true,\"drop\":[1,2],\"deep\":{\"x\":1}},\"list\":[{\"id\":1,\"h\":2},{\"id\":3}]}";
+
+    assertEquals("{\"a\":1,\"nested\":{\"keep\":true,\"deep\":{\"x\":1}},\"list\":[{\"id\":1,\"h\":2},{\"id\":3}],\"meta\":\"m\"}",
+        filter(json, emptyList(), asList("/blob", "/nested/drop")));
+    assertEquals("{\"a\":1,\"nested\":{\"deep\":{\"x\":1}},\"meta\":\"m\"}",
+        filter(json, asList("/a", "/nested/deep"), emptyList()));
+    assertEquals("{\"nested\":{\"keep\":true,\"deep\":{\"x\":1}},\"meta\":\"m\"}",
+        filter(json, singletonList("/nested"), singletonList("/nested/drop")));
+    assertEquals("{\"list\":[{\"id\":1},{\"id\":3}],\"meta\":\"m\"}",
+        filter(json, singletonList("/list"), singletonList("/list/0/h")));
+  }
+
+  @Test
+  public void transformOmitsContainersWithoutIncludedFields() {
+    final String json = "{\"a\":{\"b\":1},\"list\":[{\"id\":1},{\"id\":3}]}";
+    assertEquals("{\"list\":[{\"id\":3}],\"meta\":\"m\"}",
+        filter(json, asList("/a/missing", "/list/1", "/list/2/id"), emptyList()));
+  }
+
+  @Test
+  public void transformDetectsMetadataConflictOnlyForKeptFields() {
+    assertEquals("{\"a\":1,\"meta\":\"m\"}", filter("{\"a\":1,\"meta\":2}", emptyList(), singletonList("/meta")));
+    assertEquals("{\"meta\":{\"x\":2}}", filter("{\"a\":1,\"meta\":{\"x\":2}}", singletonList("/meta/x"), emptyList()));
+  }
+
+  @Test
+  public void transformCapturesPointerValuesInsideDroppedFields() {
+    final PointerValues pointers = new PointerValues(JsonPointer.compile("/blob/id"));
+    final FieldFilter filter = new FieldFilter(emptyList(), singletonList(JsonPointer.compile("/blob")), null);
+    assertEquals("{\"doc\":{\"a\":1}}", new String(transformer(null, false, false)
+        .transform("{\"a\":1,\"blob\":{\"id\":\"x\"}}".getBytes(UTF_8), g -> {
+        }, "doc", pointers, filter), UTF_8));
+    assertPointer(pointers, 0, "x");
+  }
+
+  private static void assertPointer(PointerValues pointers, int i, String expectedValue) {
+    assertTrue(pointers.found(i));
+    assertEquals(expectedValue, pointers.value(i));
+  }
+
   private static void assertCounter(Long expected, String json) {
     assertEquals(expected, DefaultDocumentTransformer.getCounterValue(json.getBytes(UTF_8)));
   }
@@ -0,0 +1,251 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JsonValidatorTest {
+  private static final String[] SEEDS = {
+      "{}",
+      " {\"a\":1}\n",
+      "{\"a\":[1,-2.5e+10,0,-0,0.25E-3,true,false,null,\"x\"],\"b\":{\"c\":{}},\"d\":[]}",
+      "{\"esc\":\"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\uD83D\\ude00\",\"\\u0041\":\"\"}",
+      "{\"caf\u00e9\":\"\u20ac \ud83d\ude00 \u00ff\",\"\u4e2d\":[\"\u6587\"]}",
+      "{\r\n\t\"nested\" : [ [ [ { \"deep\" : [ 1 , 2 ] } ] ] ] }",
+      "\ufeff{\"bom\":true}",
+  };
+
+  // Bytes most likely to turn a valid document into an interesting invalid one, or vice versa.
+  private static final byte[] INTERESTING = (" \t\r\n{}[]:,\"\\/-+.eE0123456789abfnrtuxl").getBytes(UTF_8);
+  private static final byte[] INTERESTING_HIGH = {0, 1, 0x1f, 0x7f, (byte) 0x80, (byte) 0xbf, (byte) 0xc0,
+      (byte) 0xc3, (byte) 0xe2, (byte) 0xed, (byte) 0xef, (byte) 0xf0, (byte) 0xf4, (byte) 0xf8, (byte) 0xfe, (byte) 0xff};
+
+  @Test
+  public void acceptsSingleObjects() {
+    for (String seed : SEEDS) {
+      assertTrue(seed, JsonValidator.isSingleObject(seed.getBytes(UTF_8)));
+    }
+  }
+
+  @Test
+  public void rejectsEverythingElse() {
+    for (String json : Arrays.asList("", " ", "[]", "1", "\"x\"", "null", "{", "}", "{}{}", "{} x", "{}]",
+        "{\"a\"}", "{\"a\":}", "{\"a\":1,}", "{,\"a\":1}", "{\"a\":[1,]}", "{a:1}", "{'a':1}", "{\"a\":01}",
+        "{\"a\":-}", "{\"a\":1.}", "{\"a\":.5}", "{\"a\":+1}", "{\"a\":1e}", "{\"a\":NaN}", "{\"a\":tru}",
+        "{\"a\":truex}", "{\"a\":\"\\x\"}", "{\"a\":\"\\u12g4\"}", "{\"a\":\"\t\"}", "{\"a\":[}", "{\"a\":{]}",
+        "{\"a\":1 /* comment */}", "{\"a\":\"unterminated}")) {
+      assertFalse(json, JsonValidator.isSingleObject(json.getBytes(UTF_8)));
+    }
+  }
+
+  @Test
+  public void validatesMalformedUtf8LikeJackson() {
+    assertAgreesWithJackson(new byte[]{'{', '"', (byte) 0xc3, '"', ':', '1', '}'});
+    assertAgreesWithJackson(new byte[]{'{', '"', 'a', '"', ':', '"', (byte) 0xe2, (byte) 0x82, '"', '}'});
+    assertAgreesWithJackson(new byte[]{'{', '"', 'a', '"', ':', '"', (byte) 0xbf, '"', '}'});
+    assertAgreesWithJackson(new byte[]{'{', '"', 'a', '"', ':', '"', (byte) 0xc0, (byte) 0x80, '"', '}'});
+    assertAgreesWithJackson(new byte[]{'{', '}', (byte) 0xc2, (byte) 0xa0});
+  }
+
+  @Test
+  public void handsOtherEncodingsToJackson() {
+    assertAgreesWithJackson("{\"a\":1}".getBytes(java.nio.charset.StandardCharsets.UTF_16BE));
+    assertAgreesWithJackson("{\"a\":1}".getBytes(java.nio.charset.StandardCharsets.UTF_16LE));
+    assertAgreesWithJackson("{\"a\":1}".getBytes(java.nio.charset.StandardCharsets.UTF_16));
+  }
+
+  @Test
+  public void handlesDeepNesting() {
+    for (int depth : new int[]{63, 64, 65, 200}) {
+      final StringBuilder sb = new StringBuilder("{\"a\":");
+      for (int i = 0; i < depth; i++) {
+        sb.append(i % 2 == 0 ? "[" : "{\"b\":");
+      }
+      sb.append("1");
+      for (int i = depth - 1; i >= 0; i--) {
+        sb.append(i % 2 == 0 ? "]" : "}");
+      }
+      final String valid = sb.append("}").toString();
+      assertTrue(JsonValidator.isSingleObject(valid.getBytes(UTF_8)));
+      assertFalse(JsonValidator.isSingleObject(valid.substring(0, valid.length() - 2).getBytes(UTF_8)));
+    }
+  }
+
+  @Test
+  public void validatesByteBufs() {
+    final byte[] json = "xx{\"a\":[1,2]}yy".getBytes(UTF_8);
+
+    final ByteBuf heap = Unpooled.wrappedBuffer(json, 2, json.length - 4);
+    assertTrue(JsonValidator.isSingleObject(heap));
+    assertEquals(2, heap.readerIndex());
+
+    final ByteBuf direct = Unpooled.directBuffer(json.length).writeBytes(json);
+    direct.readerIndex(2).writerIndex(json.length - 2);
+    assertTrue(JsonValidator.isSingleObject(direct));
+    direct.writerIndex(json.length - 3);
+    assertFalse(JsonValidator.isSingleObject(direct));
+    direct.release();
+  }
+
+  @Test
+  public void agreesWithJacksonOnMutatedDocuments() {
+    final Random random = new Random(1234);
+    for (int n = 0; n < 200_000; n++) {
+      final byte[] seed = SEEDS[random.nextInt(SEEDS.length)].getBytes(UTF_8);
+      assertAgreesWithJackson(mutate(random, seed, 1 + random.nextInt(3)));
+    }
+  }
+
+  @Test
+  public void agreesWithJacksonOnRandomDocuments() {
+    final Random random = new Random(5678);
+    for (int n = 0; n < 20_000; n++) {
+      final StringBuilder sb = new StringBuilder();
+      randomObject(random, sb, 0);
+      final byte[] json = sb.toString().getBytes(UTF_8);
+      assertTrue(sb.toString(), JsonValidator.isSingleObject(json));
+      assertAgreesWithJackson(json);
+      assertAgreesWithJackson(mutate(random, json, 1));
+    }
+  }
+
+  private static byte[] mutate(Random random, byte[] bytes, int mutations) {
+    for (int m = 0; m < mutations; m++) {
+      final int pos = bytes.length == 0 ? 0 : random.nextInt(bytes.length);
+      final byte b = random.nextInt(4) == 0
+          ? INTERESTING_HIGH[random.nextInt(INTERESTING_HIGH.length)]
+          : INTERESTING[random.nextInt(INTERESTING.length)];
+
+      switch (random.nextInt(4)) {
+        case 0: // replace
+          if (bytes.length > 0) {
+            bytes = bytes.clone();
+            bytes[pos] = b;
+          }
+          break;
+        case 1: { // insert
+          final byte[] result = new byte[bytes.length + 1];
+          System.arraycopy(bytes, 0, result, 0, pos);
+          result[pos] = b;
+          System.arraycopy(bytes, pos, result, pos + 1, bytes.length - pos);
+          bytes = result;
+          break;
+        }
+        case 2: // delete
+          if (bytes.length > 0) {
+            final byte[] result = new byte[bytes.length - 1];
+            System.arraycopy(bytes, 0, result, 0, pos);
+            System.arraycopy(bytes, pos + 1, result, pos, bytes.length - pos - 1);
+            bytes = result;
+          }
+          break;
+        default: // truncate
+          bytes = Arrays.copyOf(bytes, pos);
+          break;
+      }
+    }
+    return bytes;
+  }
+
+  private static void randomObject(Random random, StringBuilder sb, int depth) {
+    sb.append('{');
+    final int fields = random.nextInt(depth > 3 ? 2 : 5);
+    for (int i = 0; i < fields; i++) {
+      if (i > 0) {
+        sb.append(',');
+      }
+      randomString(random, sb);
+      sb.append(random.nextBoolean() ? ":" : " : ");
+      randomValue(random, sb, depth + 1);
+    }
+    sb.append('}');
+  }
+
+  private static void randomValue(Random random, StringBuilder sb, int depth) {
+    switch (random.nextInt(depth > 4 ? 5 : 7)) {
+      case 0:
+        randomString(random, sb);
+        break;
+      case 1:
+        sb.append(random.nextInt(3) == 0 ? random.nextLong() : random.nextInt(100));
+        break;
+      case 2:
+        sb.append(random.nextDouble() * 1e6);
+        break;
+      case 3:
+        sb.append(random.nextBoolean() ? "true" : "false");
+        break;
+      case 4:
+        sb.append("null");
+        break;
+      case 5:
+        randomObject(random, sb, depth);
+        break;
+      default:
+        sb.append('[');
+        final int elements = random.nextInt(4);
+        for (int i = 0; i < elements; i++) {
+          if (i > 0) {
+            sb.append(random.nextBoolean() ? "," : " ,\n");
+          }
+          randomValue(random, sb, depth + 1);
+        }
+        sb.append(']');
+        break;
+    }
+  }
+
+  private static void randomString(Random random, StringBuilder sb) {
+    final String[] pieces = {"a", "xyz", " ", "\u00e9", "\u20ac", "\ud83d\ude00", "\\n", "\\\"", "\\\\", "\\u0000", "\\uD834\\uDD1E", "/"};
+    sb.append('"');
+    final int length = random.nextInt(5);
+    for (int i = 0; i < length; i++) {
+      sb.append(pieces[random.nextInt(pieces.length)]);
+    }
+    sb.append('"');
+  }
+
+  private static void assertAgreesWithJackson(byte[] json) {
+    assertEquals(Arrays.toString(json), jacksonAccepts(json), JsonValidator.isSingleObject(json));
+  }
+
+  /**
+   * The reference implementation: tokenize the whole document with Jackson.
+   * Uses a new factory each time, since a factory's shared field name table can make the
+   * outcome for a malformed name depend on which names the factory has seen before.
+   */
+  private static boolean jacksonAccepts(byte[] json) {
+    try (JsonParser parser = new JsonFactory().createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        return false;
+      }
+      int depth = 1;
+      while (depth > 0) {
+        final JsonToken token = parser.nextToken();
+        if (token == null) {
+          return false;
+        }
+        if (token.isStructStart()) {
+          depth++;
+        } else if (token.isStructEnd()) {
+          depth--;
+        }
+      }
+      return parser.nextToken() == null;
+
+    } catch (Exception e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyMapTest {
+  @Test
+  public void removeOnlyIfValueMatches() {
+    final KeyMap<Object> map = new KeyMap<>();
+    final Object a = new Object();
+    final Object b = new Object();
+    map.put("x", a);
+    assertFalse(map.remove("x", b));
+    assertTrue(map.remove("x", a));
+    assertNull(map.get("x"));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void behavesLikeHashMap() {
+    // Small key space, so there are lots of collisions and removals from the middle of probe sequences.
+    final Random random = new Random(0);
+    final KeyMap<Integer> map = new KeyMap<>();
+    final Map<String, Integer> expected = new HashMap<>();
+
+    for (int i = 0; i < 200_000; i++) {
+      final String key = "key" + random.nextInt(500);
+      switch (random.nextInt(4)) {
+        case 0:
+        case 1:
+          assertEquals(expected.put(key, i), map.put(key, i));
+          break;
+        case 2:
+          assertEquals(expected.remove(key), map.remove(key));
+          break;
+        default:
+          if (random.nextInt(1000) == 0) {
+            expected.clear();
+            map.clear();
+          }
+      }
+      assertEquals(expected.size(), map.size());
+    }
+
+    for (int i = 0; i < 500; i++) {
+      final String key = "key" + i;
+      assertEquals(expected.get(key), map.get(key));
+      assertEquals(expected.containsKey(key), map.containsKey(key));
+    }
+  }
+}
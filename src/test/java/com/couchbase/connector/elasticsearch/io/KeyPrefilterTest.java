@@ -0,0 +1,122 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.connector.config.es.ImmutableTypeConfig;
+import com.couchbase.connector.config.es.TypeConfig;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeyPrefilterTest {
+  private static final int MUTATION = 0x57;
+  private static final int DELETION = 0x58;
+
+  private static ByteBuf message(int opcode, String key) {
+    final byte[] keyBytes = key.getBytes(UTF_8);
+    final int extrasLength = 31;
+    final byte[] message = new byte[24 + extrasLength + keyBytes.length + 2];
+    message[0] = (byte) 0x80;
+    message[1] = (byte) opcode;
+    message[2] = (byte) (keyBytes.length >>> 8);
+    message[3] = (byte) keyBytes.length;
+    message[4] = (byte) extrasLength;
+    System.arraycopy(keyBytes, 0, message, 24 + extrasLength, keyBytes.length);
+    message[message.length - 2] = '{';
+    message[message.length - 1] = '}';
+    return Unpooled.wrappedBuffer(message);
+  }
+
+  private static TypeConfig type(TypeConfig.IndexMatcher matcher, boolean ignore, boolean ignoreDeletes) {
+    return ImmutableTypeConfig.builder()
+        .index("index")
+        .type("doc")
+        .ignore(ignore)
+        .ignoreDeletes(ignoreDeletes)
+        .matcher(matcher)
+        .build();
+  }
+
+  private static final KeyPrefilter filter = new KeyPrefilter(Arrays.asList(
+      type(new TypeConfig.IdPrefixMatcher("index", "_sync:"), true, false),
+      type(new TypeConfig.IdRegexMatcher("index", "user::[0-9]+"), true, false),
+      type(new TypeConfig.IdPrefixMatcher("index", "user"), false, false),
+      type(new TypeConfig.IdPrefixMatcher("index", "order::"), false, true),
+      type(new TypeConfig.IdPrefixMatcher("index", "ü:"), true, false)));
+
+  @Test
+  public void skipsIgnoredPrefix() {
+    assertTrue(filter.test(message(MUTATION, "_sync:user:alice")));
+    assertTrue(filter.test(message(DELETION, "_sync:")));
+    assertTrue(filter.test(message(MUTATION, "ü:1")));
+    assertFalse(filter.test(message(MUTATION, "userX")));
+  }
+
+  @Test
+  public void skipsUnmatched() {
+    assertTrue(filter.test(message(MUTATION, "_sync")));
+    assertTrue(filter.test(message(MUTATION, "")));
+    assertTrue(filter.test(message(MUTATION, "u:1")));
+  }
+
+  @Test
+  public void skipsIgnoredDeletions() {
+    assertFalse(filter.test(message(MUTATION, "order::1")));
+    assertTrue(filter.test(message(DELETION, "order::1")));
+  }
+
+  @Test
+  public void keepsEventsDecidedByRegex() {
+    assertFalse(filter.test(message(MUTATION, "user::1")));
+    assertFalse(filter.test(message(MUTATION, "user::x")));
+
+    final KeyPrefilter regexFirst = new KeyPrefilter(Arrays.asList(
+        type(new TypeConfig.IdRegexMatcher("index", "[a-z]+::.*"), false, false),
+        type(new TypeConfig.IdPrefixMatcher("index", "_sync:"), true, false)));
+    assertFalse(regexFirst.test(message(MUTATION, "_sync:foo")));
+  }
+
+  @Test
+  public void agreesWithTypeMatcher() {
+    final Random random = new Random(0);
+    final List<String> literals = Arrays.asList("", "a", "ab", "b", "ü", "üa");
+    for (int round = 0; round < 200; round++) {
+      final List<TypeConfig> types = new ArrayList<>();
+      for (int i = random.nextInt(8); i >= 0; i--) {
+        final String literal = literals.get(random.nextInt(literals.size()));
+        final TypeConfig.IndexMatcher matcher = random.nextBoolean()
+            ? new TypeConfig.IdPrefixMatcher("index", literal)
+            : new TypeConfig.IdRegexMatcher("index", literal + "[ab]*");
+        types.add(type(matcher, random.nextBoolean(), random.nextBoolean()));
+      }
+
+      final boolean prefixOnly = types.stream().allMatch(t -> t.matcher() instanceof TypeConfig.IdPrefixMatcher);
+      final KeyPrefilter prefilter = new KeyPrefilter(types);
+      final TypeMatcher matcher = new TypeMatcher(types);
+      for (int i = 0; i < 200; i++) {
+        final StringBuilder key = new StringBuilder();
+        for (int n = random.nextInt(4); n > 0; n--) {
+          key.append("abü".charAt(random.nextInt(3)));
+        }
+        final boolean mutation = random.nextBoolean();
+        final RequestFactory.MatchResult match = matcher.match(key.toString());
+        final boolean wouldWrite = match != null && !match.typeConfig().ignore()
+            && (mutation || !match.typeConfig().ignoreDeletes());
+        final boolean skipped = prefilter.test(message(mutation ? MUTATION : DELETION, key.toString()));
+        if (wouldWrite) {
+          assertFalse(types + " " + key, skipped);
+        } else if (prefixOnly) {
+          // Only a regular expression can stop the prefilter from recognizing an ignored event.
+          assertTrue(types + " " + key, skipped);
+        }
+      }
+    }
+  }
+}
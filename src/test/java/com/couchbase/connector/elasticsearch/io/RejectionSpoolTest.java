@@ -0,0 +1,205 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RejectionSpoolTest {
+  private static final String SUCCESS = "{\"errors\":false,\"items\":[]}";
+  private static final String THROTTLED = "{\"errors\":true,\"items\":[{\"index\":{\"_id\":\"a\",\"status\":429,\"error\":{}}}]}";
+  private static final String BLOCKED = "{\"errors\":true,\"items\":[{\"index\":{\"_id\":\"a\",\"status\":403,\"error\":{\"type\":\"cluster_block_exception\"}}}]}";
+  private static final String BAD_REQUEST = "{\"errors\":true,\"items\":[{\"index\":{\"_id\":\"a\",\"status\":400,\"error\":{}}}]}";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private HttpServer server;
+  private RestClient client;
+  private File spoolDir;
+
+  // Bulk request bodies received by the stub Elasticsearch server.
+  private final StringBuffer received = new StringBuffer();
+
+  // Bulk responses the stub server returns, one per request; the last one is repeated.
+  private volatile String[] responses = {SUCCESS};
+  private volatile int requestCount;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/_bulk", exchange -> {
+      final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+      try (InputStream is = exchange.getRequestBody()) {
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          requestBody.write(buffer, 0, n);
+        }
+      }
+
+      final String[] responses = this.responses;
+      final String response = responses[Math.min(requestCount++, responses.length - 1)];
+      if (response.equals(SUCCESS)) {
+        received.append(new String(requestBody.toByteArray(), UTF_8));
+      }
+
+      final byte[] body = response.getBytes(UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.start();
+
+    client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build();
+    spoolDir = tempFolder.newFolder();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.stop(0);
+  }
+
+  private RejectionSpool newSpool(long size) throws Exception {
+    return new RejectionSpool(client, spoolDir, size, 10);
+  }
+
+  private static byte[] item(int i) {
+    return ("{\"index\":{\"_index\":\"rejects\",\"_type\":\"_doc\",\"_id\":\"" + i + "\"}}\n" +
+        "{\"error\":\"oops\"}\n").getBytes(UTF_8);
+  }
+
+  private static String items(int start, int end) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      sb.append(new String(item(i), UTF_8));
+    }
+    return sb.toString();
+  }
+
+  private static void awaitDrained(RejectionSpool spool) throws InterruptedException {
+    final long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (spool.usedBytes() != 0) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("timed out waiting for spool to drain");
+      }
+      MILLISECONDS.sleep(10);
+    }
+  }
+
+  @Test
+  public void entriesSurviveRestart() throws Exception {
+    try (RejectionSpool spool = newSpool(4096)) {
+      for (int i = 0; i < 3; i++) {
+        assertTrue(spool.append(item(i)));
+      }
+      assertTrue(spool.usedBytes() > 0);
+      // not started, so nothing is shipped
+    }
+    assertEquals("", received.toString());
+
+    try (RejectionSpool spool = newSpool(4096)) {
+      assertTrue(spool.usedBytes() > 0);
+      spool.start();
+      awaitDrained(spool);
+    }
+    assertEquals(items(0, 3), received.toString());
+  }
+
+  @Test
+  public void wrapsAround() throws Exception {
+    try (RejectionSpool spool = newSpool(1024 + 32)) {
+      spool.start();
+      for (int i = 0; i < 100; i++) {
+        assertTrue(spool.append(item(i)));
+        if (i % 3 == 0) {
+          awaitDrained(spool);
+        }
+      }
+      awaitDrained(spool);
+    }
+    assertEquals(items(0, 100), received.toString());
+  }
+
+  @Test
+  public void fullSpoolRejectsEntries() throws Exception {
+    try (RejectionSpool spool = newSpool(1024 + 32)) {
+      int accepted = 0;
+      while (spool.append(item(accepted))) {
+        accepted++;
+      }
+      assertTrue(accepted > 0);
+      assertTrue(spool.usedBytes() <= 1024);
+
+      spool.start();
+      awaitDrained(spool);
+      assertTrue(spool.append(item(accepted)));
+      awaitDrained(spool);
+      assertEquals(items(0, accepted + 1), received.toString());
+    }
+  }
+
+  @Test
+  public void retriesThrottledEntries() throws Exception {
+    responses = new String[]{THROTTLED, SUCCESS};
+    try (RejectionSpool spool = newSpool(4096)) {
+      assertTrue(spool.append(item(0)));
+      spool.start();
+      awaitDrained(spool);
+    }
+    assertEquals(2, requestCount);
+    assertEquals(items(0, 1), received.toString());
+  }
+
+  @Test
+  public void retriesBlockedEntries() throws Exception {
+    responses = new String[]{BLOCKED, SUCCESS};
+    try (RejectionSpool spool = newSpool(4096)) {
+      assertTrue(spool.append(item(0)));
+      spool.start();
+      awaitDrained(spool);
+    }
+    assertEquals(2, requestCount);
+    assertEquals(items(0, 1), received.toString());
+  }
+
+  @Test
+  public void discardsEntriesThatFailPermanently() throws Exception {
+    responses = new String[]{BAD_REQUEST, SUCCESS};
+    try (RejectionSpool spool = newSpool(4096)) {
+      assertTrue(spool.append(item(0)));
+      spool.start();
+      awaitDrained(spool);
+    }
+    assertEquals(1, requestCount);
+    assertEquals("", received.toString());
+  }
+
+  @Test
+  public void closedSpoolRejectsEntries() throws Exception {
+    final RejectionSpool spool = newSpool(4096);
+    spool.close();
+    assertFalse(spool.append(item(0)));
+  }
+}
@@ -0,0 +1,238 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.client.deps.io.netty.buffer.ByteBuf;
+import com.couchbase.client.deps.io.netty.buffer.Unpooled;
+import com.couchbase.connector.config.es.ImmutableRejectLogConfig;
+import com.couchbase.connector.config.es.ImmutableSpillConfig;
+import com.couchbase.connector.config.es.RejectLogConfig;
+import com.couchbase.connector.config.es.SpillConfig;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpillLogTest {
+  private static final String SUCCESS = "{\"errors\":false,\"items\":[]}";
+  private static final String THROTTLED = "{\"errors\":true,\"items\":[{\"index\":{\"_id\":\"a\",\"status\":429,\"error\":{}}}]}";
+  private static final String BLOCKED = "{\"errors\":true,\"items\":[{\"index\":{\"_id\":\"a\",\"status\":403,\"error\":{}}}]}";
+  private static final String BAD_REQUEST = "{\"errors\":true,\"items\":[{\"index\":{\"_index\":\"foo\",\"_type\":\"_doc\",\"_id\":\"0\",\"status\":400," +
+      "\"error\":{\"type\":\"mapper_parsing_exception\",\"reason\":\"failed to parse\"}}}]}";
+
+  @Rule
+  public TemporaryFolder tempFolder = new TemporaryFolder();
+
+  private HttpServer server;
+  private RestClient client;
+  private File spillDir;
+
+  // Bulk request bodies accepted by the stub Elasticsearch server.
+  private final StringBuffer received = new StringBuffer();
+
+  // Bulk responses the stub server returns, one per request; the last one is repeated.
+  private volatile String[] responses = {SUCCESS};
+  private volatile int requestCount;
+
+  @Before
+  public void setUp() throws Exception {
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/_bulk", exchange -> {
+      final ByteArrayOutputStream requestBody = new ByteArrayOutputStream();
+      try (InputStream is = exchange.getRequestBody()) {
+        final byte[] buffer = new byte[4096];
+        int n;
+        while ((n = is.read(buffer)) != -1) {
+          requestBody.write(buffer, 0, n);
+        }
+      }
+
+      final String[] responses = this.responses;
+      final String response = responses[Math.min(requestCount++, responses.length - 1)];
+      if (response.equals(SUCCESS)) {
+        received.append(new String(requestBody.toByteArray(), UTF_8));
+      }
+
+      final byte[] body = response.getBytes(UTF_8);
+      exchange.getResponseHeaders().add("Content-Type", "application/json");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    });
+    server.start();
+
+    client = RestClient.builder(new HttpHost("localhost", server.getAddress().getPort())).build();
+    spillDir = tempFolder.newFolder();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    client.close();
+    server.stop(0);
+  }
+
+  private SpillStore newStore(long segmentSize, long maxSize) throws Exception {
+    return newStore(segmentSize, maxSize, null);
+  }
+
+  private SpillStore newStore(long segmentSize, long maxSize, RejectLogConfig rejectLog) throws Exception {
+    final SpillConfig config = ImmutableSpillConfig.builder()
+        .enabled(true)
+        .dir(spillDir.getPath())
+        .after(TimeValue.timeValueSeconds(30))
+        .segmentSize(new ByteSizeValue(segmentSize))
+        .maxSize(new ByteSizeValue(maxSize))
+        .replayRate(1_000_000)
+        .replayBatchSize(5)
+        .build();
+    return new SpillStore(client, spillDir, config, rejectLog, null);
+  }
+
+  private static String item(int i) {
+    return "{\"index\":{\"_index\":\"foo\",\"_type\":\"_doc\",\"_id\":\"" + i + "\"}}\n" +
+        "{\"bar\":" + i + "}\n";
+  }
+
+  private static String items(int start, int end) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = start; i < end; i++) {
+      sb.append(item(i));
+    }
+    return sb.toString();
+  }
+
+  private static boolean append(SpillLog log, int i) {
+    final ByteBuf buf = Unpooled.copiedBuffer(item(i), UTF_8);
+    try {
+      return log.append(buf, 1);
+    } finally {
+      buf.release();
+    }
+  }
+
+  private static void awaitReplayed(SpillLog log, long actions) throws InterruptedException {
+    final long deadline = System.nanoTime() + SECONDS.toNanos(10);
+    while (log.replayedActions() != actions) {
+      if (System.nanoTime() - deadline > 0) {
+        fail("timed out waiting for replay");
+      }
+      MILLISECONDS.sleep(10);
+    }
+  }
+
+  @Test
+  public void replaysInOrderAcrossSegments() throws Exception {
+    try (SpillStore store = newStore(256, 1024 * 1024)) {
+      final SpillLog log = store.newLog();
+      for (int i = 0; i < 50; i++) {
+        assertTrue(append(log, i));
+      }
+      awaitReplayed(log, 50);
+      assertEquals(items(0, 50), received.toString());
+      assertEquals(0, store.usedBytes());
+      log.close();
+    }
+  }
+
+  @Test
+  public void retriesThrottledActions() throws Exception {
+    responses = new String[]{THROTTLED, SUCCESS};
+    try (SpillStore store = newStore(1024, 1024 * 1024)) {
+      final SpillLog log = store.newLog();
+      assertTrue(append(log, 0));
+      awaitReplayed(log, 1);
+      log.close();
+    }
+    assertEquals(2, requestCount);
+    assertEquals(items(0, 1), received.toString());
+  }
+
+  @Test
+  public void retriesBlockedActions() throws Exception {
+    responses = new String[]{BLOCKED, SUCCESS};
+    try (SpillStore store = newStore(1024, 1024 * 1024)) {
+      final SpillLog log = store.newLog();
+      assertTrue(append(log, 0));
+      awaitReplayed(log, 1);
+      log.close();
+    }
+    assertEquals(2, requestCount);
+    assertEquals(items(0, 1), received.toString());
+  }
+
+  @Test
+  public void writesRejectedActionsToRejectionLog() throws Exception {
+    responses = new String[]{BAD_REQUEST, SUCCESS};
+    final RejectLogConfig rejectLog = ImmutableRejectLogConfig.builder()
+        .index("rejects")
+        .typeName("doc")
+        .spoolSize(new ByteSizeValue(1024 * 1024))
+        .spoolBatchSize(10)
+        .build();
+    try (SpillStore store = newStore(1024, 1024 * 1024, rejectLog)) {
+      final SpillLog log = store.newLog();
+      assertTrue(append(log, 0));
+      awaitReplayed(log, 1);
+      log.close();
+    }
+    assertEquals(2, requestCount);
+    assertEquals("{\"index\":{\"_index\":\"rejects\",\"_type\":\"doc\",\"_id\":\"0\"}}\n" +
+            "{\"index\":\"foo\",\"type\":\"_doc\",\"action\":\"INDEX\"," +
+            "\"error\":\"Elasticsearch exception [type=mapper_parsing_exception, reason=failed to parse]\"}\n",
+        received.toString());
+  }
+
+  @Test
+  public void fullSpillRejectsActions() throws Exception {
+    responses = new String[]{THROTTLED};
+    try (SpillStore store = newStore(256, 512)) {
+      final SpillLog log = store.newLog();
+      int accepted = 0;
+      while (append(log, accepted)) {
+        accepted++;
+      }
+      assertTrue(accepted > 0);
+      assertTrue(store.usedBytes() <= 512);
+
+      responses = new String[]{SUCCESS};
+      awaitReplayed(log, accepted);
+      assertTrue(append(log, accepted));
+      awaitReplayed(log, accepted + 1);
+      assertEquals(items(0, accepted + 1), received.toString());
+      log.close();
+    }
+  }
+
+  @Test
+  public void closeDeletesSpillFiles() throws Exception {
+    responses = new String[]{THROTTLED};
+    try (SpillStore store = newStore(256, 1024 * 1024)) {
+      final SpillLog log = store.newLog();
+      assertTrue(append(log, 0));
+      log.close();
+      assertEquals(0, store.usedBytes());
+      assertFalse(append(log, 1));
+    }
+    final String[] remaining = spillDir.list((dir, name) -> name.startsWith("log-"));
+    assertEquals(0, remaining.length);
+  }
+}
@@ -0,0 +1,141 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import com.couchbase.connector.config.es.ImmutableTypeConfig;
+import com.couchbase.connector.config.es.TypeConfig;
+import com.couchbase.connector.elasticsearch.io.RequestFactory.MatchResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TypeMatcherTest {
+  private static final List<String> REGEX_TEMPLATES = Arrays.asList(
+      "%s.*",
+      "%s[ab]+",
+      "%s_?a*",
+      "[ab]+%s",
+      ".*%s",
+      "%s|b.*",
+      "(a)\\1%s.*",
+      "(?i)%s.*",
+      "(?<index>[ab]+)%s.*",
+      "%s(?<index>.*)",
+      "(?<index>x)?%s.*");
+
+  private static TypeConfig prefix(String prefix, String index) {
+    return type(index, new TypeConfig.IdPrefixMatcher(index, prefix));
+  }
+
+  private static TypeConfig regex(String regex, String index) {
+    return regex.contains("(?<index>")
+        ? type(null, new TypeConfig.IdRegexInferredIndexMatcher(regex))
+        : type(index, new TypeConfig.IdRegexMatcher(index, regex));
+  }
+
+  private static TypeConfig type(String index, TypeConfig.IndexMatcher matcher) {
+    return ImmutableTypeConfig.builder()
+        .index(index)
+        .type("doc")
+        .ignore(index == null && !(matcher instanceof TypeConfig.IdRegexInferredIndexMatcher))
+        .ignoreDeletes(false)
+        .matcher(matcher)
+        .build();
+  }
+
+  /**
+   * The straightforward way: try each type in order.
+   */
+  private static String[] linearMatch(List<TypeConfig> types, String key) {
+    for (TypeConfig type : types) {
+      final TypeConfig.IndexMatcher matcher = type.matcher();
+      final String index;
+      if (matcher instanceof TypeConfig.IdPrefixMatcher) {
+        final TypeConfig.IdPrefixMatcher m = (TypeConfig.IdPrefixMatcher) matcher;
+        index = key.startsWith(m.prefix()) ? m.index() : null;
+      } else if (matcher instanceof TypeConfig.IdRegexMatcher) {
+        final TypeConfig.IdRegexMatcher m = (TypeConfig.IdRegexMatcher) matcher;
+        index = m.pattern().matcher(key).matches() ? m.index() : null;
+      } else {
+        final Matcher m = ((TypeConfig.IdRegexInferredIndexMatcher) matcher).pattern().matcher(key);
+        index = m.matches() ? m.group("index") : null;
+      }
+      if (index != null) {
+        return new String[]{String.valueOf(types.indexOf(type)), index};
+      }
+    }
+    return null;
+  }
+
+  private static String randomString(Random random, int maxLength) {
+    final StringBuilder sb = new StringBuilder();
+    for (int i = random.nextInt(maxLength + 1); i > 0; i--) {
+      sb.append("aabbAB_".charAt(random.nextInt(7)));
+    }
+    return sb.toString();
+  }
+
+  @Test
+  public void firstMatchWins() {
+    final TypeConfig airline = prefix("airline_", "airlines");
+    final List<TypeConfig> types = Arrays.asList(
+        prefix("airline_ignored", null),
+        regex("air.*_(?<index>[a-z]+)", null),
+        airline,
+        prefix("", "everything"));
+    final TypeMatcher matcher = new TypeMatcher(types);
+
+    assertSame(types.get(1), matcher.match("airline_foo").typeConfig());
+    assertEquals("foo", matcher.match("airline_foo").index());
+    assertSame(airline, matcher.match("airline_123").typeConfig());
+    assertSame(airline, matcher.match("airline_ignored_1").typeConfig());
+    assertEquals("everything", matcher.match("").index());
+    assertNull(new TypeMatcher(types.subList(0, 1)).match("airline_ignored"));
+  }
+
+  @Test
+  public void reusesMatchResults() {
+    final TypeMatcher matcher = new TypeMatcher(Arrays.asList(
+        regex("(?<index>[a-z]+)::.*", null),
+        regex("[0-9]+", "numbers")));
+    assertSame(matcher.match("foo::1"), matcher.match("foo::2"));
+    assertSame(matcher.match("1"), matcher.match("2"));
+  }
+
+  @Test
+  public void behavesLikeLinearScan() {
+    final Random random = new Random(0);
+    for (int round = 0; round < 500; round++) {
+      final List<TypeConfig> types = new ArrayList<>();
+      for (int i = random.nextInt(30); i >= 0; i--) {
+        final String literal = randomString(random, 3);
+        final String index = random.nextInt(10) == 0 ? null : "index" + i;
+        if (random.nextBoolean()) {
+          types.add(prefix(literal, index));
+        } else {
+          final String template = REGEX_TEMPLATES.get(random.nextInt(REGEX_TEMPLATES.size()));
+          types.add(regex(String.format(template, literal), index));
+        }
+      }
+
+      final TypeMatcher matcher = new TypeMatcher(types);
+      for (int i = 0; i < 1000; i++) {
+        final String key = randomString(random, 6);
+        final String[] expected = linearMatch(types, key);
+        final MatchResult actual = matcher.match(key);
+        if (expected == null) {
+          assertNull(types + " " + key, actual);
+        } else {
+          assertSame(types + " " + key, types.get(Integer.parseInt(expected[0])), actual.typeConfig());
+          assertEquals(expected[1], actual.index());
+        }
+      }
+    }
+  }
+}
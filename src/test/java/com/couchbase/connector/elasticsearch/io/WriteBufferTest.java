@@ -0,0 +1,91 @@
+package com.couchbase.connector.elasticsearch.io;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class WriteBufferTest {
+  @Test
+  public void behavesLikeLinkedHashMap() {
+    final Random random = new Random(0);
+    final WriteBuffer<Integer> buffer = new WriteBuffer<>();
+    final Map<String, Integer> expected = new LinkedHashMap<>();
+
+    for (int round = 0; round < 100; round++) {
+      final int count = random.nextInt(2000);
+      for (int i = 0; i < count; i++) {
+        final String key = "key" + random.nextInt(1000);
+        assertEquals(expected.put(key, i), buffer.put(key, i));
+      }
+
+      assertEquals(expected.size(), buffer.size());
+      int position = 0;
+      for (Map.Entry<String, Integer> e : expected.entrySet()) {
+        assertEquals(e.getKey(), buffer.keyAt(position));
+        assertEquals(e.getValue(), buffer.valueAt(position));
+        assertTrue(buffer.containsKey(e.getKey()));
+        position++;
+      }
+
+      expected.clear();
+      buffer.clear();
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  @Test
+  public void steadyStateBufferingDoesNotAllocate() {
+    final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+    final com.sun.management.ThreadMXBean mxBean = (com.sun.management.ThreadMXBean) threadMXBean;
+    assumeTrue(mxBean.isThreadAllocatedMemorySupported());
+    mxBean.setThreadAllocatedMemoryEnabled(true);
+
+    final List<String> keys = new ArrayList<>();
+    for (int i = 0; i < 1000; i++) {
+      keys.add("document::" + i);
+      keys.get(i).hashCode(); // String caches its hash code; compute it before measuring
+    }
+    final Object value = new Object();
+    final WriteBuffer<Object> buffer = new WriteBuffer<>();
+    final KeyMap<Object> inFlight = new KeyMap<>();
+
+    // Let the tables grow to their working size.
+    fillAndDrain(keys, value, buffer, inFlight);
+
+    final int rounds = 1000;
+    final long threadId = Thread.currentThread().getId();
+    final long before = mxBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < rounds; i++) {
+      fillAndDrain(keys, value, buffer, inFlight);
+    }
+    final long allocated = mxBean.getThreadAllocatedBytes(threadId) - before;
+
+    // Allow a little slack for anything the JVM itself allocates on this thread.
+    final long operations = (long) rounds * keys.size();
+    assertTrue("allocated " + allocated + " bytes for " + operations + " operations",
+        allocated < operations / 100);
+  }
+
+  private static void fillAndDrain(List<String> keys, Object value, WriteBuffer<Object> buffer, KeyMap<Object> inFlight) {
+    for (int i = 0; i < keys.size(); i++) {
+      buffer.put(keys.get(i), value);
+    }
+    for (int i = 0; i < buffer.size(); i++) {
+      inFlight.put(buffer.keyAt(i), value);
+    }
+    buffer.clear();
+    for (int i = 0; i < keys.size(); i++) {
+      inFlight.remove(keys.get(i), value);
+    }
+  }
+}